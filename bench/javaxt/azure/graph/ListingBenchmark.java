@@ -0,0 +1,114 @@
+package javaxt.azure.graph;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import javaxt.json.*;
+import javaxt.azure.graph.mock.GraphServer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+//******************************************************************************
+//**  ListingBenchmark
+//******************************************************************************
+/**
+ *   Measures end-to-end listing throughput against an in-process http server
+ *   (see GraphServer). Each invocation lists every record in a collection of
+ *   10 pages, including the http round trips, parsing, and object wrapping.
+ *   The server runs without faults or compression and the client-side
+ *   throttle is set high enough that it never delays a request. Note that
+ *   the time the server takes to generate each page is included.
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingBenchmark {
+
+    @Param({"200", "999"})
+    private int pageSize;
+
+    private static final int PAGES = 10;
+    private GraphServer server;
+    private Connection conn;
+    private String driveID;
+
+
+    @Setup
+    public void setup() throws Exception {
+        JSONObject config = new JSONObject();
+        config.set("users", pageSize*PAGES);
+        config.set("calendars", 0);
+        config.set("depth", 0);
+        config.set("folders", 0);
+        config.set("files", pageSize*PAGES);
+        config.set("pageSize", pageSize);
+        config.set("compression", false);
+        server = new GraphServer(config);
+        server.start();
+        driveID = server.getDrives().iterator().next().getID();
+
+        JSONObject throttle = new JSONObject();
+        throttle.set("requestsPerSecond", 1_000_000);
+        JSONObject options = new JSONObject();
+        options.set("loginURL", server.getLoginURL());
+        options.set("graphURL", server.getGraphURL());
+        options.set("throttle", throttle);
+        conn = new Connection("tenant", "client", "secret", options);
+    }
+
+
+    @TearDown
+    public void tearDown(){
+        if (conn!=null) conn.close();
+        if (server!=null) server.stop();
+    }
+
+
+  //**************************************************************************
+  //** getUsers
+  //**************************************************************************
+  /** Lists users one page at a time using User.getUsers()
+   */
+    @Benchmark
+    public int getUsers(){
+        try{
+            return User.getUsers(conn).size();
+        }
+        catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
+
+
+  //**************************************************************************
+  //** Pager
+  //**************************************************************************
+  /** Lists users using a Pager which prefetches the next page while the
+   *  current page is consumed
+   */
+    @Benchmark
+    public void pageUsers(Blackhole bh){
+        for (User user : User.getUsers(conn, pageSize)){
+            bh.consume(user.getID());
+        }
+    }
+
+
+  //**************************************************************************
+  //** Items
+  //**************************************************************************
+  /** Lists driveItems using a Pager
+   */
+    @Benchmark
+    public void pageItems(Blackhole bh){
+        String url = "/drives/" + driveID + "/items/root/children";
+        for (JSONObject item : new Pager<>(url, null, json -> json, conn)){
+            bh.consume(item.get("id").toString());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package javaxt.azure.graph;
+
+import java.util.concurrent.TimeUnit;
+import javaxt.json.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+//******************************************************************************
+//**  ParseBenchmark
+//******************************************************************************
+/**
+ *   Measures the time it takes to parse a page of users, events, and
+ *   driveItems. Page sizes match the default (200) and max (999) page sizes
+ *   supported by the graph API.
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    @Param({"200", "999"})
+    private int pageSize;
+
+    private String users;
+    private String events;
+    private String items;
+
+
+    @Setup
+    public void setup(){
+        String nextLink = "https://graph.microsoft.com/v1.0/users?$skiptoken=X%27445370740200";
+        users = TestData.getUsers(pageSize, 1, nextLink);
+        events = TestData.getEvents(pageSize, 1, nextLink);
+        items = TestData.getItems(pageSize, 1, nextLink, "https://contoso.sharepoint.com/download.aspx?UniqueId=");
+    }
+
+
+  //**************************************************************************
+  //** Users
+  //**************************************************************************
+    @Benchmark
+    public JSONObject parseUsers(){
+        return new JSONObject(users);
+    }
+
+
+  //**************************************************************************
+  //** Events
+  //**************************************************************************
+    @Benchmark
+    public JSONObject parseEvents(){
+        return new JSONObject(events);
+    }
+
+
+  //**************************************************************************
+  //** Items
+  //**************************************************************************
+    @Benchmark
+    public JSONObject parseItems(){
+        return new JSONObject(items);
+    }
+
+
+  //**************************************************************************
+  //** Iterate
+  //**************************************************************************
+  /** Parses a page and walks the "value" array the same way the client does
+   */
+    @Benchmark
+    public void parseAndIterateItems(Blackhole bh){
+        JSONObject json = new JSONObject(items);
+        for (JSONValue v : json.get("value").toJSONArray()){
+            bh.consume(v.toJSONObject());
+        }
+        bh.consume(json.get("@odata.nextLink").toString());
+    }
+}
@@ -0,0 +1,123 @@
+package javaxt.azure.graph;
+
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import javaxt.json.*;
+import javaxt.azure.graph.mock.GraphServer;
+import org.openjdk.jmh.annotations.*;
+
+
+//******************************************************************************
+//**  SyncBenchmark
+//******************************************************************************
+/**
+ *   Measures the time it takes to sync a SharePoint folder into an empty
+ *   directory using the mock graph server. The synced folder has 111
+ *   subfolders and 10 or 100 files per folder. Run with "-prof gc" to see
+ *   allocation rates. Example:
+ <pre>
+    java -jar target/benchmarks.jar SyncBenchmark -prof gc
+ </pre>
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class SyncBenchmark {
+
+    @Param({"10", "100"})
+    private int files;
+
+    @Param({"0", "0.01"})
+    private double throttleRate;
+
+    private GraphServer server;
+    private Path dir;
+
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        JSONObject faults = new JSONObject();
+        faults.set("latency", 5);
+        faults.set("jitter", 5);
+        faults.set("throttleRate", throttleRate);
+        faults.set("retryAfter", 1);
+
+        JSONObject config = new JSONObject();
+        config.set("depth", 3);
+        config.set("folders", 10);
+        config.set("files", files);
+        config.set("fileSize", 4096);
+        config.set("faults", faults);
+        server = new GraphServer(config);
+        server.start();
+    }
+
+
+    @Setup(Level.Iteration)
+    public void createDir() throws Exception {
+        dir = Files.createTempDirectory("sync");
+    }
+
+
+    @TearDown(Level.Iteration)
+    public void deleteDir() throws Exception {
+        if (dir==null) return;
+        try (java.util.stream.Stream<Path> paths = Files.walk(dir)){
+            paths.sorted(java.util.Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+
+    @TearDown(Level.Trial)
+    public void stopServer(){
+        if (server!=null) server.stop();
+    }
+
+
+  //**************************************************************************
+  //** sync
+  //**************************************************************************
+    @Benchmark
+    public void sync() throws Exception {
+        JSONObject folder = new JSONObject();
+        folder.set("drive", "Documents");
+        folder.set("path", "Folder 0");
+        JSONArray folders = new JSONArray();
+        folders.add(folder);
+
+        JSONObject site = new JSONObject();
+        site.set("site", "Personnel");
+        site.set("folders", folders);
+        site.set("localCache", dir.toString());
+        JSONArray sites = new JSONArray();
+        sites.add(site);
+
+        JSONObject throttle = new JSONObject();
+        throttle.set("requestsPerSecond", 10000);
+        throttle.set("burst", 1000);
+        JSONObject connection = new JSONObject();
+        connection.set("loginURL", server.getLoginURL());
+        connection.set("graphURL", server.getGraphURL());
+        connection.set("throttle", throttle);
+
+        JSONObject sync = new JSONObject();
+        sync.set("crawlThreads", 4);
+        sync.set("downloadThreads", 8);
+
+        JSONObject source = new JSONObject();
+        source.set("host", "contoso.sharepoint.com");
+        source.set("tenantID", "tenant");
+        source.set("clientID", "client");
+        source.set("secret", "secret");
+        source.set("sites", sites);
+        source.set("sync", sync);
+        source.set("connection", connection);
+
+        new javaxt.azure.graph.sync.SharePoint(source).run();
+    }
+}
@@ -0,0 +1,176 @@
+package javaxt.azure.graph;
+
+import java.util.*;
+
+
+//******************************************************************************
+//**  TestData
+//******************************************************************************
+/**
+ *   Used to generate graph API responses for benchmarks. Records are modeled
+ *   after real users, events, and driveItems so that parsing costs are
+ *   representative. Output is deterministic for a given seed.
+ *
+ ******************************************************************************/
+
+public class TestData {
+
+    private static final String[] FIRST_NAMES = {
+        "James", "Mary", "Robert", "Patricia", "John", "Jennifer", "Michael",
+        "Linda", "David", "Elizabeth", "William", "Barbara", "Richard", "Susan"
+    };
+    private static final String[] LAST_NAMES = {
+        "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia", "Miller",
+        "Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez"
+    };
+    private static final String[] TITLES = {
+        "Engineer", "Analyst", "Program Manager", "Director", "Accountant",
+        "Consultant", "Administrator", "Architect", "Scientist"
+    };
+
+
+  //**************************************************************************
+  //** getUsers
+  //**************************************************************************
+  /** Returns a page of users
+   *  @param nextLink Optional "@odata.nextLink"
+   */
+    public static String getUsers(int size, long seed, String nextLink){
+        Random random = new Random(seed);
+        StringBuilder str = new StringBuilder();
+        str.append("{\"@odata.context\":\"https://graph.microsoft.com/v1.0/$metadata#users\",");
+        if (nextLink!=null) str.append("\"@odata.nextLink\":\"").append(nextLink).append("\",");
+        str.append("\"value\":[");
+        for (int i=0; i<size; i++){
+            if (i>0) str.append(",");
+            String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            String email = (first + "." + last + i).toLowerCase() + "@contoso.com";
+            str.append("{");
+            str.append("\"businessPhones\":[\"+1 555 01").append(random.nextInt(90)+10).append("\"],");
+            str.append("\"displayName\":\"").append(first).append(" ").append(last).append("\",");
+            str.append("\"givenName\":\"").append(first).append("\",");
+            str.append("\"jobTitle\":\"").append(TITLES[random.nextInt(TITLES.length)]).append("\",");
+            str.append("\"mail\":\"").append(email).append("\",");
+            str.append("\"mobilePhone\":null,");
+            str.append("\"officeLocation\":\"Building ").append(random.nextInt(40)).append("\",");
+            str.append("\"preferredLanguage\":\"en-US\",");
+            str.append("\"surname\":\"").append(last).append("\",");
+            str.append("\"userPrincipalName\":\"").append(email).append("\",");
+            str.append("\"id\":\"").append(getID(random)).append("\"");
+            str.append("}");
+        }
+        str.append("]}");
+        return str.toString();
+    }
+
+
+  //**************************************************************************
+  //** getEvents
+  //**************************************************************************
+  /** Returns a page of calendar events
+   */
+    public static String getEvents(int size, long seed, String nextLink){
+        Random random = new Random(seed);
+        StringBuilder str = new StringBuilder();
+        str.append("{\"@odata.context\":\"https://graph.microsoft.com/v1.0/$metadata#users('x')/calendars('y')/events\",");
+        if (nextLink!=null) str.append("\"@odata.nextLink\":\"").append(nextLink).append("\",");
+        str.append("\"value\":[");
+        for (int i=0; i<size; i++){
+            if (i>0) str.append(",");
+            int day = 1+random.nextInt(28);
+            int hour = 8+random.nextInt(9);
+            String date = "2024-03-" + (day<10 ? "0" : "") + day + "T" + (hour<10 ? "0" : "") + hour;
+            String organizer = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            str.append("{");
+            str.append("\"@odata.etag\":\"W/\\\"").append(getID(random)).append("\\\"\",");
+            str.append("\"id\":\"AAMkAG").append(getID(random).replace("-", "")).append("=\",");
+            str.append("\"createdDateTime\":\"2024-02-01T12:00:00.0000000Z\",");
+            str.append("\"lastModifiedDateTime\":\"2024-02-02T12:00:00.0000000Z\",");
+            str.append("\"changeKey\":\"").append(getID(random)).append("\",");
+            str.append("\"categories\":[],");
+            str.append("\"subject\":\"Meeting ").append(i).append("\",");
+            str.append("\"bodyPreview\":\"Agenda for the meeting\",");
+            str.append("\"body\":{\"contentType\":\"html\",\"content\":\"<html><body>");
+            for (int j=0; j<8; j++) str.append("<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit.</p>");
+            str.append("</body></html>\"},");
+            str.append("\"importance\":\"normal\",");
+            str.append("\"isAllDay\":false,");
+            str.append("\"isCancelled\":false,");
+            str.append("\"showAs\":\"busy\",");
+            str.append("\"start\":{\"dateTime\":\"").append(date).append(":00:00.0000000\",\"timeZone\":\"UTC\"},");
+            str.append("\"end\":{\"dateTime\":\"").append(date).append(":30:00.0000000\",\"timeZone\":\"UTC\"},");
+            str.append("\"location\":{\"displayName\":\"Room ").append(random.nextInt(300)).append("\",\"locationType\":\"default\"},");
+            str.append("\"attendees\":[");
+            for (int j=0; j<3; j++){
+                if (j>0) str.append(",");
+                String name = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+                str.append("{\"type\":\"required\",\"status\":{\"response\":\"none\",\"time\":\"0001-01-01T00:00:00Z\"},");
+                str.append("\"emailAddress\":{\"name\":\"").append(name).append("\",\"address\":\"");
+                str.append(name.toLowerCase()).append("@contoso.com\"}}");
+            }
+            str.append("],");
+            str.append("\"organizer\":{\"emailAddress\":{\"name\":\"").append(organizer);
+            str.append("\",\"address\":\"").append(organizer.toLowerCase()).append("@contoso.com\"}}");
+            str.append("}");
+        }
+        str.append("]}");
+        return str.toString();
+    }
+
+
+  //**************************************************************************
+  //** getItems
+  //**************************************************************************
+  /** Returns a page of driveItems (files and folders)
+   *  @param downloadUrl Base url for the "@microsoft.graph.downloadUrl"
+   */
+    public static String getItems(int size, long seed, String nextLink, String downloadUrl){
+        Random random = new Random(seed);
+        StringBuilder str = new StringBuilder();
+        str.append("{\"@odata.context\":\"https://graph.microsoft.com/v1.0/$metadata#drives('d')/items('x')/children\",");
+        if (nextLink!=null) str.append("\"@odata.nextLink\":\"").append(nextLink).append("\",");
+        str.append("\"value\":[");
+        for (int i=0; i<size; i++){
+            if (i>0) str.append(",");
+            boolean folder = random.nextInt(10)==0;
+            String id = "01" + getID(random).replace("-", "").substring(0, 32).toUpperCase();
+            String name = folder ? "Folder " + i : "Document " + i + ".docx";
+            str.append("{");
+            if (!folder && downloadUrl!=null){
+                str.append("\"@microsoft.graph.downloadUrl\":\"").append(downloadUrl).append(id).append("\",");
+            }
+            str.append("\"createdDateTime\":\"2023-11-14T18:21:03Z\",");
+            str.append("\"eTag\":\"\\\"{").append(getID(random).toUpperCase()).append("},1\\\"\",");
+            str.append("\"id\":\"").append(id).append("\",");
+            str.append("\"lastModifiedDateTime\":\"2024-01-09T09:12:44Z\",");
+            str.append("\"name\":\"").append(name).append("\",");
+            str.append("\"webUrl\":\"https://contoso.sharepoint.com/sites/hr/Shared%20Documents/").append(i).append("\",");
+            str.append("\"cTag\":\"\\\"c:{").append(getID(random).toUpperCase()).append("},1\\\"\",");
+            str.append("\"size\":").append(folder ? 0 : random.nextInt(5_000_000)).append(",");
+            str.append("\"createdBy\":{\"user\":{\"email\":\"jsmith@contoso.com\",\"displayName\":\"John Smith\"}},");
+            str.append("\"lastModifiedBy\":{\"user\":{\"email\":\"jsmith@contoso.com\",\"displayName\":\"John Smith\"}},");
+            str.append("\"parentReference\":{\"driveType\":\"documentLibrary\",\"driveId\":\"b!abc\",\"id\":\"01PARENT\",\"path\":\"/drives/b!abc/root:\"},");
+            str.append("\"fileSystemInfo\":{\"createdDateTime\":\"2023-11-14T18:21:03Z\",\"lastModifiedDateTime\":\"2024-01-09T09:12:44Z\"}");
+            if (folder){
+                str.append(",\"folder\":{\"childCount\":").append(random.nextInt(50)).append("}");
+            }
+            else{
+                str.append(",\"file\":{\"mimeType\":\"application/vnd.openxmlformats-officedocument.wordprocessingml.document\",");
+                str.append("\"hashes\":{\"quickXorHash\":\"").append(Base64.getEncoder().encodeToString(
+                    getID(random).substring(0, 20).getBytes())).append("\"}}");
+            }
+            str.append("}");
+        }
+        str.append("]}");
+        return str.toString();
+    }
+
+
+  //**************************************************************************
+  //** getID
+  //**************************************************************************
+    private static String getID(Random random){
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+}
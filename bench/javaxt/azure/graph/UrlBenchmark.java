@@ -0,0 +1,60 @@
+package javaxt.azure.graph;
+
+import java.util.concurrent.TimeUnit;
+import javaxt.json.*;
+import org.openjdk.jmh.annotations.*;
+
+
+//******************************************************************************
+//**  UrlBenchmark
+//******************************************************************************
+/**
+ *   Measures the cost of building request urls, including the date filters
+ *   used to find calendar events and the resource keys used by the Throttle.
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UrlBenchmark {
+
+    private Calendar calendar;
+    private javaxt.utils.Date startDate;
+    private javaxt.utils.Date endDate;
+
+
+    @Setup
+    public void setup() throws Exception {
+        JSONObject json = new JSONObject();
+        json.set("id", "AAMkAGI2TG93AAA=");
+        calendar = new Calendar(json, "jsmith@contoso.com", null);
+        startDate = new javaxt.utils.Date("2024-03-01T00:00:00Z");
+        endDate = new javaxt.utils.Date("2024-03-31T23:59:59Z");
+    }
+
+
+  //**************************************************************************
+  //** Events
+  //**************************************************************************
+  /** Builds a url used to find events in a date range
+   */
+    @Benchmark
+    public String eventsURL(){
+        return calendar.getURL(calendar.getParams(startDate, endDate));
+    }
+
+
+  //**************************************************************************
+  //** Resource
+  //**************************************************************************
+  /** Returns the throttle resource for an item url
+   */
+    @Benchmark
+    public String throttleResource(){
+        return Throttle.getResource("/drives/b!abc/items/01ABCDEF/children?$top=999");
+    }
+}
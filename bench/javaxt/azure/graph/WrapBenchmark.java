@@ -0,0 +1,146 @@
+package javaxt.azure.graph;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.lang.reflect.Constructor;
+import javaxt.json.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+//******************************************************************************
+//**  WrapBenchmark
+//******************************************************************************
+/**
+ *   Measures the cost of wrapping parsed records in User, Event, and Item
+ *   objects and reading commonly used fields. Pages are parsed during setup
+ *   so only the wrapping and field access is measured. The sortEvents
+ *   benchmark measures repeated access to the same fields, which is served
+ *   from the values cached by Node. Dates are only parsed once but each call
+ *   returns a copy.
+ *
+ ******************************************************************************/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WrapBenchmark {
+
+    @Param({"200", "999"})
+    private int pageSize;
+
+    private ArrayList<JSONObject> users;
+    private ArrayList<JSONObject> events;
+    private ArrayList<JSONObject> items;
+    private Calendar calendar;
+    private SharePoint sharePoint;
+    private SharePoint.Drive drive;
+    private Constructor<SharePoint.Item> newItem;
+
+
+    @Setup
+    public void setup() throws Exception {
+        users = getRecords(TestData.getUsers(pageSize, 1, null));
+        events = getRecords(TestData.getEvents(pageSize, 1, null));
+        items = getRecords(TestData.getItems(pageSize, 1, null, null));
+
+        JSONObject json = new JSONObject();
+        json.set("id", "AAMkAGI2TG93AAA=");
+        calendar = new Calendar(json, "jsmith@contoso.com", null);
+
+
+      //Drive and Item constructors are private. Create instances using
+      //reflection so we don't need a connection.
+        sharePoint = new SharePoint("contoso.sharepoint.com", null);
+        json = new JSONObject();
+        json.set("id", "b!abc");
+        json.set("name", "Documents");
+        Constructor<SharePoint.Drive> newDrive = SharePoint.Drive.class.getDeclaredConstructor(
+            SharePoint.class, JSONObject.class);
+        newDrive.setAccessible(true);
+        drive = newDrive.newInstance(sharePoint, json);
+
+        newItem = SharePoint.Item.class.getDeclaredConstructor(
+            SharePoint.class, JSONObject.class, SharePoint.Drive.class, String.class);
+        newItem.setAccessible(true);
+    }
+
+
+  //**************************************************************************
+  //** Users
+  //**************************************************************************
+    @Benchmark
+    public void wrapUsers(Blackhole bh){
+        for (JSONObject json : users){
+            User user = new User(json, null);
+            bh.consume(user.getID());
+            bh.consume(user.get("mail").toString());
+            bh.consume(user.get("displayName").toString());
+        }
+    }
+
+
+  //**************************************************************************
+  //** Events
+  //**************************************************************************
+    @Benchmark
+    public void wrapEvents(Blackhole bh){
+        for (JSONObject json : events){
+            Calendar.Event event = calendar.new Event(json, null);
+            bh.consume(event.getID());
+            bh.consume(event.getSubject());
+            bh.consume(event.getStartDate());
+            bh.consume(event.getEndDate());
+        }
+    }
+
+
+  //**************************************************************************
+  //** sortEvents
+  //**************************************************************************
+  /** Sorts events by start date, then end date, then subject. Each event is
+   *  compared about log2(n) times.
+   */
+    @Benchmark
+    public Object sortEvents(){
+        ArrayList<Calendar.Event> list = new ArrayList<>(events.size());
+        for (JSONObject json : events) list.add(calendar.new Event(json, null));
+        list.sort(Comparator
+            .comparingLong((Calendar.Event e) -> e.getStartDate().getTime())
+            .thenComparingLong(e -> e.getEndDate().getTime())
+            .thenComparing(Calendar.Event::getSubject, Comparator.nullsFirst(Comparator.naturalOrder()))
+        );
+        return list;
+    }
+
+
+  //**************************************************************************
+  //** Items
+  //**************************************************************************
+    @Benchmark
+    public void wrapItems(Blackhole bh) throws Exception {
+        for (JSONObject json : items){
+            SharePoint.Item item = newItem.newInstance(sharePoint, json, drive, "Shared/Reports");
+            bh.consume(item.getID());
+            bh.consume(item.getPath());
+            bh.consume(item.isFolder());
+            bh.consume(item.getCTag());
+            bh.consume(item.getSize());
+        }
+    }
+
+
+  //**************************************************************************
+  //** getRecords
+  //**************************************************************************
+    private static ArrayList<JSONObject> getRecords(String page){
+        ArrayList<JSONObject> records = new ArrayList<>();
+        for (JSONValue v : new JSONObject(page).get("value").toJSONArray()){
+            records.add(v.toJSONObject());
+        }
+        return records;
+    }
+}
@@ -0,0 +1,494 @@
+package javaxt.azure.graph.mock;
+
+import java.util.*;
+import javaxt.json.*;
+import javaxt.azure.graph.QuickXorHash;
+
+
+//******************************************************************************
+//**  Drive
+//******************************************************************************
+/**
+ *   Used to represent a synthetic document library. Items are not stored in
+ *   memory. Instead, items are derived from their IDs so drives with millions
+ *   of items cost nothing to create. The root folder contains a fixed number
+ *   of subfolders and files, each subfolder contains the same number of
+ *   subfolders and files, and so on, up to a given depth.
+ *   <p/>
+ *   Item IDs encode the position of the item in the tree. The root folder is
+ *   "R", the third child of the root folder is "R.2", the first child of
+ *   that folder is "R.2.0", etc. Children are numbered folders first, then
+ *   files (e.g. "Folder 0", "Folder 1", "File 2.dat", "File 3.dat").
+ *   <p/>
+ *   File contents are generated from the item ID so downloads are
+ *   repeatable, including range requests.
+ *
+ ******************************************************************************/
+
+public class Drive {
+
+    private final String id;
+    private final String name;
+    private final int depth;
+    private final int folders;
+    private final int files;
+    private final long fileSize;
+    private final boolean hashes;
+
+    private static final String ROOT = "R";
+    private static final String DATE = "2024-01-01T00:00:00Z";
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param depth Number of folder levels below the root
+   *  @param folders Number of subfolders in each folder (except the last level)
+   *  @param files Number of files in each folder
+   *  @param fileSize Average file size, in bytes
+   *  @param hashes If true, items will include a quickXorHash. Note that the
+   *  hash is computed from the file contents every time an item is returned.
+   */
+    public Drive(String id, String name, int depth, int folders, int files,
+        long fileSize, boolean hashes){
+        this.id = id;
+        this.name = name;
+        this.depth = Math.max(depth, 0);
+        this.folders = Math.max(folders, 0);
+        this.files = Math.max(files, 0);
+        this.fileSize = Math.max(fileSize, 1);
+        this.hashes = hashes;
+    }
+
+
+  //**************************************************************************
+  //** getID
+  //**************************************************************************
+    public String getID(){
+        return id;
+    }
+
+
+  //**************************************************************************
+  //** getName
+  //**************************************************************************
+    public String getName(){
+        return name;
+    }
+
+
+  //**************************************************************************
+  //** getItemCount
+  //**************************************************************************
+  /** Returns the total number of items in the drive, including the root
+   */
+    public long getItemCount(){
+        long count = 1;
+        long n = 1; //folders at the current level
+        for (int level=0; level<=depth; level++){
+            count += n*getChildCount(level);
+            n = n*getFolderCount(level);
+        }
+        return count;
+    }
+
+
+  //**************************************************************************
+  //** toJson
+  //**************************************************************************
+  /** Returns a drive resource
+   */
+    public JSONObject toJson(){
+        JSONObject json = new JSONObject();
+        json.set("id", id);
+        json.set("name", name);
+        json.set("driveType", "documentLibrary");
+        json.set("createdDateTime", DATE);
+        json.set("lastModifiedDateTime", DATE);
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** getRootID
+  //**************************************************************************
+    public String getRootID(){
+        return ROOT;
+    }
+
+
+  //**************************************************************************
+  //** exists
+  //**************************************************************************
+  /** Returns true if an item with the given ID exists
+   */
+    public boolean exists(String itemID){
+        return parse(itemID)!=null;
+    }
+
+
+  //**************************************************************************
+  //** isFolder
+  //**************************************************************************
+    public boolean isFolder(String itemID){
+        int[] path = parse(itemID);
+        return path!=null && isFolder(path);
+    }
+
+
+  //**************************************************************************
+  //** getItem
+  //**************************************************************************
+  /** Returns a driveItem resource or null if the item doesn't exist
+   *  @param itemID Item ID or "root"
+   *  @param downloadUrl Base url for file downloads. The drive and item IDs
+   *  are appended to the url.
+   */
+    public JSONObject getItem(String itemID, String downloadUrl){
+        if (itemID.equals("root")) itemID = ROOT;
+        int[] path = parse(itemID);
+        if (path==null) return null;
+        return getItem(path, downloadUrl, true);
+    }
+
+
+  //**************************************************************************
+  //** getItemByPath
+  //**************************************************************************
+  /** Returns an item for a given path relative to the drive root (e.g.
+   *  "Folder 1/Folder 0/File 7.dat") or null if the path doesn't exist
+   */
+    public JSONObject getItemByPath(String path, String downloadUrl){
+        ArrayList<Integer> arr = new ArrayList<>();
+        ArrayList<String> names = new ArrayList<>();
+        for (String name : path.split("/")){
+            if (name.isEmpty()) continue;
+            int idx = name.indexOf(" ");
+            if (idx<0) return null;
+            String n = name.substring(idx+1);
+            if (n.endsWith(".dat")) n = n.substring(0, n.length()-4);
+            try{
+                arr.add(Integer.parseInt(n));
+            }
+            catch(NumberFormatException e){
+                return null;
+            }
+            names.add(name);
+        }
+        int[] p = new int[arr.size()];
+        for (int i=0; i<p.length; i++) p[i] = arr.get(i);
+        if (!isValid(p)) return null;
+        for (int i=0; i<p.length; i++){
+            if (!name(Arrays.copyOf(p, i+1)).equals(names.get(i))) return null;
+        }
+        return getItem(p, downloadUrl, true);
+    }
+
+
+  //**************************************************************************
+  //** getChildren
+  //**************************************************************************
+  /** Returns children of a folder
+   *  @param offset Index of the first child to return
+   *  @param limit Max number of items to return
+   *  @return Items or null if the folder doesn't exist
+   */
+    public ArrayList<JSONObject> getChildren(String itemID, int offset, int limit, String downloadUrl){
+        if (itemID.equals("root")) itemID = ROOT;
+        int[] path = parse(itemID);
+        if (path==null) return null;
+        ArrayList<JSONObject> items = new ArrayList<>();
+        if (!isFolder(path)) return items;
+        int count = getChildCount(path.length);
+        for (int i=offset; i<count && items.size()<limit; i++){
+            int[] child = Arrays.copyOf(path, path.length+1);
+            child[path.length] = i;
+            items.add(getItem(child, downloadUrl, true));
+        }
+        return items;
+    }
+
+
+  //**************************************************************************
+  //** getChildCount
+  //**************************************************************************
+  /** Returns the number of children in a folder or -1 if the folder doesn't
+   *  exist
+   */
+    public int getChildCount(String itemID){
+        if (itemID.equals("root")) itemID = ROOT;
+        int[] path = parse(itemID);
+        if (path==null) return -1;
+        return isFolder(path) ? getChildCount(path.length) : 0;
+    }
+
+
+  //**************************************************************************
+  //** getDelta
+  //**************************************************************************
+  /** Returns every item in the drive, one page at a time. Items are returned
+   *  depth first, parents before children, like a delta query. Parent
+   *  references do not include a path.
+   *  @param after ID of the last item in the previous page or null to start
+   *  from the root
+   */
+    public ArrayList<JSONObject> getDelta(String after, int limit, String downloadUrl){
+        ArrayList<JSONObject> items = new ArrayList<>();
+        int[] path;
+        if (after==null) path = new int[0];
+        else{
+            path = parse(after);
+            if (path==null) return items;
+            path = next(path);
+        }
+        while (path!=null && items.size()<limit){
+            items.add(getItem(path, downloadUrl, false));
+            path = next(path);
+        }
+        return items;
+    }
+
+
+  //**************************************************************************
+  //** getSize
+  //**************************************************************************
+  /** Returns the size of a file or -1 if the file doesn't exist
+   */
+    public long getSize(String itemID){
+        int[] path = parse(itemID);
+        if (path==null || isFolder(path)) return -1;
+        return getSize(itemID, path);
+    }
+
+
+  //**************************************************************************
+  //** read
+  //**************************************************************************
+  /** Used to read the contents of a file
+   *  @param offset Position in the file
+   *  @param buffer Buffer to fill with file contents
+   *  @param length Number of bytes to read
+   */
+    public static void read(String itemID, long offset, byte[] buffer, int length){
+        long seed = mix(itemID.hashCode());
+        for (int i=0; i<length; ){
+            long pos = offset+i;
+            long block = pos>>>3;
+            long value = mix(seed ^ block);
+            int shift = (int) (pos & 7);
+            for (int j=shift; j<8 && i<length; j++){
+                buffer[i++] = (byte) (value >>> (j*8));
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** getHash
+  //**************************************************************************
+  /** Returns the quickXorHash of a file
+   */
+    public static String getHash(String itemID, long size){
+        QuickXorHash hash = new QuickXorHash();
+        byte[] b = new byte[64*1024];
+        for (long offset=0; offset<size; ){
+            int n = (int) Math.min(b.length, size-offset);
+            read(itemID, offset, b, n);
+            hash.update(b, 0, n);
+            offset+=n;
+        }
+        return hash.toString();
+    }
+
+
+  //**************************************************************************
+  //** getItem
+  //**************************************************************************
+    private JSONObject getItem(int[] path, String downloadUrl, boolean includePath){
+        String itemID = toString(path);
+        boolean isFolder = isFolder(path);
+
+        JSONObject json = new JSONObject();
+        long size = isFolder ? 0 : getSize(itemID, path);
+        if (!isFolder && downloadUrl!=null){
+            json.set("@microsoft.graph.downloadUrl", downloadUrl + id + "/" + itemID);
+        }
+        json.set("id", itemID);
+        json.set("name", path.length==0 ? "root" : name(path));
+        json.set("eTag", "\"{" + itemID + "},1\"");
+        json.set("cTag", "\"c:{" + itemID + "},1\"");
+        json.set("size", size);
+        json.set("createdDateTime", DATE);
+        json.set("lastModifiedDateTime", DATE);
+        json.set("webUrl", "https://contoso.sharepoint.com/" + id + "/" + itemID);
+
+        JSONObject fileSystemInfo = new JSONObject();
+        fileSystemInfo.set("createdDateTime", DATE);
+        fileSystemInfo.set("lastModifiedDateTime", DATE);
+        json.set("fileSystemInfo", fileSystemInfo);
+
+        if (path.length>0){
+            JSONObject parent = new JSONObject();
+            parent.set("driveType", "documentLibrary");
+            parent.set("driveId", id);
+            parent.set("id", toString(Arrays.copyOf(path, path.length-1)));
+            if (includePath){
+                StringBuilder str = new StringBuilder("/drives/" + id + "/root:");
+                for (int i=0; i<path.length-1; i++){
+                    str.append("/").append(name(Arrays.copyOf(path, i+1)));
+                }
+                parent.set("path", str.toString());
+            }
+            json.set("parentReference", parent);
+        }
+        else{
+            json.set("root", new JSONObject());
+        }
+
+        if (isFolder){
+            JSONObject folder = new JSONObject();
+            folder.set("childCount", getChildCount(path.length));
+            json.set("folder", folder);
+        }
+        else{
+            JSONObject file = new JSONObject();
+            file.set("mimeType", "application/octet-stream");
+            if (hashes){
+                JSONObject hash = new JSONObject();
+                hash.set("quickXorHash", getHash(itemID, size));
+                file.set("hashes", hash);
+            }
+            json.set("file", file);
+        }
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** getSize
+  //**************************************************************************
+  /** Returns a file size between 50% and 150% of the average file size
+   */
+    private long getSize(String itemID, int[] path){
+        long r = mix(itemID.hashCode()*31L+7) & Long.MAX_VALUE;
+        return fileSize/2 + r%(fileSize+1);
+    }
+
+
+  //**************************************************************************
+  //** next
+  //**************************************************************************
+  /** Returns the next item in a depth first traversal of the drive
+   */
+    private int[] next(int[] path){
+        if (isFolder(path) && getChildCount(path.length)>0){
+            int[] child = Arrays.copyOf(path, path.length+1);
+            child[path.length] = 0;
+            return child;
+        }
+        int[] p = path.clone();
+        for (int len=p.length; len>0; len--){
+            if (p[len-1]+1<getChildCount(len-1)){
+                p = Arrays.copyOf(p, len);
+                p[len-1]++;
+                return p;
+            }
+        }
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** getChildCount
+  //**************************************************************************
+  /** Returns the number of children in a folder at a given level (0 for the
+   *  root folder)
+   */
+    private int getChildCount(int level){
+        return getFolderCount(level) + files;
+    }
+
+
+  //**************************************************************************
+  //** getFolderCount
+  //**************************************************************************
+  /** Returns the number of subfolders in a folder at a given level
+   */
+    private int getFolderCount(int level){
+        return level<depth ? folders : 0;
+    }
+
+
+  //**************************************************************************
+  //** isFolder
+  //**************************************************************************
+    private boolean isFolder(int[] path){
+        if (path.length==0) return true;
+        return path[path.length-1]<getFolderCount(path.length-1);
+    }
+
+
+  //**************************************************************************
+  //** isValid
+  //**************************************************************************
+    private boolean isValid(int[] path){
+        for (int i=0; i<path.length; i++){
+            if (path[i]<0 || path[i]>=getChildCount(i)) return false;
+            if (i<path.length-1 && path[i]>=getFolderCount(i)) return false;
+        }
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** name
+  //**************************************************************************
+    private String name(int[] path){
+        int idx = path[path.length-1];
+        return isFolder(path) ? "Folder " + idx : "File " + idx + ".dat";
+    }
+
+
+  //**************************************************************************
+  //** parse
+  //**************************************************************************
+  /** Returns the position of an item in the tree or null if the ID is invalid
+   */
+    private int[] parse(String itemID){
+        if (itemID==null || !itemID.startsWith(ROOT)) return null;
+        if (itemID.length()==ROOT.length()) return new int[0];
+        if (itemID.charAt(ROOT.length())!='.') return null;
+        String[] arr = itemID.substring(ROOT.length()+1).split("\\.");
+        int[] path = new int[arr.length];
+        try{
+            for (int i=0; i<arr.length; i++) path[i] = Integer.parseInt(arr[i]);
+        }
+        catch(NumberFormatException e){
+            return null;
+        }
+        return isValid(path) ? path : null;
+    }
+
+
+  //**************************************************************************
+  //** toString
+  //**************************************************************************
+    private static String toString(int[] path){
+        StringBuilder str = new StringBuilder(ROOT);
+        for (int i : path) str.append(".").append(i);
+        return str.toString();
+    }
+
+
+  //**************************************************************************
+  //** mix
+  //**************************************************************************
+  /** Returns a pseudo-random number for a given seed (SplitMix64)
+   */
+    private static long mix(long z){
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,1333 @@
+package javaxt.azure.graph.mock;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import com.sun.net.httpserver.*;
+import javaxt.json.*;
+import static javaxt.utils.Console.console;
+import static java.nio.charset.StandardCharsets.*;
+
+
+//******************************************************************************
+//**  GraphServer
+//******************************************************************************
+/**
+ *   In-process http server that emulates the parts of the graph API used by
+ *   this library. Used to load test the client, including the SharePoint
+ *   sync, without a live tenant. The server generates synthetic sites,
+ *   drives, users, and calendars at a configurable scale (see Drive and
+ *   Users) and can inject faults such as latency, throttling (429 responses
+ *   with a Retry-After header), throttling bursts, slow downloads, and
+ *   dropped connections.
+ *   <p/>
+ *   Supported endpoints include the token endpoint, sites, drives, items,
+ *   children, path-based addressing, delta queries, file downloads (with
+ *   range requests), upload sessions, users, calendars, events, calendar
+ *   delta queries, and json batching. Individual records are returned with
+ *   an ETag and conditional requests (If-None-Match) are answered with a 304
+ *   if the record is unchanged. The $select parameter is used to
+ *   project records and "$expand=drives" is supported for sites. Other query
+ *   options ($filter, $orderby, etc) are ignored. Example:
+ <pre>
+    GraphServer server = new GraphServer(config);
+    server.start();
+
+    JSONObject options = new JSONObject();
+    options.set("loginURL", server.getLoginURL());
+    options.set("graphURL", server.getGraphURL());
+    Connection conn = new Connection("tenant", "client", "secret", options);
+ </pre>
+ *
+ ******************************************************************************/
+
+public class GraphServer {
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ArrayList<Site> sites = new ArrayList<>();
+    private final HashMap<String, Drive> drives = new HashMap<>();
+    private final Users users;
+    private final Faults faults;
+    private final int pageSize;
+    private final int tokenLifetime;
+    private final boolean compression;
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+    private final AtomicLong nextID = new AtomicLong();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+
+    private static final int MAX_PAGE_SIZE = 999;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param config Server config. All fields are optional. Example:
+   <pre>
+    {
+        "port" : 0,                      //0 to pick a free port
+        "threads" : 64,                  //threads used to handle requests
+        "sites" : ["Personnel"],         //site names
+        "drives" : ["Documents"],        //drives in each site
+        "depth" : 3,                     //folder levels below the root
+        "folders" : 5,                   //subfolders per folder
+        "files" : 20,                    //files per folder
+        "fileSize" : 65536,              //average file size in bytes
+        "hashes" : false,                //include quickXorHash with files
+        "users" : 100,
+        "calendars" : 1,                 //calendars per user
+        "events" : 100,                  //events per calendar
+        "domain" : "contoso.com",
+        "pageSize" : 200,                //default page size
+        "tokenLifetime" : 3599,          //seconds
+        "compression" : true,            //gzip/deflate json if requested
+        "faults" : {
+            "latency" : 20,              //ms added to every response
+            "jitter" : 10,               //max random ms added to the latency
+            "throttleRate" : 0.01,       //fraction of requests rejected with a 429
+            "retryAfter" : 2,            //seconds
+            "burstInterval" : 300,       //seconds between throttling bursts
+            "burstDuration" : 10,        //every request is throttled during a burst
+            "dropRate" : 0.001,          //fraction of responses cut off mid-stream
+            "bytesPerSecond" : 1048576   //download speed per request
+        }
+    }
+   </pre>
+   *  With the default settings, each drive has 156 folders and 3,120 files.
+   *  A drive with 10 subfolders per folder, 4 levels, and 45 files per folder
+   *  has 11,111 folders and 499,995 files.
+   */
+    public GraphServer(JSONObject config) throws IOException {
+        if (config==null) config = new JSONObject();
+
+        int depth = getInt(config, "depth", 3);
+        int folders = getInt(config, "folders", 5);
+        int files = getInt(config, "files", 20);
+        long fileSize = getLong(config, "fileSize", 64*1024);
+        Boolean hashes = config.get("hashes").toBoolean();
+
+        ArrayList<String> siteNames = getList(config, "sites", "Personnel");
+        ArrayList<String> driveNames = getList(config, "drives", "Documents");
+        for (int i=0; i<siteNames.size(); i++){
+            Site site = new Site("site-" + i, siteNames.get(i));
+            for (int j=0; j<driveNames.size(); j++){
+                Drive drive = new Drive("b!" + i + "-" + j, driveNames.get(j),
+                depth, folders, files, fileSize, hashes==Boolean.TRUE);
+                site.drives.add(drive);
+                drives.put(drive.getID(), drive);
+            }
+            sites.add(site);
+        }
+
+        String domain = config.get("domain").toString();
+        users = new Users(getInt(config, "users", 100), getInt(config, "calendars", 1),
+        getInt(config, "events", 100), domain==null ? "contoso.com" : domain);
+
+        faults = new Faults(config.get("faults").toJSONObject());
+        pageSize = Math.min(getInt(config, "pageSize", 200), MAX_PAGE_SIZE);
+        tokenLifetime = getInt(config, "tokenLifetime", 3599);
+        compression = !Boolean.FALSE.equals(config.get("compression").toBoolean());
+
+
+      //Create server
+        int threads = getInt(config, "threads", 64);
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "graph-server");
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", getInt(config, "port", 0)), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+    }
+
+
+  //**************************************************************************
+  //** start
+  //**************************************************************************
+    public void start(){
+        server.start();
+    }
+
+
+  //**************************************************************************
+  //** stop
+  //**************************************************************************
+    public void stop(){
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+
+  //**************************************************************************
+  //** getURL
+  //**************************************************************************
+  /** Returns the base url of the server (e.g. "http://127.0.0.1:8080")
+   */
+    public String getURL(){
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+
+  //**************************************************************************
+  //** getLoginURL
+  //**************************************************************************
+  /** Returns the token endpoint (see Connection "loginURL" option)
+   */
+    public String getLoginURL(){
+        return getURL() + "/{tenant}/oauth2/v2.0/token";
+    }
+
+
+  //**************************************************************************
+  //** getGraphURL
+  //**************************************************************************
+  /** Returns the base url of the graph API (see Connection "graphURL" option)
+   */
+    public String getGraphURL(){
+        return getURL() + "/v1.0";
+    }
+
+
+  //**************************************************************************
+  //** getDrives
+  //**************************************************************************
+  /** Returns all the drives in all the sites
+   */
+    public Collection<Drive> getDrives(){
+        return Collections.unmodifiableCollection(drives.values());
+    }
+
+
+  //**************************************************************************
+  //** getUsers
+  //**************************************************************************
+    public Users getUsers(){
+        return users;
+    }
+
+
+  //**************************************************************************
+  //** getStats
+  //**************************************************************************
+  /** Returns request and fault counts
+   */
+    public JSONObject getStats(){
+        JSONObject json = new JSONObject();
+        json.set("requests", requests.sum());
+        json.set("throttled", throttled.sum());
+        json.set("dropped", dropped.sum());
+        json.set("bytesSent", bytesSent.sum());
+        json.set("bytesReceived", bytesReceived.sum());
+        json.set("uploadSessions", uploads.size());
+        json.set("notModified", notModified.sum());
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** handle
+  //**************************************************************************
+    private void handle(HttpExchange exchange) throws IOException {
+        try{
+            requests.increment();
+            String method = exchange.getRequestMethod();
+            String path = decode(exchange.getRequestURI().getRawPath());
+            HashMap<String, String> query = getQuery(exchange.getRequestURI().getRawQuery());
+            byte[] body;
+            try (InputStream input = exchange.getRequestBody()){
+                body = input.readAllBytes();
+            }
+            bytesReceived.add(body.length);
+
+
+          //Return access token
+            if (path.endsWith("/oauth2/v2.0/token")){
+                faults.delay();
+                JSONObject json = new JSONObject();
+                json.set("token_type", "Bearer");
+                json.set("expires_in", tokenLifetime);
+                json.set("ext_expires_in", tokenLifetime);
+                json.set("access_token", "mock-" + nextID.incrementAndGet());
+                send(exchange, new Response(200, json), false);
+                return;
+            }
+
+
+          //Inject faults
+            faults.delay();
+            if (faults.isThrottled()){
+                throttled.increment();
+                send(exchange, getThrottledResponse(), false);
+                return;
+            }
+            boolean drop = faults.isDropped();
+            if (drop) dropped.increment();
+
+
+          //Generate response
+            Response response;
+            if (path.startsWith("/v1.0/")){
+                String auth = exchange.getRequestHeaders().getFirst("Authorization");
+                if (auth==null || !auth.startsWith("Bearer ")){
+                    response = error(401, "InvalidAuthenticationToken", "Access token is empty.");
+                }
+                else{
+                    HashMap<String, String> headers = new HashMap<>();
+                    for (Map.Entry<String, List<String>> entry : exchange.getRequestHeaders().entrySet()){
+                        headers.put(entry.getKey().toLowerCase(), entry.getValue().get(0));
+                    }
+                    response = route(method, path.substring(5), query, headers, body);
+                }
+            }
+            else if (path.startsWith("/content/") && method.equals("GET")){
+                download(exchange, path.substring(9), drop);
+                return;
+            }
+            else if (path.startsWith("/upload/")){
+                response = upload(method, path.substring(8),
+                exchange.getRequestHeaders().getFirst("Content-Range"), body);
+            }
+            else{
+                response = error(404, "itemNotFound", "Resource not found");
+            }
+
+            send(exchange, response, drop);
+        }
+        catch(IOException e){
+          //Client disconnected or response was dropped. Let the server close
+          //the connection. Otherwise, a partial response won't be detected.
+            throw e;
+        }
+        catch(Throwable e){
+            console.log(e);
+            try{
+                send(exchange, error(500, "generalException", e.getMessage()), false);
+            }
+            catch(Exception ex){}
+        }
+        finally{
+            exchange.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** route
+  //**************************************************************************
+  /** Returns a response for a graph request
+   *  @param path Path relative to the graph end-point (e.g. "/users")
+   *  @param headers Request headers. Keys are lowercase.
+   */
+    private Response route(String method, String path, HashMap<String, String> query,
+        HashMap<String, String> headers, byte[] body) throws Exception {
+
+        String[] arr = path.substring(1).split("/");
+        Response response = null;
+        switch (arr[0]){
+            case "$batch":
+                if (!method.equals("POST")) break;
+                return batch(new JSONObject(new String(body, UTF_8)));
+            case "sites":
+                response = sites(method, arr, query);
+                break;
+            case "drives":
+                response = drives(method, path, arr, query, headers, body);
+                break;
+            case "users":
+                response = users(method, path, arr, query, headers, body);
+                break;
+        }
+        if (response==null){
+            return error(400, "invalidRequest", "Unsupported request: " + method + " " + path);
+        }
+        String select = query.get("$select");
+        if (select!=null && response.json!=null && response.status<300){
+            Response projection = new Response(response.status,
+                select(response.json, select, query.get("$expand")));
+            projection.headers.putAll(response.headers);
+            response = projection;
+        }
+
+
+      //Add an ETag to individual records and return a 304 if the record is
+      //unchanged (see If-None-Match)
+        if (method.equals("GET") && response.status==200 && response.json!=null &&
+            !response.json.has("value")){
+            String eTag = "W/\"" + Integer.toHexString(response.json.toString().hashCode()) + "\"";
+            if (eTag.equals(headers.get("if-none-match"))){
+                notModified.increment();
+                return new Response(304, null);
+            }
+            response.headers.put("ETag", eTag);
+        }
+        return response;
+    }
+
+
+  //**************************************************************************
+  //** select
+  //**************************************************************************
+  /** Used to project a record, or the records in a collection, using the
+   *  fields in a $select parameter. The "id" and "@odata" annotations are
+   *  always returned, as are any expanded properties.
+   */
+    private static JSONObject select(JSONObject json, String select, String expand){
+        HashSet<String> fields = new HashSet<>();
+        fields.add("id");
+        for (String field : select.split(",")) fields.add(field.trim());
+        if (expand!=null){
+            for (String field : expand.split(",")){
+                int idx = field.indexOf("(");
+                fields.add((idx<0 ? field : field.substring(0, idx)).trim());
+            }
+        }
+
+        JSONArray values = json.get("value").toJSONArray();
+        if (values==null) return project(json, fields);
+
+        JSONArray arr = new JSONArray();
+        for (JSONValue v : values) arr.add(project(v.toJSONObject(), fields));
+        JSONObject out = new JSONObject();
+        for (String key : json.keySet()){
+            out.set(key, key.equals("value") ? arr : json.get(key));
+        }
+        return out;
+    }
+
+    private static JSONObject project(JSONObject json, Set<String> fields){
+        JSONObject out = new JSONObject();
+        for (String key : json.keySet()){
+            if (fields.contains(key) || key.startsWith("@odata.")){
+                out.set(key, json.get(key));
+            }
+        }
+        return out;
+    }
+
+
+  //**************************************************************************
+  //** batch
+  //**************************************************************************
+  /** Used to process a json batch. Each request in the batch may be
+   *  throttled independently.
+   */
+    private Response batch(JSONObject payload) throws Exception {
+        JSONArray requests = payload.get("requests").toJSONArray();
+        if (requests==null || requests.length()>20){
+            return error(400, "invalidRequest", "A batch must contain 1-20 requests");
+        }
+
+        JSONArray responses = new JSONArray();
+        for (JSONValue v : requests){
+            JSONObject request = v.toJSONObject();
+            String method = request.get("method").toString();
+            String url = request.get("url").toString();
+            if (!url.startsWith("/")) url = "/" + url;
+
+            HashMap<String, String> headers = new HashMap<>();
+            JSONObject h = request.get("headers").toJSONObject();
+            if (h!=null){
+                for (String key : h.keySet()) headers.put(key.toLowerCase(), h.get(key).toString());
+            }
+            JSONValue body = request.get("body");
+            byte[] b = body.isNull() ? new byte[0] : body.toString().getBytes(UTF_8);
+
+
+            Response response;
+            if (faults.isThrottled()){
+                throttled.increment();
+                response = getThrottledResponse();
+            }
+            else{
+                int idx = url.indexOf("?");
+                String path = decode(idx<0 ? url : url.substring(0, idx));
+                HashMap<String, String> query = getQuery(idx<0 ? null : url.substring(idx+1));
+                response = route(method, path, query, headers, b);
+            }
+
+
+            JSONObject json = new JSONObject();
+            json.set("id", request.get("id"));
+            json.set("status", response.status);
+            JSONObject responseHeaders = new JSONObject();
+            for (Map.Entry<String, String> entry : response.headers.entrySet()){
+                responseHeaders.set(entry.getKey(), entry.getValue());
+            }
+            json.set("headers", responseHeaders);
+            if (response.json!=null) json.set("body", response.json);
+            responses.add(json);
+        }
+
+        JSONObject json = new JSONObject();
+        json.set("responses", responses);
+        return new Response(200, json);
+    }
+
+
+  //**************************************************************************
+  //** sites
+  //**************************************************************************
+  /** Supports "/sites/{host}:/sites/{name}", "/sites/{id}", and
+   *  "/sites/{id}/drives". Drives can be included in a site using
+   *  "$expand=drives" with an optional nested $select.
+   */
+    private Response sites(String method, String[] arr, HashMap<String, String> query){
+        if (!method.equals("GET") || arr.length<2) return error(400, "invalidRequest", "Unsupported request");
+
+        Site site = null;
+        if (arr[1].endsWith(":")){
+            if (arr.length==4 && arr[2].equals("sites")){
+                for (Site s : sites){
+                    if (s.name.equalsIgnoreCase(arr[3])) site = s;
+                }
+            }
+            if (site==null) return error(404, "itemNotFound", "Requested site could not be found");
+            return new Response(200, getSite(site, query.get("$expand")));
+        }
+
+        for (Site s : sites){
+            if (s.id.equals(arr[1])) site = s;
+        }
+        if (site==null) return error(404, "itemNotFound", "Requested site could not be found");
+        if (arr.length==2) return new Response(200, getSite(site, query.get("$expand")));
+        if (arr.length==3 && arr[2].equals("drives")){
+            JSONArray values = new JSONArray();
+            for (Drive drive : site.drives) values.add(drive.toJson());
+            JSONObject json = new JSONObject();
+            json.set("value", values);
+            return new Response(200, json);
+        }
+        return error(400, "invalidRequest", "Unsupported request");
+    }
+
+
+  //**************************************************************************
+  //** getSite
+  //**************************************************************************
+  /** Returns a site record. Drives are included if requested using an
+   *  $expand parameter (e.g. "drives($select=id,name)").
+   */
+    private static JSONObject getSite(Site site, String expand){
+        JSONObject json = site.toJson();
+        if (expand==null || !expand.startsWith("drives")) return json;
+
+        String select = null;
+        int idx = expand.indexOf("($select=");
+        if (idx>-1) select = expand.substring(idx+9, expand.lastIndexOf(")"));
+
+        JSONArray drives = new JSONArray();
+        for (Drive drive : site.drives){
+            JSONObject d = drive.toJson();
+            drives.add(select==null ? d : select(d, select, null));
+        }
+        json.set("drives", drives);
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** drives
+  //**************************************************************************
+  /** Supports items, children, path-based addressing, delta queries, simple
+   *  uploads, and upload sessions. Examples:
+   <pre>
+    /drives/{id}
+    /drives/{id}/root
+    /drives/{id}/root/children
+    /drives/{id}/root/delta
+    /drives/{id}/root:/{path}
+    /drives/{id}/root:/{path}:/children
+    /drives/{id}/root:/{path}:/content
+    /drives/{id}/root:/{path}:/createUploadSession
+    /drives/{id}/items/{id}
+    /drives/{id}/items/{id}/children
+    /drives/{id}/items/{id}/content
+    /drives/{id}/items/{id}/createUploadSession
+    /drives/{id}/items/{id}:/{name}:/content
+    /drives/{id}/items/{id}:/{name}:/createUploadSession
+   </pre>
+   */
+    private Response drives(String method, String path, String[] arr,
+        HashMap<String, String> query, HashMap<String, String> headers, byte[] body){
+
+        if (arr.length<2) return error(400, "invalidRequest", "Unsupported request");
+        Drive drive = drives.get(arr[1]);
+        if (drive==null) return error(404, "itemNotFound", "Drive not found");
+        String rest = path.substring(("/drives/" + arr[1]).length());
+        if (rest.isEmpty()) return new Response(200, drive.toJson());
+
+
+      //Parse url. Find the item ID, item path, and action.
+        String itemID = null;
+        String itemPath = null;
+        String name = null;
+        String action = null;
+        if (rest.startsWith("/root:")){
+            itemPath = rest.substring(6);
+            if (itemPath.endsWith(":")) itemPath = itemPath.substring(0, itemPath.length()-1);
+            int idx = itemPath.lastIndexOf(":/");
+            if (idx>-1){
+                action = itemPath.substring(idx+2);
+                itemPath = itemPath.substring(0, idx);
+            }
+        }
+        else if (rest.startsWith("/root")){
+            itemID = "root";
+            if (rest.length()>5) action = rest.substring(6);
+        }
+        else if (rest.startsWith("/items/")){
+            itemID = rest.substring(7);
+            int idx = itemID.indexOf(":/");
+            if (idx>-1){
+                name = itemID.substring(idx+2);
+                itemID = itemID.substring(0, idx);
+                idx = name.lastIndexOf(":/");
+                if (idx<0) return error(400, "invalidRequest", "Unsupported request");
+                action = name.substring(idx+2);
+                name = name.substring(0, idx);
+            }
+            else{
+                idx = itemID.indexOf("/");
+                if (idx>-1){
+                    action = itemID.substring(idx+1);
+                    itemID = itemID.substring(0, idx);
+                }
+            }
+        }
+        else{
+            return error(400, "invalidRequest", "Unsupported request");
+        }
+        String downloadUrl = getURL() + "/content/";
+
+
+      //Upload a file or create an upload session. The file doesn't have to
+      //exist. Uploaded bytes are discarded.
+        boolean put = "content".equals(action) && method.equals("PUT");
+        if ("createUploadSession".equals(action) || put){
+            if (!put && !method.equals("POST")) return error(405, "invalidRequest", "Method not allowed");
+            String parentID;
+            if (itemPath!=null){
+                String parentPath = itemPath.contains("/") ? itemPath.substring(0, itemPath.lastIndexOf("/")) : "";
+                name = itemPath.substring(itemPath.lastIndexOf("/")+1);
+                JSONObject parent = parentPath.isEmpty() ?
+                drive.getItem("root", null) : drive.getItemByPath(parentPath, null);
+                parentID = parent==null ? null : parent.get("id").toString();
+            }
+            else if (name!=null){
+                parentID = drive.isFolder(itemID) || itemID.equals("root") ?
+                drive.getItem(itemID, null).get("id").toString() : null;
+            }
+            else{
+                JSONObject item = drive.getItem(itemID, null);
+                if (item==null || item.has("folder")) parentID = null;
+                else{
+                    parentID = item.get("parentReference").get("id").toString();
+                    name = item.get("name").toString();
+                }
+            }
+            if (parentID==null) return error(404, "itemNotFound", "Item not found");
+            if (put){
+                if (body.length>4*1024*1024){
+                    return error(413, "invalidRequest", "The request is too large. Use an upload session.");
+                }
+                Upload upload = new Upload(drive.getID(), parentID, name);
+                upload.size = body.length;
+                return new Response(201, upload.getItem(Long.toString(nextID.incrementAndGet())));
+            }
+            return createUploadSession(drive.getID(), parentID, name);
+        }
+
+
+        if (!method.equals("GET")) return error(405, "invalidRequest", "Method not allowed");
+
+
+      //Get item
+        JSONObject item = itemPath==null ?
+        drive.getItem(itemID, downloadUrl) : drive.getItemByPath(itemPath, downloadUrl);
+        if (item==null) return error(404, "itemNotFound", "The resource could not be found.");
+        itemID = item.get("id").toString();
+        if (action==null) return new Response(200, item);
+
+
+      //Get children
+        int limit = getPageSize(query, headers);
+        if (action.equals("children")){
+            int offset = getInt(query.get("$skiptoken"), 0);
+            ArrayList<JSONObject> items = drive.getChildren(itemID, offset, limit+1, downloadUrl);
+            String nextLink = getGraphURL() + "/drives/" + drive.getID() + "/items/" +
+            itemID + "/children?$top=" + limit + "&$skiptoken=" + (offset+limit);
+            return getPage(items, limit, nextLink, null);
+        }
+
+
+      //Get changes. Items are returned in pages, followed by a delta link.
+      //The drive never changes so delta links return an empty page.
+        if (action.equals("delta")){
+            String deltaLink = getGraphURL() + "/drives/" + drive.getID() +
+            "/root/delta?token=" + Long.toString(System.currentTimeMillis(), 36);
+            String token = query.get("token");
+            if (token!=null) return getPage(new ArrayList<>(), limit, null, deltaLink);
+
+            String after = query.get("$skiptoken");
+            ArrayList<JSONObject> items = drive.getDelta(after, limit+1, downloadUrl);
+            String nextLink = null;
+            if (items.size()>limit){
+                nextLink = getGraphURL() + "/drives/" + drive.getID() +
+                "/root/delta?$top=" + limit + "&$skiptoken=" + items.get(limit-1).get("id");
+            }
+            return getPage(items, limit, nextLink, deltaLink);
+        }
+
+        return error(400, "invalidRequest", "Unsupported request");
+    }
+
+
+  //**************************************************************************
+  //** users
+  //**************************************************************************
+  /** Supports users, calendars, events, and calendar delta queries. Examples:
+   <pre>
+    /users
+    /users/{id}
+    /users/{id}/calendars
+    /users/{id}/calendar
+    /users/{id}/calendars/{id}
+    /users/{id}/calendars/{id}/events
+    /users/{id}/calendars/{id}/events/{id}
+    /users/{id}/calendars/{id}/calendarView/delta
+   </pre>
+   */
+    private Response users(String method, String path, String[] arr,
+        HashMap<String, String> query, HashMap<String, String> headers,
+        byte[] body) throws Exception {
+
+        int limit = getPageSize(query, headers);
+
+
+      //Get users
+        if (arr.length==1){
+            if (!method.equals("GET")) return error(405, "invalidRequest", "Method not allowed");
+            int offset = getInt(query.get("$skiptoken"), 0);
+            String nextLink = getGraphURL() + "/users?$top=" + limit + "&$skiptoken=" + (offset+limit);
+            return getPage(users.getUsers(offset, limit+1), limit, nextLink, null);
+        }
+
+
+      //Get user
+        String userID = arr[1];
+        JSONObject user = users.getUser(userID);
+        if (user==null) return error(404, "Request_ResourceNotFound", "Resource '" + userID + "' does not exist");
+        if (arr.length==2){
+            if (!method.equals("GET")) return error(405, "invalidRequest", "Method not allowed");
+            return new Response(200, user);
+        }
+
+
+      //Get calendars
+        if (arr.length==3 && arr[2].equals("calendars")){
+            JSONObject json = new JSONObject();
+            JSONArray values = new JSONArray();
+            for (JSONObject calendar : users.getCalendars(userID)) values.add(calendar);
+            json.set("value", values);
+            return new Response(200, json);
+        }
+
+
+      //Get calendar ID
+        String calendarID;
+        int idx;
+        if (arr[2].equals("calendar")){
+            calendarID = "CAL0";
+            idx = 3;
+        }
+        else if (arr[2].equals("calendars") && arr.length>3){
+            calendarID = arr[3];
+            idx = 4;
+        }
+        else{
+            return error(400, "invalidRequest", "Unsupported request");
+        }
+        JSONObject calendar = users.getCalendar(userID, calendarID);
+        if (calendar==null) return error(404, "ErrorItemNotFound", "The specified object was not found in the store.");
+        if (arr.length==idx){
+            return new Response(200, calendar);
+        }
+
+
+      //Get events
+        String resource = arr[idx];
+        String basePath = "/users/" + userID + "/calendars/" + calendarID;
+        if (resource.equals("events")){
+            if (arr.length==idx+1){
+                if (method.equals("GET")){
+                    int offset = getInt(query.get("$skiptoken"), 0);
+                    String nextLink = getGraphURL() + basePath + "/events?$top=" + limit + "&$skiptoken=" + (offset+limit);
+                    return getPage(users.getEvents(userID, calendarID, offset, limit+1), limit, nextLink, null);
+                }
+                if (method.equals("POST")){
+                    JSONObject event = users.createEvent(userID, calendarID, new JSONObject(new String(body, UTF_8)));
+                    return new Response(201, event);
+                }
+                return error(405, "invalidRequest", "Method not allowed");
+            }
+
+            String eventID = arr[idx+1];
+            JSONObject event;
+            switch (method){
+                case "GET":
+                    event = users.getEvent(userID, calendarID, eventID);
+                    break;
+                case "PATCH":
+                    event = users.updateEvent(userID, calendarID, eventID, new JSONObject(new String(body, UTF_8)));
+                    break;
+                case "DELETE":
+                    if (users.deleteEvent(userID, calendarID, eventID)) return new Response(204, null);
+                    event = null;
+                    break;
+                default:
+                    return error(405, "invalidRequest", "Method not allowed");
+            }
+            if (event==null) return error(404, "ErrorItemNotFound", "The specified object was not found in the store.");
+            return new Response(200, event);
+        }
+
+
+      //Get changes. Events are returned in pages, followed by a delta link.
+        if (resource.equals("calendarView") && arr.length==idx+2 && arr[idx+1].equals("delta")){
+            String deltaLink = getGraphURL() + basePath + "/calendarView/delta?$deltatoken=" +
+            Long.toString(System.currentTimeMillis(), 36);
+            if (query.containsKey("$deltatoken")) return getPage(new ArrayList<>(), limit, null, deltaLink);
+
+            int offset = getInt(query.get("$skiptoken"), 0);
+            String nextLink = getGraphURL() + basePath + "/calendarView/delta?$skiptoken=" + (offset+limit);
+            return getPage(users.getEvents(userID, calendarID, offset, limit+1), limit, nextLink, deltaLink);
+        }
+
+        return error(400, "invalidRequest", "Unsupported request");
+    }
+
+
+  //**************************************************************************
+  //** download
+  //**************************************************************************
+  /** Used to stream the contents of a file. Supports range requests.
+   *  @param path "{driveID}/{itemID}"
+   *  @param drop If true, the connection is closed half way through the
+   *  response
+   */
+    private void download(HttpExchange exchange, String path, boolean drop) throws IOException {
+        int idx = path.indexOf("/");
+        Drive drive = idx<0 ? null : drives.get(path.substring(0, idx));
+        String itemID = idx<0 ? null : path.substring(idx+1);
+        long size = drive==null ? -1 : drive.getSize(itemID);
+        if (size<0){
+            send(exchange, error(404, "itemNotFound", "The resource could not be found."), false);
+            return;
+        }
+
+
+      //Parse range
+        long start = 0;
+        long end = size-1;
+        int status = 200;
+        Headers headers = exchange.getResponseHeaders();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range!=null && range.startsWith("bytes=")){
+            String[] arr = range.substring(6).split("-", -1);
+            try{
+                start = Long.parseLong(arr[0].trim());
+                if (arr.length>1 && !arr[1].trim().isEmpty()){
+                    end = Math.min(Long.parseLong(arr[1].trim()), size-1);
+                }
+            }
+            catch(NumberFormatException e){
+                start = size;
+            }
+            if (start>=size || start>end){
+                headers.set("Content-Range", "bytes */" + size);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            status = 206;
+            headers.set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+
+
+      //Send file
+        long length = end-start+1;
+        headers.set("Content-Type", "application/octet-stream");
+        headers.set("Accept-Ranges", "bytes");
+        exchange.sendResponseHeaders(status, length);
+        long limit = drop ? length/2 : length;
+        byte[] b = new byte[64*1024];
+        long startTime = System.nanoTime();
+        try (OutputStream output = exchange.getResponseBody()){
+            long sent = 0;
+            while (sent<limit){
+                int n = (int) Math.min(b.length, limit-sent);
+                Drive.read(itemID, start+sent, b, n);
+                output.write(b, 0, n);
+                sent+=n;
+                bytesSent.add(n);
+                faults.pace(sent, startTime);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** createUploadSession
+  //**************************************************************************
+    private Response createUploadSession(String driveID, String parentID, String name){
+        String id = Long.toString(nextID.incrementAndGet());
+        Upload upload = new Upload(driveID, parentID, name);
+        uploads.put(id, upload);
+
+        JSONObject json = upload.getStatus();
+        json.set("uploadUrl", getURL() + "/upload/" + id);
+        return new Response(200, json);
+    }
+
+
+  //**************************************************************************
+  //** upload
+  //**************************************************************************
+  /** Used to process requests sent to an upload url. Uploaded bytes are
+   *  counted and discarded. The drive is not updated.
+   *  @param id Upload session ID
+   */
+    private Response upload(String method, String id, String contentRange, byte[] body){
+        Upload upload = uploads.get(id);
+        if (upload==null) return error(404, "itemNotFound", "The upload session was not found");
+
+        if (method.equals("GET")){
+            return new Response(200, upload.getStatus());
+        }
+        if (method.equals("DELETE")){
+            uploads.remove(id);
+            return new Response(204, null);
+        }
+        if (!method.equals("PUT")) return error(405, "invalidRequest", "Method not allowed");
+
+
+      //Parse range (e.g. "bytes 0-327679/1048576")
+        long start, end, size;
+        try{
+            String[] arr = contentRange.substring(6).split("[-/]");
+            start = Long.parseLong(arr[0]);
+            end = Long.parseLong(arr[1]);
+            size = Long.parseLong(arr[2]);
+        }
+        catch(Exception e){
+            return error(400, "invalidRequest", "Invalid Content-Range header");
+        }
+        if (end-start+1!=body.length){
+            return error(400, "invalidRequest", "Content-Range doesn't match the request body");
+        }
+
+
+      //Update session
+        synchronized(upload){
+            if (start!=upload.next || (upload.size>-1 && upload.size!=size) || end>=size){
+                return error(416, "invalidRange", "The uploaded fragment overlaps with data that has already been received");
+            }
+            upload.size = size;
+            upload.next = end+1;
+            if (upload.next<size) return new Response(202, upload.getStatus());
+        }
+
+
+      //Return new item
+        uploads.remove(id);
+        return new Response(201, upload.getItem(id));
+    }
+
+
+  //**************************************************************************
+  //** send
+  //**************************************************************************
+  /** Used to send a response. Json is compressed if the client sent an
+   *  Accept-Encoding header with gzip or deflate.
+   *  @param drop If true, the connection is closed half way through the
+   *  response
+   */
+    private void send(HttpExchange exchange, Response response, boolean drop) throws IOException {
+        Headers headers = exchange.getResponseHeaders();
+        for (Map.Entry<String, String> entry : response.headers.entrySet()){
+            headers.set(entry.getKey(), entry.getValue());
+        }
+        if (response.json==null){
+            exchange.sendResponseHeaders(response.status, -1);
+            return;
+        }
+        byte[] b = response.json.toString().getBytes(UTF_8);
+        headers.set("Content-Type", "application/json");
+        String encoding = compression ? getEncoding(exchange) : null;
+        if (encoding!=null){
+            ByteArrayOutputStream bas = new ByteArrayOutputStream(b.length/4+64);
+            try (OutputStream out = encoding.equals("gzip") ?
+                new java.util.zip.GZIPOutputStream(bas) :
+                new java.util.zip.DeflaterOutputStream(bas)){
+                out.write(b);
+            }
+            b = bas.toByteArray();
+            headers.set("Content-Encoding", encoding);
+        }
+        exchange.sendResponseHeaders(response.status, b.length);
+        try (OutputStream output = exchange.getResponseBody()){
+            int n = drop ? b.length/2 : b.length;
+            output.write(b, 0, n);
+            bytesSent.add(n);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getEncoding
+  //**************************************************************************
+  /** Returns the compression requested by the client or null
+   */
+    private static String getEncoding(HttpExchange exchange){
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (accept==null) return null;
+        accept = accept.toLowerCase();
+        if (accept.contains("gzip")) return "gzip";
+        if (accept.contains("deflate")) return "deflate";
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** getPage
+  //**************************************************************************
+  /** Returns a page of records
+   *  @param items Records in the page plus the first record in the next page,
+   *  if any
+   *  @param nextLink Returned if there are more records
+   *  @param deltaLink Returned in the last page. Optional.
+   */
+    private Response getPage(List<JSONObject> items, int limit, String nextLink, String deltaLink){
+        if (items==null) return error(404, "itemNotFound", "The resource could not be found.");
+        JSONArray values = new JSONArray();
+        for (int i=0; i<Math.min(items.size(), limit); i++) values.add(items.get(i));
+        JSONObject json = new JSONObject();
+        if (items.size()>limit) json.set("@odata.nextLink", nextLink);
+        else if (deltaLink!=null) json.set("@odata.deltaLink", deltaLink);
+        json.set("value", values);
+        return new Response(200, json);
+    }
+
+
+  //**************************************************************************
+  //** getPageSize
+  //**************************************************************************
+  /** Returns the page size requested via the "$top" parameter or the
+   *  "Prefer: odata.maxpagesize" header
+   */
+    private int getPageSize(HashMap<String, String> query, HashMap<String, String> headers){
+        int size = getInt(query.get("$top"), -1);
+        if (size<1){
+            String prefer = headers.get("prefer");
+            if (prefer!=null){
+                int idx = prefer.indexOf("odata.maxpagesize=");
+                if (idx>-1) size = getInt(prefer.substring(idx+18).split("[,;\\s]")[0], -1);
+            }
+        }
+        if (size<1) size = pageSize;
+        return Math.min(size, MAX_PAGE_SIZE);
+    }
+
+
+  //**************************************************************************
+  //** getThrottledResponse
+  //**************************************************************************
+    private Response getThrottledResponse(){
+        Response response = error(429, "TooManyRequests", "Too many requests");
+        response.headers.put("Retry-After", Integer.toString(faults.retryAfter));
+        return response;
+    }
+
+
+  //**************************************************************************
+  //** error
+  //**************************************************************************
+    private static Response error(int status, String code, String message){
+        JSONObject error = new JSONObject();
+        error.set("code", code);
+        error.set("message", message);
+        JSONObject json = new JSONObject();
+        json.set("error", error);
+        return new Response(status, json);
+    }
+
+
+  //**************************************************************************
+  //** getQuery
+  //**************************************************************************
+    private static HashMap<String, String> getQuery(String query){
+        HashMap<String, String> params = new HashMap<>();
+        if (query==null) return params;
+        for (String param : query.split("&")){
+            if (param.isEmpty()) continue;
+            int idx = param.indexOf("=");
+            if (idx<0) params.put(decode(param), "");
+            else params.put(decode(param.substring(0, idx)), decode(param.substring(idx+1)));
+        }
+        return params;
+    }
+
+
+  //**************************************************************************
+  //** decode
+  //**************************************************************************
+  /** Used to decode a url path or parameter. Unlike URLDecoder, plus signs
+   *  are not converted to spaces.
+   */
+    private static String decode(String str){
+        try{
+            return URLDecoder.decode(str.replace("+", "%2B"), "UTF-8");
+        }
+        catch(Exception e){
+            return str;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getInt
+  //**************************************************************************
+    private static int getInt(JSONObject config, String key, int defaultValue){
+        Integer i = config.get(key).toInteger();
+        return i==null ? defaultValue : i;
+    }
+
+    private static int getInt(String str, int defaultValue){
+        if (str==null) return defaultValue;
+        try{
+            return Integer.parseInt(str.trim());
+        }
+        catch(NumberFormatException e){
+            return defaultValue;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getLong
+  //**************************************************************************
+    private static long getLong(JSONObject config, String key, long defaultValue){
+        Long l = config.get(key).toLong();
+        return l==null ? defaultValue : l;
+    }
+
+
+  //**************************************************************************
+  //** getList
+  //**************************************************************************
+  /** Returns a list of names from an array. Numbers are converted into a
+   *  list of generated names.
+   */
+    private static ArrayList<String> getList(JSONObject config, String key, String defaultValue){
+        ArrayList<String> list = new ArrayList<>();
+        JSONArray arr = config.get(key).toJSONArray();
+        if (arr!=null){
+            for (JSONValue v : arr) list.add(v.toString());
+        }
+        else{
+            Integer n = config.get(key).toInteger();
+            if (n==null) list.add(defaultValue);
+            else for (int i=0; i<n; i++) list.add(defaultValue + " " + i);
+        }
+        return list;
+    }
+
+
+  //**************************************************************************
+  //** main
+  //**************************************************************************
+  /** Used to start the server from the command line. Accepts an optional
+   *  path to a config file.
+   */
+    public static void main(String[] args) throws Exception {
+        JSONObject config = null;
+        if (args.length>0){
+            config = new JSONObject(new String(java.nio.file.Files.readAllBytes(
+            java.nio.file.Paths.get(args[0])), UTF_8));
+        }
+        GraphServer server = new GraphServer(config);
+        server.start();
+        console.log("loginURL: " + server.getLoginURL());
+        console.log("graphURL: " + server.getGraphURL());
+    }
+
+
+  //**************************************************************************
+  //** Response Class
+  //**************************************************************************
+    private static class Response {
+        private final int status;
+        private final JSONObject json;
+        private final LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+
+        private Response(int status, JSONObject json){
+            this.status = status;
+            this.json = json;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Site Class
+  //**************************************************************************
+    private static class Site {
+        private final String id;
+        private final String name;
+        private final ArrayList<Drive> drives = new ArrayList<>();
+
+        private Site(String id, String name){
+            this.id = id;
+            this.name = name;
+        }
+
+        private JSONObject toJson(){
+            JSONObject json = new JSONObject();
+            json.set("id", id);
+            json.set("name", name);
+            json.set("displayName", name);
+            return json;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Upload Class
+  //**************************************************************************
+  /** Used to track the state of an upload session
+   */
+    private static class Upload {
+        private final String driveID;
+        private final String parentID;
+        private final String name;
+        private long size = -1;
+        private long next = 0;
+
+        private Upload(String driveID, String parentID, String name){
+            this.driveID = driveID;
+            this.parentID = parentID;
+            this.name = name;
+        }
+
+        private synchronized JSONObject getStatus(){
+            JSONArray ranges = new JSONArray();
+            ranges.add(next + "-" + (size>-1 ? size-1 : ""));
+            JSONObject json = new JSONObject();
+            json.set("expirationDateTime", java.time.Instant.now().plusSeconds(3600).toString());
+            json.set("nextExpectedRanges", ranges);
+            return json;
+        }
+
+      /** Returns the item created by the upload
+       */
+        private synchronized JSONObject getItem(String id){
+            JSONObject parent = new JSONObject();
+            parent.set("driveId", driveID);
+            parent.set("id", parentID);
+            JSONObject file = new JSONObject();
+            file.set("mimeType", "application/octet-stream");
+            JSONObject json = new JSONObject();
+            json.set("id", "U" + id);
+            json.set("name", name);
+            json.set("size", size);
+            json.set("eTag", "\"{U" + id + "},1\"");
+            json.set("cTag", "\"c:{U" + id + "},1\"");
+            json.set("parentReference", parent);
+            json.set("file", file);
+            return json;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Faults Class
+  //**************************************************************************
+  /** Used to inject latency, throttling, and dropped connections
+   */
+    private static class Faults {
+        private final int latency;
+        private final int jitter;
+        private final double throttleRate;
+        private final int retryAfter;
+        private final long burstInterval;
+        private final long burstDuration;
+        private final double dropRate;
+        private final long bytesPerSecond;
+        private final long startTime = System.currentTimeMillis();
+
+        private Faults(JSONObject config){
+            if (config==null) config = new JSONObject();
+            latency = getInt(config, "latency", 0);
+            jitter = getInt(config, "jitter", 0);
+            Double d = config.get("throttleRate").toDouble();
+            throttleRate = d==null ? 0 : d;
+            retryAfter = getInt(config, "retryAfter", 1);
+            burstInterval = getLong(config, "burstInterval", 0)*1000;
+            burstDuration = getLong(config, "burstDuration", 0)*1000;
+            d = config.get("dropRate").toDouble();
+            dropRate = d==null ? 0 : d;
+            bytesPerSecond = getLong(config, "bytesPerSecond", 0);
+        }
+
+      /** Used to add latency to a response
+       */
+        private void delay() throws InterruptedException {
+            int delay = latency;
+            if (jitter>0) delay += ThreadLocalRandom.current().nextInt(jitter+1);
+            if (delay>0) Thread.sleep(delay);
+        }
+
+      /** Returns true if a request should be rejected with a 429
+       */
+        private boolean isThrottled(){
+            if (burstInterval>0 && burstDuration>0){
+                long elapsed = System.currentTimeMillis()-startTime;
+                if (elapsed%burstInterval>=burstInterval-burstDuration) return true;
+            }
+            return throttleRate>0 && ThreadLocalRandom.current().nextDouble()<throttleRate;
+        }
+
+      /** Returns true if a response should be cut off
+       */
+        private boolean isDropped(){
+            return dropRate>0 && ThreadLocalRandom.current().nextDouble()<dropRate;
+        }
+
+      /** Used to limit download speed
+       *  @param sent Number of bytes sent since the start time
+       *  @param startTime Start time, in nanoseconds
+       */
+        private void pace(long sent, long startTime) throws IOException {
+            if (bytesPerSecond<=0) return;
+            long expected = sent*1000000000L/bytesPerSecond;
+            long delay = (expected-(System.nanoTime()-startTime))/1000000;
+            if (delay>0){
+                try{
+                    Thread.sleep(delay);
+                }
+                catch(InterruptedException e){
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package javaxt.azure.graph.mock;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javaxt.json.*;
+
+
+//******************************************************************************
+//**  Users
+//******************************************************************************
+/**
+ *   Used to represent a synthetic directory of users with calendars and
+ *   events. Like the Drive, users and events are derived from their IDs.
+ *   Events that are created, updated, or deleted are tracked in memory so
+ *   that subsequent requests reflect the changes.
+ *
+ ******************************************************************************/
+
+public class Users {
+
+    private final int users;
+    private final int calendars;
+    private final int events;
+    private final String domain;
+    private final ConcurrentHashMap<String, JSONObject> changes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, List<String>> created = new ConcurrentHashMap<>();
+    private final AtomicLong nextID = new AtomicLong();
+
+    private static final JSONObject DELETED = new JSONObject();
+    private static final String[] UPDATABLE_KEYS = new String[]{
+        "subject", "body", "categories", "start", "end", "location",
+        "attendees", "isAllDay", "showAs", "importance", "sensitivity"
+    };
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param users Number of users in the directory
+   *  @param calendars Number of calendars per user
+   *  @param events Number of events per calendar
+   *  @param domain Email domain (e.g. "contoso.com")
+   */
+    public Users(int users, int calendars, int events, String domain){
+        this.users = Math.max(users, 0);
+        this.calendars = Math.max(calendars, 0);
+        this.events = Math.max(events, 0);
+        this.domain = domain;
+    }
+
+
+  //**************************************************************************
+  //** getCount
+  //**************************************************************************
+  /** Returns the number of users in the directory
+   */
+    public int getCount(){
+        return users;
+    }
+
+
+  //**************************************************************************
+  //** getUsers
+  //**************************************************************************
+  /** Returns a page of users
+   */
+    public ArrayList<JSONObject> getUsers(int offset, int limit){
+        ArrayList<JSONObject> arr = new ArrayList<>();
+        for (int i=offset; i<users && arr.size()<limit; i++){
+            arr.add(getUser(i));
+        }
+        return arr;
+    }
+
+
+  //**************************************************************************
+  //** getUser
+  //**************************************************************************
+  /** Returns a user or null if the user doesn't exist
+   *  @param userID User ID or userPrincipalName
+   */
+    public JSONObject getUser(String userID){
+        int idx = getIndex(userID);
+        return idx<0 ? null : getUser(idx);
+    }
+
+
+  //**************************************************************************
+  //** getCalendars
+  //**************************************************************************
+  /** Returns calendars for a given user or null if the user doesn't exist
+   */
+    public ArrayList<JSONObject> getCalendars(String userID){
+        int idx = getIndex(userID);
+        if (idx<0) return null;
+        ArrayList<JSONObject> arr = new ArrayList<>();
+        for (int i=0; i<calendars; i++) arr.add(getCalendar(idx, i));
+        return arr;
+    }
+
+
+  //**************************************************************************
+  //** getCalendar
+  //**************************************************************************
+  /** Returns a calendar or null if the calendar doesn't exist
+   *  @param calendarID Calendar ID. If null, returns the default calendar.
+   */
+    public JSONObject getCalendar(String userID, String calendarID){
+        int user = getIndex(userID);
+        if (user<0 || calendars==0) return null;
+        int calendar = calendarID==null ? 0 : getCalendarIndex(calendarID);
+        return calendar<0 ? null : getCalendar(user, calendar);
+    }
+
+
+  //**************************************************************************
+  //** getEvents
+  //**************************************************************************
+  /** Returns a page of events. Events created by clients are returned after
+   *  the generated events.
+   *  @return Events or null if the calendar doesn't exist
+   */
+    public ArrayList<JSONObject> getEvents(String userID, String calendarID, int offset, int limit){
+        int user = getIndex(userID);
+        int calendar = getCalendarIndex(calendarID);
+        if (user<0 || calendar<0) return null;
+
+        ArrayList<JSONObject> arr = new ArrayList<>();
+        List<String> newEvents = created.getOrDefault(getKey(user, calendar, ""), Collections.emptyList());
+        int total;
+        synchronized(newEvents){
+            total = events + newEvents.size();
+        }
+        for (int i=offset; i<total && arr.size()<limit; i++){
+            String eventID;
+            if (i<events) eventID = "EVT" + calendar + "-" + i;
+            else{
+                synchronized(newEvents){
+                    eventID = newEvents.get(i-events);
+                }
+            }
+            JSONObject event = getEvent(user, calendar, eventID);
+            if (event!=null) arr.add(event);
+        }
+        return arr;
+    }
+
+
+  //**************************************************************************
+  //** getEvent
+  //**************************************************************************
+  /** Returns an event or null if the event doesn't exist
+   */
+    public JSONObject getEvent(String userID, String calendarID, String eventID){
+        int user = getIndex(userID);
+        int calendar = getCalendarIndex(calendarID);
+        if (user<0 || calendar<0) return null;
+        return getEvent(user, calendar, eventID);
+    }
+
+
+  //**************************************************************************
+  //** createEvent
+  //**************************************************************************
+  /** Used to create an event. Returns the new event or null if the calendar
+   *  doesn't exist.
+   */
+    public JSONObject createEvent(String userID, String calendarID, JSONObject json){
+        int user = getIndex(userID);
+        int calendar = getCalendarIndex(calendarID);
+        if (user<0 || calendar<0) return null;
+
+        String eventID = "EVTN-" + nextID.incrementAndGet();
+        JSONObject event = new JSONObject();
+        for (String key : json.keySet()) event.set(key, json.get(key));
+        event.set("id", eventID);
+        stamp(event);
+        changes.put(getKey(user, calendar, eventID), event);
+        List<String> list = created.computeIfAbsent(getKey(user, calendar, ""),
+            k -> new ArrayList<>());
+        synchronized(list){
+            list.add(eventID);
+        }
+        return event;
+    }
+
+
+  //**************************************************************************
+  //** updateEvent
+  //**************************************************************************
+  /** Used to update an event. Only updatable fields are changed. Returns the
+   *  updated event or null if the event doesn't exist.
+   */
+    public JSONObject updateEvent(String userID, String calendarID, String eventID, JSONObject json){
+        int user = getIndex(userID);
+        int calendar = getCalendarIndex(calendarID);
+        if (user<0 || calendar<0) return null;
+
+        String key = getKey(user, calendar, eventID);
+        synchronized(changes){
+            JSONObject event = getEvent(user, calendar, eventID);
+            if (event==null) return null;
+            for (String k : UPDATABLE_KEYS){
+                if (json.has(k)) event.set(k, json.get(k));
+            }
+            stamp(event);
+            changes.put(key, event);
+            return event;
+        }
+    }
+
+
+  //**************************************************************************
+  //** deleteEvent
+  //**************************************************************************
+  /** Used to delete an event. Returns false if the event doesn't exist.
+   */
+    public boolean deleteEvent(String userID, String calendarID, String eventID){
+        int user = getIndex(userID);
+        int calendar = getCalendarIndex(calendarID);
+        if (user<0 || calendar<0) return false;
+
+        synchronized(changes){
+            if (getEvent(user, calendar, eventID)==null) return false;
+            changes.put(getKey(user, calendar, eventID), DELETED);
+            return true;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getUser
+  //**************************************************************************
+    private JSONObject getUser(int idx){
+        String[] firstNames = {"Adele", "Alex", "Diego", "Grady", "Isaiah",
+        "Johanna", "Joni", "Lee", "Lidia", "Megan", "Miriam", "Nestor"};
+        String[] lastNames = {"Vance", "Wilber", "Siciliani", "Archie", "Langer",
+        "Lorenz", "Sherman", "Gu", "Holloway", "Bowen", "Graham", "Wilke"};
+        String first = firstNames[idx%firstNames.length];
+        String last = lastNames[(idx/firstNames.length)%lastNames.length];
+        String upn = "user" + idx + "@" + domain;
+
+        JSONObject json = new JSONObject();
+        json.set("id", getUserID(idx));
+        json.set("displayName", first + " " + last);
+        json.set("givenName", first);
+        json.set("surname", last);
+        json.set("jobTitle", "Engineer");
+        json.set("mail", upn);
+        json.set("userPrincipalName", upn);
+        json.set("officeLocation", "Building " + (idx%40));
+        json.set("preferredLanguage", "en-US");
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** getCalendar
+  //**************************************************************************
+    private JSONObject getCalendar(int user, int calendar){
+        JSONObject owner = new JSONObject();
+        owner.set("name", getUser(user).get("displayName"));
+        owner.set("address", "user" + user + "@" + domain);
+
+        JSONObject json = new JSONObject();
+        json.set("id", "CAL" + calendar);
+        json.set("name", calendar==0 ? "Calendar" : "Calendar " + calendar);
+        json.set("isDefaultCalendar", calendar==0);
+        json.set("canEdit", true);
+        json.set("owner", owner);
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** getEvent
+  //**************************************************************************
+    private JSONObject getEvent(int user, int calendar, String eventID){
+        JSONObject change = changes.get(getKey(user, calendar, eventID));
+        if (change==DELETED) return null;
+        if (change!=null) return copy(change);
+
+        if (!eventID.startsWith("EVT" + calendar + "-")) return null;
+        int idx;
+        try{
+            idx = Integer.parseInt(eventID.substring(eventID.indexOf("-")+1));
+        }
+        catch(NumberFormatException e){
+            return null;
+        }
+        if (idx<0 || idx>=events) return null;
+
+
+      //Spread events over business hours, starting Jan 1, 2024
+        int day = idx/8;
+        int hour = 9 + idx%8;
+        java.time.LocalDateTime start = java.time.LocalDateTime.of(2024, 1, 1, hour, 0).plusDays(day);
+
+        JSONObject json = new JSONObject();
+        json.set("id", eventID);
+        json.set("@odata.etag", "W/\"" + eventID + "-1\"");
+        json.set("createdDateTime", "2023-12-01T00:00:00Z");
+        json.set("lastModifiedDateTime", "2023-12-01T00:00:00Z");
+        json.set("subject", "Meeting " + idx);
+        json.set("bodyPreview", "Agenda for meeting " + idx);
+        JSONObject body = new JSONObject();
+        body.set("contentType", "html");
+        body.set("content", "<html><body><p>Agenda for meeting " + idx + "</p></body></html>");
+        json.set("body", body);
+        json.set("start", getDate(start));
+        json.set("end", getDate(start.plusMinutes(30)));
+        JSONObject location = new JSONObject();
+        location.set("displayName", "Room " + (idx%300));
+        json.set("location", location);
+        json.set("categories", new JSONArray());
+        json.set("isAllDay", false);
+        json.set("isCancelled", false);
+        json.set("showAs", "busy");
+        JSONObject organizer = new JSONObject();
+        JSONObject email = new JSONObject();
+        email.set("address", "user" + user + "@" + domain);
+        organizer.set("emailAddress", email);
+        json.set("organizer", organizer);
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** getDate
+  //**************************************************************************
+    private static JSONObject getDate(java.time.LocalDateTime date){
+        JSONObject json = new JSONObject();
+        json.set("dateTime", date.toString() + ":00.0000000");
+        json.set("timeZone", "UTC");
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** stamp
+  //**************************************************************************
+  /** Used to update the modification date and etag of an event
+   */
+    private void stamp(JSONObject event){
+        event.set("lastModifiedDateTime", java.time.Instant.now().toString());
+        event.set("@odata.etag", "W/\"" + event.get("id") + "-" + nextID.incrementAndGet() + "\"");
+    }
+
+
+  //**************************************************************************
+  //** copy
+  //**************************************************************************
+    private static JSONObject copy(JSONObject json){
+        return new JSONObject(json.toString());
+    }
+
+
+  //**************************************************************************
+  //** getKey
+  //**************************************************************************
+    private static String getKey(int user, int calendar, String eventID){
+        return user + "/" + calendar + "/" + eventID;
+    }
+
+
+  //**************************************************************************
+  //** getUserID
+  //**************************************************************************
+    private static String getUserID(int idx){
+        return String.format("00000000-0000-4000-8000-%012x", idx);
+    }
+
+
+  //**************************************************************************
+  //** getIndex
+  //**************************************************************************
+  /** Returns the index of a user or -1 if the user doesn't exist
+   *  @param userID User ID or userPrincipalName
+   */
+    private int getIndex(String userID){
+        if (userID==null) return -1;
+        int idx = -1;
+        try{
+            if (userID.startsWith("00000000-0000-4000-8000-")){
+                idx = Integer.parseInt(userID.substring(24), 16);
+            }
+            else if (userID.startsWith("user") && userID.endsWith("@" + domain)){
+                idx = Integer.parseInt(userID.substring(4, userID.indexOf("@")));
+            }
+        }
+        catch(NumberFormatException e){
+            return -1;
+        }
+        return idx<users ? idx : -1;
+    }
+
+
+  //**************************************************************************
+  //** getCalendarIndex
+  //**************************************************************************
+    private int getCalendarIndex(String calendarID){
+        if (calendarID==null || !calendarID.startsWith("CAL")) return -1;
+        try{
+            int idx = Integer.parseInt(calendarID.substring(3));
+            return idx<calendars ? idx : -1;
+        }
+        catch(NumberFormatException e){
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package javaxt.azure.graph;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import javaxt.json.*;
+
+
+//******************************************************************************
+//**  Batch
+//******************************************************************************
+/**
+ *   Used to combine multiple requests into JSON batch requests. Requests are
+ *   queued via the add() methods and sent to the $batch end-point in groups
+ *   of 20 when send() is called. Example:
+ <pre>
+    Batch batch = conn.createBatch();
+    Batch.Request r1 = batch.add("GET", "/users/" + userID);
+    Batch.Request r2 = batch.add("PATCH", url, json, r1);
+    batch.send().join();
+    JSONObject user = r1.getResponse().join();
+ </pre>
+ *   Requests that are throttled by the server (429) are retried individually
+ *   along with any requests that depend on them, once the delay in the
+ *   Retry-After header has elapsed.
+ *
+ ******************************************************************************/
+
+public class Batch {
+
+    private final Connection conn;
+    private final ArrayList<Request> requests = new ArrayList<>();
+    private int nextID = 1;
+
+    public static final int MAX_REQUESTS = 20;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    protected Batch(Connection conn){
+        this.conn = conn;
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+    public Request add(String method, String url){
+        return add(method, url, null);
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to add a request to the batch.
+   *  @param method HTTP method (GET, POST, PATCH, PUT, DELETE)
+   *  @param url Graph url (e.g. "/users/{id}/events")
+   *  @param payload Optional request body
+   *  @param dependsOn Optional list of requests in this batch that must be
+   *  executed before this request. Dependent requests are always sent in the
+   *  same $batch request.
+   */
+    public synchronized Request add(String method, String url, JSONObject payload, Request... dependsOn){
+        if (dependsOn!=null){
+            for (Request r : dependsOn){
+                if (r==null || r.batch!=this || !requests.contains(r)){
+                    throw new IllegalArgumentException("Invalid dependency");
+                }
+            }
+        }
+        Request request = new Request(this, (nextID++)+"", method, url, payload, dependsOn);
+        requests.add(request);
+        return request;
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the number of requests waiting to be sent
+   */
+    public synchronized int size(){
+        return requests.size();
+    }
+
+
+  //**************************************************************************
+  //** send
+  //**************************************************************************
+  /** Used to send all the queued requests to the server. Returns a future
+   *  that is completed once every request has a response. Individual
+   *  results are available via Request.getResponse().
+   */
+    public CompletableFuture<Void> send(){
+
+      //Get requests and clear the queue
+        ArrayList<Request> requests;
+        synchronized(this){
+            requests = new ArrayList<>(this.requests);
+            this.requests.clear();
+        }
+
+
+      //Group requests
+        ArrayList<ArrayList<Request>> groups;
+        try{
+            groups = getGroups(requests);
+        }
+        catch(Exception e){
+            for (Request r : requests) r.future.completeExceptionally(e);
+            return CompletableFuture.failedFuture(e);
+        }
+
+
+      //Send groups
+        ArrayList<CompletableFuture<?>> futures = new ArrayList<>();
+        for (ArrayList<Request> group : groups){
+            futures.add(send(group));
+        }
+        for (Request r : requests) futures.add(r.future);
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+        .handle((v, e) -> null);
+    }
+
+
+  //**************************************************************************
+  //** send
+  //**************************************************************************
+  /** Used to send a group of up to 20 requests in a single $batch request
+   */
+    private CompletableFuture<Void> send(ArrayList<Request> group){
+
+        JSONArray arr = new JSONArray();
+        for (Request r : group) arr.add(r.toJson());
+        JSONObject payload = new JSONObject();
+        payload.set("requests", arr);
+
+        return conn.getResponseAsync("/$batch", payload, "POST").handle((json, error) -> {
+
+
+          //Fail all requests if the batch failed
+            if (error!=null){
+                Throwable t = error instanceof java.util.concurrent.CompletionException ?
+                error.getCause() : error;
+                for (Request r : group) r.future.completeExceptionally(t);
+                return null;
+            }
+
+
+          //Map responses to requests
+            HashMap<String, JSONObject> responses = new HashMap<>();
+            for (JSONValue v : json.get("responses").toJSONArray()){
+                JSONObject response = v.toJSONObject();
+                responses.put(response.get("id").toString(), response);
+            }
+
+
+          //Complete requests. Throttled requests and requests that failed
+          //because of a throttled dependency are retried individually.
+            HashSet<Request> retries = new HashSet<>();
+            for (Request r : group){
+                JSONObject response = responses.get(r.id);
+                Integer status = response==null ? null : response.get("status").toInteger();
+                if (status==null) status = 0;
+
+                boolean retry = (status==429 || status==503 || status==0);
+                if (!retry && status==424){
+                    for (Request d : r.dependsOn){
+                        if (retries.contains(d)) retry = true;
+                    }
+                }
+
+                if (retry){
+                    retries.add(r);
+                    if (status==429 || status==503) pause(r, response);
+                }
+                else{
+                    JSONObject body = response.get("body").toJSONObject();
+                    if (body==null) body = new JSONObject();
+                    if (status>=200 && status<300){
+                        if (!r.method.equals("GET")) conn.invalidate(r.url);
+                        r.future.complete(body);
+                    }
+                    else r.future.completeExceptionally(new Connection.ResponseException(status, body));
+                }
+            }
+
+            for (Request r : group){
+                if (retries.contains(r)) r.retry(conn);
+            }
+
+            return null;
+        });
+    }
+
+
+  //**************************************************************************
+  //** pause
+  //**************************************************************************
+  /** Used to pause requests to the resource associated with a throttled
+   *  request using the Retry-After header in the response. This ensures that
+   *  the request isn't retried before the server is ready.
+   */
+    private void pause(Request r, JSONObject response){
+        String retryAfter = null;
+        JSONObject headers = response.get("headers").toJSONObject();
+        if (headers!=null){
+            for (String key : headers.keySet()){
+                if (key.equalsIgnoreCase("Retry-After")){
+                    retryAfter = headers.get(key).toString();
+                    break;
+                }
+            }
+        }
+        String url = conn.getRelativeURL(r.url);
+        long retryDelay = Throttle.getRetryDelay(retryAfter, 0);
+        conn.getMetrics().recordThrottle(Metrics.Endpoint.get(Throttle.getResource(url)), retryDelay);
+        conn.getThrottle().pause(Throttle.getResource(url), retryDelay);
+    }
+
+
+  //**************************************************************************
+  //** getGroups
+  //**************************************************************************
+  /** Used to split requests into groups of up to 20 requests. Requests that
+   *  are linked via dependsOn are kept in the same group.
+   */
+    private static ArrayList<ArrayList<Request>> getGroups(ArrayList<Request> requests) throws Exception {
+
+
+      //Find linked requests
+        LinkedHashMap<Request, ArrayList<Request>> chains = new LinkedHashMap<>();
+        HashMap<Request, Request> roots = new HashMap<>();
+        for (Request r : requests){
+            Request root = r;
+            for (Request d : r.dependsOn){
+                Request dr = roots.get(d);
+                if (root==r) root = dr;
+                else if (dr!=root){ //merge chains
+                    ArrayList<Request> chain = chains.remove(dr);
+                    for (Request c : chain) roots.put(c, root);
+                    chains.get(root).addAll(chain);
+                }
+            }
+            if (root==r) chains.put(r, new ArrayList<>());
+            chains.get(root).add(r);
+            roots.put(r, root);
+        }
+
+
+      //Pack chains into groups
+        ArrayList<ArrayList<Request>> groups = new ArrayList<>();
+        for (ArrayList<Request> chain : chains.values()){
+            if (chain.size()>MAX_REQUESTS){
+                throw new IllegalArgumentException(
+                "Too many dependent requests (" + chain.size() + ")");
+            }
+
+            ArrayList<Request> group = null;
+            for (ArrayList<Request> g : groups){
+                if (g.size()+chain.size()<=MAX_REQUESTS){
+                    group = g;
+                    break;
+                }
+            }
+            if (group==null){
+                group = new ArrayList<>();
+                groups.add(group);
+            }
+            group.addAll(chain);
+        }
+
+
+      //Sort requests in each group
+        HashMap<Request, Integer> order = new HashMap<>();
+        for (int i=0; i<requests.size(); i++) order.put(requests.get(i), i);
+        for (ArrayList<Request> group : groups){
+            group.sort((a, b) -> Integer.compare(order.get(a), order.get(b)));
+        }
+
+        return groups;
+    }
+
+
+  //**************************************************************************
+  //** Request Class
+  //**************************************************************************
+  /** Used to represent an individual request in a batch
+   */
+    public static class Request {
+        private final Batch batch;
+        private final String id;
+        private final String method;
+        private final String url;
+        private final JSONObject payload;
+        private final Request[] dependsOn;
+        private final CompletableFuture<JSONObject> future;
+
+        private Request(Batch batch, String id, String method, String url,
+            JSONObject payload, Request[] dependsOn){
+            this.batch = batch;
+            this.id = id;
+            this.method = method==null ? (payload==null ? "GET" : "POST") : method.toUpperCase();
+            this.url = url;
+            this.payload = payload;
+            this.dependsOn = dependsOn==null ? new Request[0] : dependsOn;
+            this.future = new CompletableFuture<>();
+        }
+
+        public String getID(){
+            return id;
+        }
+
+      /** Returns a future that is completed with the response body or
+       *  exceptionally with a Connection.ResponseException
+       */
+        public CompletableFuture<JSONObject> getResponse(){
+            return future;
+        }
+
+        private void retry(Connection conn){
+            CompletableFuture<?>[] arr = new CompletableFuture[dependsOn.length];
+            for (int i=0; i<arr.length; i++) arr[i] = dependsOn[i].future;
+            CompletableFuture.allOf(arr).whenComplete((v, e) -> {
+                if (e!=null){
+                    future.completeExceptionally(e.getCause()==null ? e : e.getCause());
+                    return;
+                }
+                conn.getResponseAsync(url, payload, method).whenComplete((json, err) -> {
+                    if (err==null) future.complete(json);
+                    else future.completeExceptionally(err.getCause()==null ? err : err.getCause());
+                });
+            });
+        }
+
+        private JSONObject toJson(){
+            JSONObject json = new JSONObject();
+            json.set("id", id);
+            json.set("method", method);
+            json.set("url", batch.conn.getRelativeURL(url));
+            if (payload!=null){
+                json.set("body", payload);
+                JSONObject headers = new JSONObject();
+                headers.set("Content-Type", "application/json");
+                json.set("headers", headers);
+            }
+            if (dependsOn.length>0){
+                JSONArray arr = new JSONArray();
+                for (Request r : dependsOn) arr.add(r.id);
+                json.set("dependsOn", arr);
+            }
+            return json;
+        }
+    }
+}
\ No newline at end of file
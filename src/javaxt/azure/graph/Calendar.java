@@ -1,6 +1,9 @@
 package javaxt.azure.graph;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
 import javaxt.json.*;
 
 
@@ -15,6 +18,7 @@ import javaxt.json.*;
 public class Calendar extends Node {
 
     private final String userID;
+    private volatile String select;
 
   //**************************************************************************
   //** Constructor
@@ -25,6 +29,21 @@ public class Calendar extends Node {
     }
 
 
+  //**************************************************************************
+  //** setSelect
+  //**************************************************************************
+  /** Used to limit the fields returned for events in the calendar (e.g.
+   *  "subject", "start", "end"). Event bodies and attendee lists are often
+   *  much larger than the rest of the event so excluding them reduces the
+   *  size of each page and the memory used by each Event. Applies to
+   *  getEvent() and getEvents(). Note that delta queries (see getChanges)
+   *  don't support $select and always return every field.
+   */
+    public void setSelect(String... fields){
+        select = fields==null || fields.length==0 ? null : String.join(",", fields);
+    }
+
+
   //**************************************************************************
   //** isDefault
   //**************************************************************************
@@ -41,6 +60,7 @@ public class Calendar extends Node {
 
         LinkedHashMap<String, String> params = new LinkedHashMap<>();
         if (limit!=null) params.put("$top", limit+"");
+        if (select!=null) params.put("$select", select);
 
         JSONObject json = conn.getResponse(getURL(params));
         for (JSONValue r : json.get("value").toJSONArray()){
@@ -57,56 +77,200 @@ public class Calendar extends Node {
     public ArrayList<Event> getEvents(javaxt.utils.Date startDate,
         javaxt.utils.Date endDate) throws Exception {
 
-        LinkedHashMap<String, String> params = new LinkedHashMap<>();
+        ArrayList<Event> events = new ArrayList<>();
+        String url = getURL(getParams(startDate, endDate));
+        Map<String, String> headers = getHeaders(null);
+        while (url!=null){
+            JSONObject json = conn.getResponse(url, null, null, headers);
+            for (JSONValue r : json.get("value").toJSONArray()){
+                events.add(new Event(r.toJSONObject(), conn));
+            }
+            url = json.get("@odata.nextLink").toString();
+        }
+        return events;
+    }
 
-      //Create date filter
-        params.put("$filter", "start/dateTime ge '" + startDate.toISOString() +
-        "' and end/dateTime le '" + endDate.toISOString() + "'");
 
-      //Add order by
-        params.put("$orderby", "start/dateTime asc");
+  //**************************************************************************
+  //** getEvents
+  //**************************************************************************
+  /** Returns a Pager used to iterate through events in a given date range.
+   *  Pages are requested via "@odata.nextLink" and the next page is fetched
+   *  while the current page is being processed. Example:
+   <pre>
+    calendar.getEvents(startDate, endDate, 500).stream().forEach(event -> {
+        ...
+    });
+   </pre>
+   *  @param pageSize Max number of events per page. Optional.
+   */
+    public Pager<Event> getEvents(javaxt.utils.Date startDate,
+        javaxt.utils.Date endDate, Integer pageSize){
+        return new Pager<>(getURL(getParams(startDate, endDate)), getHeaders(pageSize),
+        json -> new Event(json, conn), conn);
+    }
+
 
-        return getEvents(params);
+  //**************************************************************************
+  //** getEventsAsync
+  //**************************************************************************
+  /** Non-blocking version of getEvents(startDate, endDate)
+   */
+    public CompletableFuture<ArrayList<Event>> getEventsAsync(javaxt.utils.Date startDate,
+        javaxt.utils.Date endDate){
+        return Pager.getAll(getURL(getParams(startDate, endDate)), getHeaders(null),
+        json -> new Event(json, conn), conn);
     }
 
 
   //**************************************************************************
-  //** getEvents
+  //** getChanges
   //**************************************************************************
-    private ArrayList<Event> getEvents(LinkedHashMap<String, String> params) throws Exception {
-        ArrayList<Event> events = new ArrayList<>();
+  /** Returns events that have been added, updated, or deleted in a given
+   *  date range since the last call. Uses a calendarView delta query and
+   *  saves the delta link in the given store. The first call (or a call
+   *  made after the delta link has expired) returns every event in the
+   *  date range and Changes.isReset() returns true.
+   *  @param store Used to persist delta links between calls
+   */
+    public Changes getChanges(javaxt.utils.Date startDate, javaxt.utils.Date endDate,
+        DeltaStore store) throws Exception {
 
 
-      //Get calendar events
-        params.put("$count", "true");
-        JSONObject json = conn.getResponse(getURL(params));
-        Integer count = json.get("@odata.count").toInteger();
-        JSONArray records = json.get("value").toJSONArray();
-        for (JSONValue r : records){
-            events.add(new Event(r.toJSONObject(), conn));
+      //Get delta link
+        String key = "calendar/" + userID + "/" + getID() + "/" +
+        startDate.toISOString() + "/" + endDate.toISOString();
+        String deltaLink = store.get(key);
+
+
+      //Get changes
+        try{
+            return getChanges(key, deltaLink, startDate, endDate, store);
         }
-        if (events.isEmpty()) return events;
+        catch(Connection.ResponseException e){
 
+          //Delta links expire if they are not used for a while. In which
+          //case, we need to start over with a full sync.
+            if (deltaLink!=null && e.getStatus()==410){
+                store.remove(key);
+                return getChanges(key, null, startDate, endDate, store);
+            }
+            throw e;
+        }
+    }
 
 
-      //Get more calendar events as needed
-        while (events.size()<count){
-            params.put("$skip", events.size()+"");
-            json = conn.getResponse(getURL(params));
-            for (JSONValue r : json.get("value").toJSONArray()){
-                events.add(new Event(r.toJSONObject(), conn));
+  //**************************************************************************
+  //** getChanges
+  //**************************************************************************
+    private Changes getChanges(String key, String deltaLink, javaxt.utils.Date startDate,
+        javaxt.utils.Date endDate, DeltaStore store) throws Exception {
+
+        String url = deltaLink;
+        if (url==null){
+            url = "/users/" + userID + "/calendars/" + getID() + "/calendarView/delta" +
+            "?startDateTime=" + startDate.toISOString() +
+            "&endDateTime=" + endDate.toISOString();
+        }
+
+        Changes changes = new Changes(deltaLink==null);
+        Pager<Event> pager = new Pager<>(url, getHeaders(null), json -> new Event(json, conn), conn);
+        try{
+            while (pager.hasNext()){
+                Event event = pager.next();
+                if (event.toJson().has("@removed")) changes.deletions.add(event.getID());
+                else changes.updates.add(event);
             }
         }
+        catch(java.util.concurrent.CompletionException e){
+            Throwable t = e.getCause();
+            if (t instanceof Exception) throw (Exception) t;
+            throw e;
+        }
 
-        return events;
+        store.set(key, pager.getDeltaLink());
+        return changes;
     }
 
 
+  //**************************************************************************
+  //** Changes Class
+  //**************************************************************************
+  /** Used to represent changes returned by getChanges()
+   */
+    public class Changes {
+        private final boolean reset;
+        private final ArrayList<Event> updates = new ArrayList<>();
+        private final ArrayList<String> deletions = new ArrayList<>();
+
+        private Changes(boolean reset){
+            this.reset = reset;
+        }
+
+      /** Returns true if this is a full sync. In which case, getUpdates()
+       *  returns every event in the date range.
+       */
+        public boolean isReset(){
+            return reset;
+        }
+
+      /** Returns events that have been added or updated
+       */
+        public ArrayList<Event> getUpdates(){
+            return updates;
+        }
+
+      /** Returns the IDs of events that have been deleted
+       */
+        public ArrayList<String> getDeletions(){
+            return deletions;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getParams
+  //**************************************************************************
+  /** Returns query parameters used to find events in a given date range
+   */
+    LinkedHashMap<String, String> getParams(javaxt.utils.Date startDate,
+        javaxt.utils.Date endDate){
+
+        LinkedHashMap<String, String> params = new LinkedHashMap<>();
+
+      //Create date filter
+        params.put("$filter", "start/dateTime ge '" + startDate.toISOString() +
+        "' and end/dateTime le '" + endDate.toISOString() + "'");
+
+      //Add order by
+        params.put("$orderby", "start/dateTime asc");
+
+      //Add fields
+        if (select!=null) params.put("$select", select);
+
+        return params;
+    }
+
+
+  //**************************************************************************
+  //** getHeaders
+  //**************************************************************************
+  /** Returns request headers used to set the server-side page size
+   */
+    private static Map<String, String> getHeaders(Integer pageSize){
+        if (pageSize==null) pageSize = DEFAULT_PAGE_SIZE;
+        return Map.of("Prefer", "odata.maxpagesize=" + pageSize);
+    }
+
+    private static final int DEFAULT_PAGE_SIZE = 250;
+
+
   //**************************************************************************
   //** getEvent
   //**************************************************************************
     public Event getEvent(String id) throws Exception {
         String url = getURL() + "/" + id;
+        if (select!=null) url += "?$select=" + select;
         return new Event(conn.getResponse(url), conn);
     }
 
@@ -114,19 +278,66 @@ public class Calendar extends Node {
   //**************************************************************************
   //** saveEvent
   //**************************************************************************
+  /** Used to create or update an event. New events are created with every
+   *  field in the event. For existing events, only fields that were changed
+   *  via set() are sent to the server. If no changes were tracked (e.g. the
+   *  event was created from json), every updatable field is sent.
+   */
     public void saveEvent(Event event) throws Exception {
         String url = getURL();
         if (event.getID()==null){
-            conn.getResponse(url, event.toJson(), "POST");
+            event.saved(conn.getResponse(url, event.toJson(), "POST"));
         }
         else{
             url += "/" + event.getID();
-            JSONObject json = new JSONObject();
-            for (String k : updatableKeys){
-                json.set(k, event.get(k));
+            conn.getResponse(url, getPatch(event), "PATCH");
+            event.saved(null);
+        }
+    }
+
+
+  //**************************************************************************
+  //** saveEvents
+  //**************************************************************************
+    public Report saveEvents(Collection<Event> events) throws InterruptedException {
+        return saveEvents(events, DEFAULT_CONCURRENCY);
+    }
+
+
+  //**************************************************************************
+  //** saveEvents
+  //**************************************************************************
+  /** Used to create or update a large number of events. Events are sent in
+   *  json batches of up to 20 requests (see Batch) and updates only include
+   *  fields that were changed (see saveEvent). Events that fail are reported
+   *  in the Report and don't stop the rest of the events from being saved.
+   *  Unlike saveEvent, existing events without any changes are skipped and
+   *  reported as successful. Example:
+   <pre>
+    Calendar.Report report = calendar.saveEvents(events);
+    for (Calendar.Result result : report.getFailures()){
+        console.log(result.getEvent().getSubject(), result.getError());
+    }
+   </pre>
+   *  @param concurrency Max number of requests in flight. Outlook allows 4
+   *  concurrent requests per mailbox (the default) so higher values mostly
+   *  lead to more throttling.
+   */
+    public Report saveEvents(Collection<Event> events, int concurrency) throws InterruptedException {
+        ArrayList<Operation> operations = new ArrayList<>(events.size());
+        for (Event event : events){
+            if (event.getID()==null){
+                operations.add(new Operation(event, null, "POST", getURL(), event.toJson()));
+            }
+            else if (!event.changes.isEmpty()){
+                operations.add(new Operation(event, event.getID(), "PATCH",
+                getURL() + "/" + event.getID(), getPatch(event)));
+            }
+            else{
+                operations.add(new Operation(event, event.getID(), null, null, null));
             }
-            conn.getResponse(url, json, "PATCH");
         }
+        return execute(operations, concurrency);
     }
 
 
@@ -149,6 +360,244 @@ public class Calendar extends Node {
     }
 
 
+  //**************************************************************************
+  //** deleteEvents
+  //**************************************************************************
+    public Report deleteEvents(Collection<String> ids) throws InterruptedException {
+        return deleteEvents(ids, DEFAULT_CONCURRENCY);
+    }
+
+
+  //**************************************************************************
+  //** deleteEvents
+  //**************************************************************************
+  /** Used to delete a large number of events using json batches. Events that
+   *  can't be deleted are reported in the Report and don't stop the rest of
+   *  the events from being deleted. Events that no longer exist (404) are
+   *  reported as failures with a 404 status. Null ids are reported as
+   *  failures so that the results line up with the input.
+   *  @param concurrency Max number of requests in flight (see saveEvents)
+   */
+    public Report deleteEvents(Collection<String> ids, int concurrency) throws InterruptedException {
+        ArrayList<Operation> operations = new ArrayList<>(ids.size());
+        for (String id : ids){
+            if (id==null) operations.add(new Operation(null, null, null, null, null));
+            else operations.add(new Operation(null, id, "DELETE", getURL() + "/" + id, null));
+        }
+        return execute(operations, concurrency);
+    }
+
+
+  //**************************************************************************
+  //** execute
+  //**************************************************************************
+  /** Used to send requests in batches. The requests in a batch are executed
+   *  in parallel by the server so the number of requests in flight, rather
+   *  than the number of batches, is capped. A batch is sent as soon as no
+   *  more requests can be added to it. Returns once every request has
+   *  completed.
+   */
+    private Report execute(ArrayList<Operation> operations, int concurrency) throws InterruptedException {
+        if (concurrency<1) concurrency = 1;
+        Result[] results = new Result[operations.size()];
+        Semaphore semaphore = new Semaphore(concurrency);
+
+        int i = 0;
+        while (i<operations.size()){
+
+
+          //Create batch. Each request holds a permit until it completes.
+            Batch batch = conn.createBatch();
+            while (i<operations.size() && batch.size()<Batch.MAX_REQUESTS){
+                int idx = i;
+                Operation op = operations.get(idx);
+                if (op.method==null){
+                    if (op.id==null){
+                        results[idx] = new Result(op.event, null, false,
+                        new IllegalArgumentException("Missing event id"));
+                    }
+                    else{
+                        results[idx] = new Result(op.event, op.id, true, null); //unchanged
+                    }
+                    i++;
+                    continue;
+                }
+
+                if (batch.size()==0) semaphore.acquire();
+                else if (!semaphore.tryAcquire()) break;
+                i++;
+
+                batch.add(op.method, op.url, op.payload).getResponse()
+                .whenComplete((json, error) -> {
+                    if (error==null){
+                        try{
+                            if (op.event!=null) op.event.saved(op.method.equals("POST") ? json : null);
+                            String id = op.event==null ? op.id : op.event.getID();
+                            results[idx] = new Result(op.event, id, true, null);
+                        }
+                        catch(Exception e){
+                            results[idx] = new Result(op.event, op.id, false, e);
+                        }
+                    }
+                    else{
+                        Throwable t = error instanceof CompletionException && error.getCause()!=null ?
+                        error.getCause() : error;
+                        results[idx] = new Result(op.event, op.id, false, t);
+                    }
+                    semaphore.release();
+                });
+            }
+
+
+          //Send batch
+            if (batch.size()>0) batch.send();
+        }
+
+
+      //Wait for the remaining batches
+        semaphore.acquire(concurrency);
+        semaphore.release(concurrency);
+        return new Report(results);
+    }
+
+
+  //**************************************************************************
+  //** getPatch
+  //**************************************************************************
+  /** Returns the fields to send when updating an event
+   */
+    private static JSONObject getPatch(Event event){
+        JSONObject json = new JSONObject();
+        Collection<String> keys = event.changes.isEmpty() ?
+        Arrays.asList(updatableKeys) : event.changes;
+        for (String k : keys){
+            if (!event.toJson().has(k)) continue; //not selected
+            json.set(k, event.get(k));
+        }
+        return json;
+    }
+
+
+    private static final int DEFAULT_CONCURRENCY = 4;
+
+
+  //**************************************************************************
+  //** Operation Class
+  //**************************************************************************
+  /** Used to represent a request in saveEvents() or deleteEvents(). The
+   *  method is null if no request is needed or if the id is missing.
+   */
+    private static class Operation {
+        private final Event event;
+        private final String id;
+        private final String method;
+        private final String url;
+        private final JSONObject payload;
+
+        private Operation(Event event, String id, String method, String url, JSONObject payload){
+            this.event = event;
+            this.id = id;
+            this.method = method;
+            this.url = url;
+            this.payload = payload;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Result Class
+  //**************************************************************************
+  /** Used to represent the outcome of an individual event in saveEvents()
+   *  or deleteEvents()
+   */
+    public class Result {
+        private final Event event;
+        private final String id;
+        private final boolean success;
+        private final Throwable error;
+
+        private Result(Event event, String id, boolean success, Throwable error){
+            this.event = event;
+            this.id = id;
+            this.success = success;
+            this.error = error;
+        }
+
+      /** Returns the event or null for deleteEvents()
+       */
+        public Event getEvent(){
+            return event;
+        }
+
+      /** Returns the id of the event. Null if a new event failed to save.
+       */
+        public String getID(){
+            return id;
+        }
+
+        public boolean isSuccess(){
+            return success;
+        }
+
+      /** Returns the http status code of a failed request or 0 if the
+       *  request failed without a response from the server
+       */
+        public int getStatus(){
+            if (error instanceof Connection.ResponseException){
+                return ((Connection.ResponseException) error).getStatus();
+            }
+            return 0;
+        }
+
+        public Throwable getError(){
+            return error;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Report Class
+  //**************************************************************************
+  /** Used to represent the outcome of saveEvents() or deleteEvents().
+   *  Results are in the same order as the input.
+   */
+    public class Report {
+        private final List<Result> results;
+        private int failed;
+
+        private Report(Result[] results){
+            this.results = Collections.unmodifiableList(Arrays.asList(results));
+            for (Result result : results){
+                if (!result.success) failed++;
+            }
+        }
+
+        public List<Result> getResults(){
+            return results;
+        }
+
+        public ArrayList<Result> getFailures(){
+            ArrayList<Result> failures = new ArrayList<>();
+            for (Result result : results){
+                if (!result.success) failures.add(result);
+            }
+            return failures;
+        }
+
+        public int getSucceeded(){
+            return results.size()-failed;
+        }
+
+        public int getFailed(){
+            return failed;
+        }
+
+        public String toString(){
+            return "Succeeded: " + getSucceeded() + ", Failed: " + failed;
+        }
+    }
+
+
     private static String[] updatableKeys = new String[]{
         "subject", "body", "categories", "start", "end", "location"
     };
@@ -160,12 +609,14 @@ public class Calendar extends Node {
   /** Used to represent a calendar event
    */
     public class Event extends Node {
+        private final LinkedHashSet<String> changes = new LinkedHashSet<>();
+
         public Event(JSONObject json, Connection conn){
             super(json, conn);
         }
 
         public String getSubject(){
-            return get("subject").toString();
+            return getValue("subject", JSONValue::toString);
         }
 
         public void setSubject(String subject){
@@ -175,14 +626,35 @@ public class Calendar extends Node {
         public void set(String key, Object val){
             for (String k : updatableKeys){
                 if (key.equalsIgnoreCase(k)){
+
+                  //Skip if the value is unchanged. Note that a json object or
+                  //array may have been modified in place, in which case the
+                  //same instance is passed back and has to be recorded.
+                    JSONValue prev = get(k);
+                    boolean modified = val==prev.toObject() &&
+                    (val instanceof JSONObject || val instanceof JSONArray);
+                    if (!modified && !prev.isNull() && val!=null &&
+                        prev.toString().equals(val.toString())) break;
+
                     super.set(k, val);
+                    changes.add(k);
                     break;
                 }
             }
         }
 
+      /** Returns the fields that have been changed since the event was
+       *  created or saved
+       */
+        public Set<String> getChanges(){
+            return Collections.unmodifiableSet(changes);
+        }
+
+      /** Returns a copy of the start date. The date is only parsed once.
+       */
         public javaxt.utils.Date getStartDate(){
-            return getDate("start").clone();
+            javaxt.utils.Date date = getValue("start", Calendar::getDate);
+            return date==null ? null : date.clone();
         }
 
         public void setStartDate(javaxt.utils.Date date){
@@ -192,31 +664,55 @@ public class Calendar extends Node {
             setDate("end", endDate);
         }
 
+      /** Returns a copy of the end date. The date is only parsed once.
+       */
         public javaxt.utils.Date getEndDate(){
-            return getDate("end").clone();
+            javaxt.utils.Date date = getValue("end", Calendar::getDate);
+            return date==null ? null : date.clone();
         }
 
         public void setEndDate(javaxt.utils.Date date){
             setDate("end", date);
         }
 
-        private javaxt.utils.Date getDate(String key){
-            try{
-                String dt = get(key).get("dateTime").toString();
-                String tz = get(key).get("timeZone").toString();
-                javaxt.utils.Date d = new javaxt.utils.Date(dt);
-                d.setTimeZone(tz, true);
-                return d;
-            }
-            catch(Exception e){
-                return null;
-            }
-        }
-
         private void setDate(String key, javaxt.utils.Date date){
             JSONObject json = get(key).toJSONObject();
             json.set("dateTime", date.toISOString());
             json.set("timeZone", "UTC");
+            invalidate(key);
+            changes.add(key);
+        }
+
+      /** Called after the event was saved. Fields returned by the server
+       *  (e.g. the id of a new event) are added to the event.
+       */
+        private void saved(JSONObject response){
+            if (response!=null){
+                for (String key : response.keySet()){
+                    toJson().set(key, response.get(key));
+                    invalidate(key);
+                }
+            }
+            changes.clear();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getDate
+  //**************************************************************************
+  /** Returns a date from an event "start" or "end" field
+   */
+    private static javaxt.utils.Date getDate(JSONValue val){
+        try{
+            String dt = val.get("dateTime").toString();
+            String tz = val.get("timeZone").toString();
+            javaxt.utils.Date d = new javaxt.utils.Date(dt);
+            d.setTimeZone(tz, true);
+            return d;
+        }
+        catch(Exception e){
+            return null;
         }
     }
 
@@ -228,24 +724,22 @@ public class Calendar extends Node {
         return getURL(null);
     }
 
-    private String getURL(LinkedHashMap<String, String> params){
-        String calendarID = getID();
-        String url = "/users/" + userID + "/calendars/" + calendarID + "/events";
+    String getURL(LinkedHashMap<String, String> params){
+        StringBuilder url = new StringBuilder();
+        url.append("/users/").append(userID);
+        url.append("/calendars/").append(getID());
+        url.append("/events");
 
         if (params!=null && !params.isEmpty()){
-
-          //Update url
-            url += "?";
-            Iterator<String> it = params.keySet().iterator();
-            while (it.hasNext()){
-                String key = it.next();
-                String val = params.get(key);
-                val = val.replace(" ", "%20");
-                url += "&" + key + "=" + val;
+            char separator = '?';
+            for (Map.Entry<String, String> param : params.entrySet()){
+                url.append(separator).append(param.getKey()).append('=');
+                url.append(param.getValue().replace(" ", "%20"));
+                separator = '&';
             }
         }
 
-        return url;
+        return url.toString();
     }
 
 
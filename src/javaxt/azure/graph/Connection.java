@@ -1,6 +1,10 @@
 package javaxt.azure.graph;
 
 import java.util.*;
+import java.time.Duration;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
@@ -23,56 +27,161 @@ public class Connection {
 
 
   //Transient properties
-    private String tokenType;
-    private String accessToken;
-    private javaxt.utils.Date expirationDate;
+    private TokenManager tokens;
+    private Throttle throttle;
+    private final Metrics metrics = new Metrics();
+
+
+  //Http client shared by all requests
+    private HttpClient client;
+    private ExecutorService executor;
+    private Duration requestTimeout;
+    private boolean compression = true;
+    private volatile ResponseCache cache;
+
+
+  //Requests waiting to be sent and number of requests in flight
+    private final ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private int maxRequests = 256;
 
 
   //**************************************************************************
   //** Constructor
   //**************************************************************************
     public Connection(String tenantID, String clientID, String clientSecret) throws Exception {
+        this(tenantID, clientID, clientSecret, null);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to create a new connection to the graph API.
+   *  @param options Optional settings for the underlying http client. Example:
+   <pre>
+    {
+        "connectTimeout" : 30,  //seconds
+        "requestTimeout" : 300, //seconds
+        "keepAlive" : 1200,     //seconds an idle connection stays in the pool
+        "poolSize" : 0,         //max idle connections per host (0 = unlimited)
+        "threads" : 8,          //size of the executor used by the client
+        "http2" : true,
+        "maxRequests" : 256,    //max number of requests in flight
+        "compression" : true,   //request gzip/deflate json responses
+        "cache" : {             //optional response cache (see ResponseCache)
+            "maxSize" : 64,     //MB
+            "ttl" : { "sharepoint" : 300 }
+        },
+        "throttle" : {          //client-side rate limits (see Throttle)
+            "requestsPerSecond" : 100,
+            "maxRetries" : 5
+        },
+        "loginURL" : "https://login.microsoftonline.us/{tenant}/oauth2/v2.0/token",
+        "graphURL" : "https://graph.microsoft.us/v1.0"
+    }
+   </pre>
+   *  Note that the keepAlive and poolSize are JVM-wide settings and are only
+   *  applied if no other http client has been created prior to this call.
+   *  The loginURL and graphURL are only needed for national clouds or to
+   *  connect to a local test server.
+   */
+    public Connection(String tenantID, String clientID, String clientSecret,
+        JSONObject options) throws Exception {
         this.tenantID = tenantID;
         this.clientID = clientID;
         this.clientSecret = clientSecret;
-        connect();
+        if (options==null) options = new JSONObject();
+        String url = options.get("loginURL").toString();
+        if (url!=null) loginURL = url;
+        url = options.get("graphURL").toString();
+        if (url!=null){
+            if (url.endsWith("/")) url = url.substring(0, url.length()-1);
+            graphURL = url;
+        }
+        client = createClient(options);
+        Integer maxRequests = options.get("maxRequests").toInteger();
+        if (maxRequests!=null && maxRequests>0) this.maxRequests = maxRequests;
+        if (Boolean.FALSE.equals(options.get("compression").toBoolean())) compression = false;
+        JSONObject cache = options.get("cache").toJSONObject();
+        if (cache!=null) this.cache = new ResponseCache(cache);
+        throttle = new Throttle(tenantID, options.get("throttle").toJSONObject());
+        tokens = new TokenManager(loginURL.replace("{tenant}", tenantID), clientID, clientSecret, metrics);
+        try{
+            tokens.connect();
+        }
+        catch(Exception e){
+            close();
+            throw e;
+        }
     }
 
 
   //**************************************************************************
-  //** connect
+  //** createClient
   //**************************************************************************
-    private void connect() throws Exception {
-        console.log("connecting...");
+  /** Returns a new http client. The client is shared by all the requests
+   *  made by this connection so that TCP/TLS connections are reused and
+   *  multiple requests can be multiplexed over a single HTTP/2 connection.
+   */
+    private HttpClient createClient(JSONObject options){
 
-        String loginURL = this.loginURL.replace("{tenant}", tenantID);
-        javaxt.http.Request request = new javaxt.http.Request(loginURL);
-        request.setNumRedirects(0);
+      //Set connection pool properties (read once by the jdk)
+        setProperty("jdk.httpclient.keepalive.timeout", options.get("keepAlive").toInteger());
+        setProperty("jdk.httpclient.connectionPoolSize", options.get("poolSize").toInteger());
 
-        String payload = "client_id=" +clientID +
-        "&scope=https%3A%2F%2Fgraph.microsoft.com%2F.default" +
-        "&client_secret=" + clientSecret +
-        "&grant_type=client_credentials";
 
-        //request.setHeader(); application/x-www-form-urlencoded
-        request.write(payload);
+      //Set timeouts
+        Integer connectTimeout = options.get("connectTimeout").toInteger();
+        if (connectTimeout==null) connectTimeout = 30;
+        Integer requestTimeout = options.get("requestTimeout").toInteger();
+        if (requestTimeout!=null) this.requestTimeout = Duration.ofSeconds(requestTimeout);
 
-        javaxt.http.Response response = request.getResponse();
-        JSONObject json = response.getJSONObject();
 
+      //Create client
+        Boolean http2 = options.get("http2").toBoolean();
+        HttpClient.Builder builder = HttpClient.newBuilder()
+        .version(Boolean.FALSE.equals(http2) ? HttpClient.Version.HTTP_1_1 : HttpClient.Version.HTTP_2)
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .connectTimeout(Duration.ofSeconds(connectTimeout));
+
+
+      //Set executor
+        Integer threads = options.get("threads").toInteger();
+        if (threads!=null && threads>0){
+            executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "graph-http");
+                t.setDaemon(true);
+                return t;
+            });
+            builder.executor(executor);
+        }
 
-        if (response.getStatus()==200){
-            tokenType = json.get("token_type").toString();
-            accessToken = json.get("access_token").toString();
-            Integer expiresIn = json.get("expires_in").toInteger();
-            expirationDate = new javaxt.utils.Date().add(expiresIn, "seconds");
+        return builder.build();
+    }
 
-            console.log("Connected! token expires " + expirationDate);
-        }
-        else{
-            System.out.println(response.toString());
-            System.out.println(json.toString(4));
-            throw new Exception();
+
+  //**************************************************************************
+  //** setProperty
+  //**************************************************************************
+    private static void setProperty(String key, Integer val){
+        if (val==null || System.getProperty(key)!=null) return;
+        System.setProperty(key, val+"");
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Used to release the http client and any threads created by this
+   *  connection. The connection cannot be used after this method is called.
+   */
+    public synchronized void close(){
+        client = null;
+        if (tokens!=null) tokens.close();
+        if (executor!=null){
+            executor.shutdown();
+            executor = null;
         }
     }
 
@@ -81,7 +190,7 @@ public class Connection {
   //** getExpiration
   //**************************************************************************
     public javaxt.utils.Date getExpirationDate(){
-        return expirationDate;
+        return tokens.getExpirationDate();
     }
 
 
@@ -105,56 +214,415 @@ public class Connection {
   //** getResponse
   //**************************************************************************
     public JSONObject getResponse(String url, JSONObject payload, String method) throws Exception {
+        return getResponse(url, payload, method, null);
+    }
 
 
-      //Get request builder
-        HttpRequest.Builder request = getRequest(url);
+  //**************************************************************************
+  //** getResponse
+  //**************************************************************************
+    public JSONObject getResponse(String url, JSONObject payload, String method,
+        Map<String, String> headers) throws Exception {
+        try{
+            return getResponseAsync(url, payload, method, headers).get();
+        }
+        catch(ExecutionException e){
+            Throwable t = e.getCause();
+            if (t instanceof Exception) throw (Exception) t;
+            throw e;
+        }
+    }
 
 
-      //Set payload and method as needed
-        if (payload!=null){
-            if (method==null) method = "POST";
-            else method = method.toUpperCase();
+  //**************************************************************************
+  //** getResponseAsync
+  //**************************************************************************
+    public CompletableFuture<JSONObject> getResponseAsync(String url){
+        return getResponseAsync(url, null, null);
+    }
 
-            request.header("Content-Type", "application/json;charset=UTF-8");
-            request.method(method, HttpRequest.BodyPublishers.ofByteArray(
-                payload.toString().getBytes(UTF_8))
-            );
+
+  //**************************************************************************
+  //** getResponseAsync
+  //**************************************************************************
+  /** Used to execute an http request without blocking the caller. The number
+   *  of requests in flight is capped by the "maxRequests" option. Requests
+   *  beyond the cap are queued and sent as other requests complete.
+   *  @return A future that is completed with the json response or
+   *  exceptionally with a ResponseException if the server returned an error.
+   */
+    public CompletableFuture<JSONObject> getResponseAsync(String url, JSONObject payload, String method){
+        return getResponseAsync(url, payload, method, null);
+    }
+
+
+  //**************************************************************************
+  //** getResponseAsync
+  //**************************************************************************
+  /** Used to execute an http request with custom request headers (e.g.
+   *  "Prefer" or "ConsistencyLevel")
+   */
+    public CompletableFuture<JSONObject> getResponseAsync(String url, JSONObject payload,
+        String method, Map<String, String> headers){
+
+
+      //Check cache
+        ResponseCache cache = this.cache;
+        if (cache!=null && payload==null && (method==null || method.equalsIgnoreCase("GET"))){
+            String relativeURL = getRelativeURL(url);
+            if (cache.isCacheable(relativeURL)){
+                String key = ResponseCache.getKey(getCacheScope(), relativeURL, headers);
+                ResponseCache.Entry entry = cache.get(key);
+                if (entry!=null){
+                    Metrics.Endpoint endpoint = Metrics.Endpoint.get(Throttle.getResource(relativeURL));
+                    if (cache.isFresh(entry, endpoint)){
+                        metrics.recordCacheHit(endpoint);
+                        try{
+                            return CompletableFuture.completedFuture(entry.getResponse());
+                        }
+                        catch(Exception e){
+                            cache.remove(key);
+                            entry = null;
+                        }
+                    }
+                }
+                return execute(url, payload, method, headers, false, 0, key, entry);
+            }
         }
 
+        return execute(url, payload, method, headers, false, 0, null, null);
+    }
+
 
-      //Get response
-        HttpResponse<String> response = HttpClient.newBuilder()
-        .followRedirects(HttpClient.Redirect.NEVER)
-        .build()
-        .send(request.build(), HttpResponse.BodyHandlers.ofString(UTF_8));
+  //**************************************************************************
+  //** execute
+  //**************************************************************************
+  /** Used to send a request and parse the response. If the server rejects
+   *  the access token (401), the token is refreshed once and the request is
+   *  replayed. Throttled requests (429/503) are retried after the delay
+   *  specified in the Retry-After header, up to the max number of retries
+   *  defined in the throttle options. If a cacheKey is given, successful
+   *  responses are added to the cache. If a cached response is given, the
+   *  request is sent with an If-None-Match header and the cached response
+   *  is returned if the server responds with a 304.
+   */
+    private CompletableFuture<JSONObject> execute(String url, JSONObject payload,
+        String method, Map<String, String> headers, boolean replay, int attempt,
+        String cacheKey, ResponseCache.Entry cached){
+
+
+      //Wait for the rate limiter as needed
+        String resource = Throttle.getResource(getRelativeURL(url));
+        Metrics.Endpoint endpoint = Metrics.Endpoint.get(resource);
+        long delay = throttle.reserve(resource);
+        metrics.recordDelay(endpoint, delay);
+        TokenManager.Token[] token = new TokenManager.Token[1];
+        long[] startTime = new long[1];
+        Supplier<CompletableFuture<HttpResponse<String>>> task = () ->
+        tokens.getToken().thenCompose(t -> {
+            token[0] = t;
+            startTime[0] = System.nanoTime();
+            return send(url, payload, method, headers, t, endpoint,
+            cached==null ? null : cached.getETag());
+        });
+        CompletableFuture<HttpResponse<String>> request;
+        if (delay>0){
+            Executor executor = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+            request = CompletableFuture.supplyAsync(() -> task, executor).thenCompose(this::submit);
+        }
+        else{
+            request = submit(task);
+        }
 
 
+      //Update metrics
+        request = request.whenComplete((response, error) -> {
+            long elapsed = startTime[0]==0 ? 0 : System.nanoTime()-startTime[0];
+            metrics.recordRequest(endpoint, response==null ? 0 : response.statusCode(), elapsed);
+        });
+
+
+        return request.thenCompose(response -> {
+
+
+          //Parse and return response
+            int status = response.statusCode();
+            if (status==401 && !replay){
+                return tokens.refresh(token[0])
+                .thenCompose(t -> execute(url, payload, method, headers, true, attempt, cacheKey, cached));
+            }
+            if ((status==429 || status==503) && attempt<throttle.getMaxRetries()){
+                String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+                long retryDelay = Throttle.getRetryDelay(retryAfter, attempt);
+                metrics.recordThrottle(endpoint, retryDelay);
+                throttle.pause(resource, retryDelay);
+                return execute(url, payload, method, headers, replay, attempt+1, cacheKey, cached);
+            }
+
+          //Return cached response if unchanged
+            ResponseCache cache = this.cache;
+            if (status==304 && cached!=null && cache!=null){
+                cache.revalidate(cached);
+                return CompletableFuture.completedFuture(cached.getResponse());
+            }
+
+            String body = response.body();
+            JSONObject json = (body==null || body.isBlank()) ? new JSONObject() : new JSONObject(body);
+            if (status>=200 && status<300){
+                if (cache!=null){
+                    if (cacheKey!=null){
+                        String eTag = response.headers().firstValue("ETag").orElse(null);
+                        cache.put(cacheKey, endpoint, eTag, body==null ? "" : body);
+                    }
+                    else if (payload!=null || (method!=null && !method.equalsIgnoreCase("GET"))){
+                        cache.invalidate(getCacheScope(), getRelativeURL(url));
+                    }
+                }
+                return CompletableFuture.completedFuture(json);
+            }
+            else{
+                return CompletableFuture.failedFuture(new ResponseException(status, json));
+            }
+        });
+    }
 
-      //Parse and return response
-        JSONObject json = new JSONObject(response.body());
-        int status = response.statusCode();
-        if (status==200){
-            return json;
+
+  //**************************************************************************
+  //** send
+  //**************************************************************************
+  /** Used to create an http request and send it to the server. Unless
+   *  compression is disabled, the server is asked to compress the response
+   *  and the body is decompressed as it is received (see ContentDecoder).
+   */
+    private CompletableFuture<HttpResponse<String>> send(String url, JSONObject payload,
+        String method, Map<String, String> headers, TokenManager.Token token,
+        Metrics.Endpoint endpoint, String eTag){
+        try{
+
+          //Get request builder
+            HttpRequest.Builder request = getRequest(url, token);
+            if (headers!=null){
+                for (Map.Entry<String, String> header : headers.entrySet()){
+                    request.header(header.getKey(), header.getValue());
+                }
+            }
+            if (compression && !hasHeader(headers, "Accept-Encoding")){
+                request.header("Accept-Encoding", "gzip, deflate");
+            }
+            if (eTag!=null) request.header("If-None-Match", eTag);
+
+
+          //Set payload and method as needed
+            if (payload!=null){
+                if (method==null) method = "POST";
+                else method = method.toUpperCase();
+
+                request.header("Content-Type", "application/json;charset=UTF-8");
+                request.method(method, HttpRequest.BodyPublishers.ofByteArray(
+                    payload.toString().getBytes(UTF_8))
+                );
+            }
+            else if (method!=null){
+                request.method(method.toUpperCase(), HttpRequest.BodyPublishers.noBody());
+            }
+
+
+          //Send request
+            return getClient().sendAsync(request.build(), ContentDecoder.getBodyHandler(metrics, endpoint));
         }
-        else if (status==429){
-            Thread.sleep(1500);
-            return getResponse(url);
+        catch(Exception e){
+            return CompletableFuture.failedFuture(e);
         }
-        else{
+    }
 
-            //console.log(response.headers().map());
-            //System.out.println(response.toString());
-            System.out.println(json.toString(4));
-            throw new Exception();
+
+  //**************************************************************************
+  //** hasHeader
+  //**************************************************************************
+    private static boolean hasHeader(Map<String, String> headers, String name){
+        if (headers==null) return false;
+        for (String key : headers.keySet()){
+            if (key.equalsIgnoreCase(name)) return true;
         }
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** submit
+  //**************************************************************************
+  /** Used to run a task once there is room for another request in flight
+   */
+    private <T> CompletableFuture<T> submit(Supplier<CompletableFuture<T>> task){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        pending.add(() -> {
+            CompletableFuture<T> f;
+            try{
+                f = task.get();
+            }
+            catch(Throwable t){
+                f = CompletableFuture.failedFuture(t);
+            }
+            f.whenComplete((result, error) -> {
+                inFlight.decrementAndGet();
+                drain();
+                if (error==null) future.complete(result);
+                else future.completeExceptionally(error);
+            });
+        });
+        drain();
+        return future;
+    }
+
+
+  //**************************************************************************
+  //** drain
+  //**************************************************************************
+  /** Used to start pending tasks while the number of requests in flight is
+   *  below the limit
+   */
+    private void drain(){
+        while (!pending.isEmpty()){
+            int n = inFlight.get();
+            if (n>=maxRequests) return;
+            if (!inFlight.compareAndSet(n, n+1)) continue;
+
+            Runnable task = pending.poll();
+            if (task==null) inFlight.decrementAndGet();
+            else task.run();
+        }
+    }
+
+
+  //**************************************************************************
+  //** createBatch
+  //**************************************************************************
+  /** Returns a new Batch used to combine multiple requests into JSON batch
+   *  requests. Each $batch request counts as a single request in flight.
+   */
+    public Batch createBatch(){
+        return new Batch(this);
+    }
+
+
+  //**************************************************************************
+  //** getRelativeURL
+  //**************************************************************************
+  /** Returns a url relative to the graph end-point (e.g. "/users")
+   */
+    protected String getRelativeURL(String url){
+        if (url.startsWith(graphURL)) url = url.substring(graphURL.length());
+        if (!url.startsWith("/") && !url.startsWith("http")) url = "/" + url;
+        return url;
+    }
+
+
+  //**************************************************************************
+  //** getMetrics
+  //**************************************************************************
+  /** Returns request metrics for this connection
+   */
+    public Metrics getMetrics(){
+        return metrics;
+    }
+
+
+  //**************************************************************************
+  //** getCache
+  //**************************************************************************
+  /** Returns the response cache used by this connection or null if caching
+   *  is disabled (see "cache" option)
+   */
+    public ResponseCache getCache(){
+        return cache;
+    }
+
+
+  //**************************************************************************
+  //** setCache
+  //**************************************************************************
+  /** Used to set or remove the response cache. A cache can be shared by
+   *  multiple connections (e.g. successive sync runs). Responses are cached
+   *  by graph url, tenant, and client ID so connections to other tenants
+   *  never get each other's responses.
+   */
+    public void setCache(ResponseCache cache){
+        this.cache = cache;
+    }
+
+
+  //**************************************************************************
+  //** invalidate
+  //**************************************************************************
+  /** Used to remove cached responses for a resource after it was modified
+   *  outside of getResponse (e.g. via a batch request)
+   */
+    protected void invalidate(String url){
+        ResponseCache cache = this.cache;
+        if (cache!=null) cache.invalidate(getCacheScope(), getRelativeURL(url));
+    }
+
+
+  //**************************************************************************
+  //** getCacheScope
+  //**************************************************************************
+  /** Returns a prefix for cache keys so that connections to different
+   *  graph end-points, tenants, or apps can share a cache without seeing
+   *  each other's responses
+   */
+    private String getCacheScope(){
+        return graphURL + "|" + tenantID + "|" + clientID;
+    }
+
+
+  //**************************************************************************
+  //** getThrottle
+  //**************************************************************************
+  /** Returns the rate limiter used to throttle requests
+   */
+    protected Throttle getThrottle(){
+        return throttle;
+    }
+
+
+  //**************************************************************************
+  //** getClient
+  //**************************************************************************
+  /** Returns the http client used to execute requests
+   */
+    protected HttpClient getClient(){
+        HttpClient client = this.client;
+        if (client==null) throw new IllegalStateException("Connection is closed");
+        return client;
+    }
+
+
+  //**************************************************************************
+  //** getRequestTimeout
+  //**************************************************************************
+  /** Returns the max time to wait for a response (see "requestTimeout"
+   *  option) or null if there is no limit
+   */
+    protected Duration getRequestTimeout(){
+        return requestTimeout;
+    }
+
+
+  //**************************************************************************
+  //** getRequest
+  //**************************************************************************
+  /** Returns a request builder for a graph url with an authorization header.
+   *  Used to send requests that don't have a json payload (e.g. uploads).
+   */
+    protected HttpRequest.Builder getRequest(String url) throws Exception {
+        return getRequest(url, tokens.getToken().get());
     }
 
 
   //**************************************************************************
   //** getRequest
   //**************************************************************************
-    private synchronized HttpRequest.Builder getRequest(String url) throws Exception {
+    private HttpRequest.Builder getRequest(String url, TokenManager.Token token){
 
       //Update url as needed
         if (!url.startsWith(graphURL) && !url.startsWith("http")){
@@ -163,16 +631,47 @@ public class Connection {
         }
 
 
-      //Refresh tokens as needed
-        var timeRemaining = expirationDate.compareTo(new javaxt.utils.Date(), "seconds");
-        //console.log("timeRemaining: " + timeRemaining + " seconds");
-        if (timeRemaining<60) connect();
-
-
-      //Execute http request and return response
-        return HttpRequest.newBuilder()
+      //Create request
+        HttpRequest.Builder request = HttpRequest.newBuilder()
         .uri(java.net.URI.create(url))
-        .header("Authorization", tokenType + " " + accessToken);
+        .header("Authorization", token.getHeader());
+        if (requestTimeout!=null) request.timeout(requestTimeout);
+        return request;
     }
 
+
+
+  //**************************************************************************
+  //** ResponseException
+  //**************************************************************************
+  /** Thrown when the server returns an error
+   */
+    public static class ResponseException extends Exception {
+        private final int status;
+        private final JSONObject json;
+
+        public ResponseException(int status, JSONObject json){
+            super(getMessage(status, json));
+            this.status = status;
+            this.json = json;
+        }
+
+        public int getStatus(){
+            return status;
+        }
+
+        public JSONObject getResponse(){
+            return json;
+        }
+
+        private static String getMessage(int status, JSONObject json){
+            String msg = null;
+            if (json!=null){
+                JSONObject error = json.get("error").toJSONObject();
+                if (error!=null) msg = error.get("message").toString();
+                else msg = json.get("error_description").toString(); //login errors
+            }
+            return "HTTP " + status + (msg==null ? "" : ": " + msg);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,329 @@
+package javaxt.azure.graph;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.net.http.HttpResponse;
+import static java.nio.charset.StandardCharsets.*;
+
+
+//******************************************************************************
+//**  ContentDecoder
+//******************************************************************************
+/**
+ *   Used to read a response body that may be compressed with gzip or deflate
+ *   (see Content-Encoding). The body is decompressed as it arrives from the
+ *   server so the compressed bytes are never buffered in full. The number of
+ *   bytes received and the number of bytes after decoding are recorded in the
+ *   connection metrics.
+ *
+ ******************************************************************************/
+
+public class ContentDecoder implements HttpResponse.BodySubscriber<String> {
+
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    private final CompletableFuture<String> result = new CompletableFuture<>();
+    private final Metrics metrics;
+    private final Metrics.Endpoint endpoint;
+    private final boolean gzip;
+    private final boolean deflate;
+    private final String error;
+    private Inflater inflater;
+    private CRC32 crc;
+
+  //Buffers used to read the gzip header and trailer
+    private byte[] header;
+    private int headerLength;
+    private boolean inHeader;
+    private final byte[] trailer = new byte[8];
+    private int trailerLength;
+
+  //Decoded body
+    private byte[] buffer;
+    private int size;
+    private long received;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param encoding Value of the Content-Encoding header. Supports "gzip",
+   *  "deflate", and "identity" (or null).
+   *  @param contentLength Value of the Content-Length header or -1 if
+   *  unknown. Used to size the output buffer.
+   */
+    public ContentDecoder(String encoding, long contentLength, Metrics metrics,
+        Metrics.Endpoint endpoint){
+        this.metrics = metrics;
+        this.endpoint = endpoint;
+
+        if (encoding!=null) encoding = encoding.trim().toLowerCase();
+        if (encoding==null || encoding.isEmpty()) encoding = "identity";
+        gzip = encoding.equals("gzip") || encoding.equals("x-gzip");
+        deflate = encoding.equals("deflate");
+        error = (gzip || deflate || encoding.equals("identity")) ? null :
+        "Unsupported Content-Encoding: " + encoding;
+
+        if (gzip){
+            inflater = new Inflater(true);
+            crc = new CRC32();
+            header = new byte[64];
+            inHeader = true;
+        }
+        //Inflater for deflate responses is created once the first bytes are
+        //read (see inflate)
+
+
+      //Compressed json is typically 5-10x smaller than the decoded body
+        long n = contentLength<0 ? 8192 : (isCompressed() ? contentLength*8 : contentLength);
+        buffer = new byte[(int) Math.max(1024, Math.min(n, 16*1024*1024))];
+    }
+
+
+  //**************************************************************************
+  //** getBodyHandler
+  //**************************************************************************
+  /** Returns a BodyHandler that decodes responses using the Content-Encoding
+   *  returned by the server
+   */
+    public static HttpResponse.BodyHandler<String> getBodyHandler(Metrics metrics,
+        Metrics.Endpoint endpoint){
+        return info -> {
+            String encoding = info.headers().firstValue("Content-Encoding").orElse(null);
+            long contentLength = info.headers().firstValueAsLong("Content-Length").orElse(-1);
+            return new ContentDecoder(encoding, contentLength, metrics, endpoint);
+        };
+    }
+
+
+  //**************************************************************************
+  //** isCompressed
+  //**************************************************************************
+    private boolean isCompressed(){
+        return gzip || deflate;
+    }
+
+
+  //**************************************************************************
+  //** getBody
+  //**************************************************************************
+    public CompletionStage<String> getBody(){
+        return result;
+    }
+
+
+  //**************************************************************************
+  //** onSubscribe
+  //**************************************************************************
+    public void onSubscribe(Flow.Subscription subscription){
+        if (error!=null){
+            subscription.cancel();
+            fail(new IOException(error));
+            return;
+        }
+        subscription.request(Long.MAX_VALUE);
+    }
+
+
+  //**************************************************************************
+  //** onNext
+  //**************************************************************************
+    public void onNext(List<ByteBuffer> items){
+        if (result.isDone()) return;
+        try{
+            for (ByteBuffer item : items){
+                received += item.remaining();
+                if (isCompressed()) inflate(item);
+                else write(item);
+            }
+        }
+        catch(Exception e){
+            fail(e);
+        }
+    }
+
+
+  //**************************************************************************
+  //** onError
+  //**************************************************************************
+    public void onError(Throwable throwable){
+        fail(throwable);
+    }
+
+
+  //**************************************************************************
+  //** onComplete
+  //**************************************************************************
+    public void onComplete(){
+        if (result.isDone()) return;
+        try{
+            if (isCompressed() && received>0){
+                if (inflater==null || !inflater.finished()){
+                    throw new IOException("Compressed response is truncated");
+                }
+                if (gzip){
+                    if (trailerLength<8) throw new IOException("Gzip trailer is missing");
+                    if (getInt(trailer, 0)!=(int) crc.getValue() ||
+                        getInt(trailer, 4)!=size){
+                        throw new IOException("Gzip checksum mismatch");
+                    }
+                }
+            }
+            if (inflater!=null) inflater.end();
+            metrics.recordResponse(endpoint, received, size);
+            result.complete(new String(buffer, 0, size, UTF_8));
+        }
+        catch(Exception e){
+            fail(e);
+        }
+    }
+
+
+  //**************************************************************************
+  //** inflate
+  //**************************************************************************
+  /** Used to decompress bytes as they are received
+   */
+    private void inflate(ByteBuffer item) throws Exception {
+
+      //Read gzip header
+        if (inHeader){
+            while (item.hasRemaining() && inHeader){
+                if (headerLength==header.length) header = java.util.Arrays.copyOf(header, header.length*2);
+                header[headerLength++] = item.get();
+                if (getHeaderLength(header, headerLength)>0) inHeader = false;
+            }
+            if (inHeader) return;
+        }
+
+
+      //Create inflater for deflate responses. Although the http spec calls
+      //for a zlib stream, some servers send raw deflate data. The first two
+      //bytes are used to tell them apart.
+        if (inflater==null){
+            if (header==null) header = new byte[2];
+            while (item.hasRemaining() && headerLength<2) header[headerLength++] = item.get();
+            if (headerLength<2) return;
+            int cmf = header[0] & 0xff;
+            int flg = header[1] & 0xff;
+            boolean zlib = (cmf & 0x0f)==8 && ((cmf << 8) | flg) % 31==0;
+            inflater = new Inflater(!zlib);
+            inflate(ByteBuffer.wrap(header));
+        }
+
+
+      //Collect gzip trailer once the compressed stream is finished
+        if (inflater.finished()){
+            readTrailer(item);
+            return;
+        }
+
+
+      //Inflate
+        inflater.setInput(item);
+        while (!inflater.finished()){
+            if (size==buffer.length) grow();
+            int n = inflater.inflate(buffer, size, buffer.length-size);
+            if (n>0){
+                if (crc!=null) crc.update(buffer, size, n);
+                size += n;
+            }
+            else if (inflater.needsInput()){
+                break;
+            }
+            else if (inflater.needsDictionary()){
+                throw new DataFormatException("Deflate dictionary is not supported");
+            }
+        }
+        if (inflater.finished()) readTrailer(item);
+    }
+
+
+  //**************************************************************************
+  //** readTrailer
+  //**************************************************************************
+    private void readTrailer(ByteBuffer item){
+        while (item.hasRemaining() && trailerLength<trailer.length){
+            trailer[trailerLength++] = item.get();
+        }
+        item.position(item.limit());
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used to copy bytes from an uncompressed response
+   */
+    private void write(ByteBuffer item){
+        int n = item.remaining();
+        while (size+n>buffer.length) grow();
+        item.get(buffer, size, n);
+        size += n;
+    }
+
+
+  //**************************************************************************
+  //** grow
+  //**************************************************************************
+    private void grow(){
+        if (buffer.length>=Integer.MAX_VALUE-8) throw new OutOfMemoryError("Response is too large");
+        int n = (int) Math.min((long) buffer.length*2, Integer.MAX_VALUE-8);
+        buffer = java.util.Arrays.copyOf(buffer, n);
+    }
+
+
+  //**************************************************************************
+  //** fail
+  //**************************************************************************
+    private void fail(Throwable t){
+        if (inflater!=null) inflater.end();
+        result.completeExceptionally(t);
+    }
+
+
+  //**************************************************************************
+  //** getHeaderLength
+  //**************************************************************************
+  /** Returns the length of a gzip header or -1 if more bytes are needed
+   */
+    private static int getHeaderLength(byte[] b, int len) throws IOException {
+        if (len<10) return -1;
+        if ((b[0] & 0xff)!=0x1f || (b[1] & 0xff)!=0x8b) throw new IOException("Not in gzip format");
+        if (b[2]!=8) throw new IOException("Unsupported gzip compression method");
+        int flags = b[3] & 0xff;
+        int pos = 10;
+        if ((flags & FEXTRA)!=0){
+            if (len<pos+2) return -1;
+            pos += 2 + ((b[pos] & 0xff) | ((b[pos+1] & 0xff) << 8));
+        }
+        if ((flags & FNAME)!=0){
+            while (pos<len && b[pos]!=0) pos++;
+            if (pos++>=len) return -1;
+        }
+        if ((flags & FCOMMENT)!=0){
+            while (pos<len && b[pos]!=0) pos++;
+            if (pos++>=len) return -1;
+        }
+        if ((flags & FHCRC)!=0) pos += 2;
+        return len>=pos ? pos : -1;
+    }
+
+
+  //**************************************************************************
+  //** getInt
+  //**************************************************************************
+  /** Returns a little-endian int
+   */
+    private static int getInt(byte[] b, int offset){
+        return (b[offset] & 0xff) | ((b[offset+1] & 0xff) << 8) |
+        ((b[offset+2] & 0xff) << 16) | ((b[offset+3] & 0xff) << 24);
+    }
+}
@@ -0,0 +1,93 @@
+package javaxt.azure.graph;
+
+import java.nio.file.*;
+import static java.nio.charset.StandardCharsets.*;
+
+
+//******************************************************************************
+//**  DeltaStore
+//******************************************************************************
+/**
+ *   Used to persist delta links returned by delta queries so that the next
+ *   query only returns changes made since the last call. Implementations
+ *   must be thread-safe.
+ *
+ ******************************************************************************/
+
+public interface DeltaStore {
+
+
+  /** Returns the delta link associated with a key or null if not found
+   */
+    public String get(String key) throws Exception;
+
+
+  /** Used to save a delta link
+   */
+    public void set(String key, String deltaLink) throws Exception;
+
+
+  /** Used to remove a delta link (e.g. when it has expired)
+   */
+    public void remove(String key) throws Exception;
+
+
+  //**************************************************************************
+  //** FileStore Class
+  //**************************************************************************
+  /** Default DeltaStore implementation used to save delta links in a local
+   *  directory, one file per key. Files are written to a temp file first
+   *  and then moved into place so a crash never leaves a partial link.
+   */
+    public static class FileStore implements DeltaStore {
+        private final Path dir;
+
+        public FileStore(String dir){
+            this(Paths.get(dir));
+        }
+
+        public FileStore(Path dir){
+            this.dir = dir;
+        }
+
+        public String get(String key) throws Exception {
+            Path path = getPath(key);
+            if (!Files.exists(path)) return null;
+            String link = new String(Files.readAllBytes(path), UTF_8).trim();
+            return link.isEmpty() ? null : link;
+        }
+
+        public void set(String key, String deltaLink) throws Exception {
+            if (deltaLink==null){
+                remove(key);
+                return;
+            }
+            Files.createDirectories(dir);
+            Path path = getPath(key);
+            Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+            try{
+                Files.write(tmp, deltaLink.getBytes(UTF_8));
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally{
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        public void remove(String key) throws Exception {
+            Files.deleteIfExists(getPath(key));
+        }
+
+        private Path getPath(String key){
+            StringBuilder name = new StringBuilder();
+            for (char c : key.toCharArray()){
+                if (Character.isLetterOrDigit(c) || c=='-' || c=='.') name.append(c);
+                else name.append('_');
+            }
+            if (name.length()>100) name.setLength(100);
+            name.append('-').append(Integer.toHexString(key.hashCode()));
+            return dir.resolve(name.append(".delta").toString());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,724 @@
+package javaxt.azure.graph;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import static java.nio.file.StandardOpenOption.*;
+
+
+//******************************************************************************
+//**  Downloader
+//******************************************************************************
+/**
+ *   Used to download files from SharePoint. Files are written to a temp file
+ *   in the same directory as the target file via a FileChannel. The temp
+ *   file is renamed once the download is complete so a failed download never
+ *   leaves a truncated file in place of the target. If a download is
+ *   interrupted, it is resumed from the last byte written using an http
+ *   Range request. Large files can be split into byte ranges and downloaded
+ *   over multiple connections at the same time (see setSegments). The
+ *   quickXorHash of the file is computed as the bytes are written.
+ *
+ ******************************************************************************/
+
+public class Downloader {
+
+    private final Connection conn;
+    private final LongAdder bytesTransferred = new LongAdder();
+    private int maxAttempts = 5;
+    private int segments = 1;
+    private long segmentThreshold = 64*1024*1024;
+    private volatile Semaphore segmentPermits = new Semaphore(16);
+    private ExecutorService executor;
+
+  /** File extension used for partial downloads */
+    public static final String TEMP_EXT = ".partial";
+    private static final String RANGES_EXT = ".ranges";
+
+    private static final int BUFFER_SIZE = 64*1024;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public Downloader(Connection conn){
+        this.conn = conn;
+    }
+
+
+  //**************************************************************************
+  //** setMaxAttempts
+  //**************************************************************************
+  /** Used to set the max number of attempts to download a file before giving
+   *  up. The default is 5.
+   */
+    public void setMaxAttempts(int maxAttempts){
+        this.maxAttempts = Math.max(maxAttempts, 1);
+    }
+
+
+  //**************************************************************************
+  //** setSegments
+  //**************************************************************************
+  /** Used to download large files in parallel using multiple range requests.
+   *  @param segments Number of segments to split a file into. Use 1 to
+   *  disable segmented downloads (default).
+   *  @param threshold Min file size, in bytes, for a segmented download
+   *  @param maxConcurrentSegments Max number of segments downloaded at the
+   *  same time across all the files downloaded by this class
+   */
+    public synchronized void setSegments(int segments, long threshold, int maxConcurrentSegments){
+        this.segments = Math.max(segments, 1);
+        this.segmentThreshold = Math.max(threshold, 1);
+        this.segmentPermits = new Semaphore(Math.max(maxConcurrentSegments, 1));
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Used to stop any threads used to download segments
+   */
+    public synchronized void close(){
+        if (executor!=null){
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getBytesTransferred
+  //**************************************************************************
+  /** Returns the total number of bytes downloaded by this class
+   */
+    public long getBytesTransferred(){
+        return bytesTransferred.sum();
+    }
+
+
+  //**************************************************************************
+  //** download
+  //**************************************************************************
+  /** Used to download a file.
+   *  @param url Download url (e.g. "@microsoft.graph.downloadUrl")
+   *  @param file Target file
+   *  @param size Expected file size. Use -1 if unknown.
+   *  @param version Used to identify the version of the file (e.g. cTag) so
+   *  that a partial download of an older version is never resumed. Optional.
+   */
+    public Result download(String url, java.io.File file, long size, String version) throws Exception {
+
+        Path target = file.toPath();
+        Path temp = getTempFile(target, version);
+        Files.createDirectories(target.toAbsolutePath().getParent());
+
+
+      //Use segmented download for large files
+        Path ranges = temp.resolveSibling(temp.getFileName() + RANGES_EXT);
+        if (segments>1 && size>=segmentThreshold){
+            Result result = downloadSegments(url, temp, ranges, size);
+            if (result!=null){
+                move(temp, target);
+                return result;
+            }
+        }
+
+
+      //Delete partial file if it is bigger than the expected size or if the
+      //file was created by a segmented download
+        if (Files.exists(ranges)){
+            Files.deleteIfExists(temp);
+            Files.delete(ranges);
+        }
+        if (size>-1 && Files.exists(temp) && Files.size(temp)>size){
+            Files.delete(temp);
+        }
+
+
+      //Download file
+        long[] total = new long[1];
+        QuickXorHash[] hash = new QuickXorHash[1];
+        Throttle throttle = conn.getThrottle();
+        String resource = Throttle.getResource(url);
+        int throttled = 0;
+        for (int attempt=1; ; attempt++){
+
+            long delay = throttle.reserve(resource);
+            conn.getMetrics().recordDelay(Metrics.Endpoint.DOWNLOAD, delay);
+            if (delay>0) Thread.sleep(delay);
+
+            long offset = Files.exists(temp) ? Files.size(temp) : 0;
+
+
+          //Hash bytes that have already been written
+            if (hash[0]==null || hash[0].getLength()!=offset){
+                hash[0] = new QuickXorHash();
+                if (offset>0) hash(temp, 0, offset, hash[0]);
+            }
+            if (size>-1 && offset==size && Files.exists(temp)) break;
+
+
+            try{
+                HttpResponse<InputStream> response = transfer(url, temp, offset, total, hash);
+                int status = response.statusCode();
+                if (status==429 || status==503){
+                    if (throttled<throttle.getMaxRetries()){
+                        String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+                        pause(throttle, resource, retryAfter, throttled++);
+                        attempt--;
+                        continue;
+                    }
+                }
+                if (status==416 && attempt<maxAttempts){ //range not satisfiable
+                    Files.deleteIfExists(temp);
+                    continue;
+                }
+                if (status<200 || status>=300) throw getError(status);
+
+
+              //Use the file size returned by the server. SharePoint may
+              //modify Office documents on download (e.g. to add metadata)
+              //so the size may not match the size of the item.
+                long length = getLength(response);
+                if (length>-1) size = length;
+                break;
+            }
+            catch(IOException e){
+                if (attempt>=maxAttempts) throw e;
+            }
+        }
+
+
+      //Check size
+        if (size>-1 && Files.size(temp)!=size){
+            throw new IOException("Incomplete download. Expected " + size +
+            " bytes but received " + Files.size(temp));
+        }
+
+
+      //Move temp file into place
+        move(temp, target);
+        return new Result(total[0], hash[0].toString());
+    }
+
+
+  //**************************************************************************
+  //** downloadSegments
+  //**************************************************************************
+  /** Used to download a file in parallel using multiple range requests. The
+   *  temp file is preallocated and each segment is written at its offset.
+   *  Progress is saved in a ".ranges" file so that an interrupted download
+   *  can be resumed.
+   *  @return Null if the server does not support range requests
+   */
+    private Result downloadSegments(String url, Path temp, Path ranges, long size) throws Exception {
+
+
+      //Get segments
+        ArrayList<long[]> list = new ArrayList<>(); //start, end (inclusive), position
+        if (Files.exists(ranges) && Files.exists(temp) && Files.size(temp)==size){
+            for (String line : Files.readAllLines(ranges)){
+                String[] arr = line.trim().split(" ");
+                if (arr.length==3) list.add(new long[]{
+                    Long.parseLong(arr[0]), Long.parseLong(arr[1]), Long.parseLong(arr[2])
+                });
+            }
+        }
+        if (list.isEmpty()){
+            long segmentSize = (size+segments-1)/segments;
+            for (long start=0; start<size; start+=segmentSize){
+                list.add(new long[]{start, Math.min(start+segmentSize, size)-1, start});
+            }
+            Files.deleteIfExists(temp);
+            try (RandomAccessFile raf = new RandomAccessFile(temp.toFile(), "rw")){
+                raf.setLength(size);
+            }
+        }
+        saveRanges(list, ranges);
+
+
+      //Download segments
+        long[] total = new long[list.size()];
+        QuickXorHash[] hashes = new QuickXorHash[list.size()];
+        AtomicBoolean unsupported = new AtomicBoolean(false);
+        ExecutorService executor = getExecutor();
+        try (FileChannel channel = FileChannel.open(temp, READ, WRITE)){
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int i=0; i<list.size(); i++){
+                long[] segment = list.get(i);
+                int idx = i;
+                futures.add(executor.submit(() -> {
+                    hashes[idx] = new QuickXorHash(segment[0]);
+                    hash(channel, segment[0], segment[2], hashes[idx]);
+                    downloadSegment(url, size, segment, channel, total, idx, hashes[idx], unsupported);
+                    channel.force(false); //flush bytes before recording progress
+                    saveRanges(list, ranges);
+                    return null;
+                }));
+            }
+
+            Exception error = null;
+            for (Future<?> f : futures){
+                try{
+                    f.get();
+                }
+                catch(ExecutionException e){
+                    if (error==null){
+                        Throwable t = e.getCause();
+                        error = t instanceof Exception ? (Exception) t : e;
+                    }
+                }
+            }
+            channel.force(false);
+            if (error!=null) throw error;
+        }
+        finally{
+            saveRanges(list, ranges);
+        }
+
+
+      //Fallback to a single stream if range requests are not supported
+        if (unsupported.get()){
+            Files.deleteIfExists(temp);
+            Files.deleteIfExists(ranges);
+            return null;
+        }
+
+        Files.delete(ranges);
+        long sum = 0;
+        for (long t : total) sum += t;
+        QuickXorHash hash = new QuickXorHash();
+        for (QuickXorHash h : hashes) hash.add(h);
+        return new Result(sum, hash.toString());
+    }
+
+
+  //**************************************************************************
+  //** downloadSegment
+  //**************************************************************************
+  /** Used to download a segment and write it to the temp file. Retries
+   *  failed requests from the last byte written. Sets the unsupported flag
+   *  if the server doesn't support range requests or if the size of the
+   *  file on the server doesn't match the expected size.
+   */
+    private void downloadSegment(String url, long size, long[] segment, FileChannel channel,
+        long[] total, int idx, QuickXorHash hash, AtomicBoolean unsupported) throws Exception {
+
+        Throttle throttle = conn.getThrottle();
+        String resource = Throttle.getResource(url);
+        int throttled = 0;
+        for (int attempt=1; segment[2]<=segment[1] && !unsupported.get(); attempt++){
+
+            long delay = throttle.reserve(resource);
+            conn.getMetrics().recordDelay(Metrics.Endpoint.DOWNLOAD, delay);
+            if (delay>0) Thread.sleep(delay);
+
+            Semaphore permits = segmentPermits;
+            permits.acquire();
+            try{
+                HttpRequest request = getRequest(url)
+                .header("Range", "bytes=" + segment[2] + "-" + segment[1])
+                .build();
+
+                HttpResponse<InputStream> response = send(
+                    request, HttpResponse.BodyHandlers.ofInputStream()
+                );
+
+                int status = response.statusCode();
+                try (InputStream is = response.body();
+                     Watchdog watchdog = new Watchdog(is, conn.getRequestTimeout())){
+                    if (status==206 && getLength(response)!=size){
+                        unsupported.set(true);
+                        return;
+                    }
+                    else if (status==206){
+                        ReadableByteChannel input = Channels.newChannel(is);
+                        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                        long limit = segment[1]+1;
+                        while (segment[2]<limit && input.read(buffer)!=-1){
+                            watchdog.update();
+                            buffer.flip();
+                            if (buffer.remaining()>limit-segment[2]){
+                                buffer.limit((int) (limit-segment[2]));
+                            }
+                            while (buffer.hasRemaining()){
+                                int p = buffer.position();
+                                int n = channel.write(buffer, segment[2]);
+                                hash.update(buffer.array(), p, n);
+                                segment[2] += n;
+                                total[idx] += n;
+                                bytesTransferred.add(n);
+                                conn.getMetrics().recordTransfer(Metrics.Endpoint.DOWNLOAD, n);
+                            }
+                            buffer.clear();
+                        }
+                        if (segment[2]<limit) throw new IOException("Connection closed");
+                        return;
+                    }
+                    else if (status==200){
+                        unsupported.set(true);
+                        return;
+                    }
+                    else if ((status==429 || status==503) && throttled<throttle.getMaxRetries()){
+                        String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+                        pause(throttle, resource, retryAfter, throttled++);
+                        attempt--;
+                    }
+                    else{
+                        throw getError(status);
+                    }
+                }
+            }
+            catch(IOException e){
+                if (attempt>=maxAttempts) throw e;
+            }
+            finally{
+                permits.release();
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** hash
+  //**************************************************************************
+  /** Used to hash bytes that have already been written to a file
+   */
+    private static void hash(Path file, long start, long end, QuickXorHash hash) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)){
+            hash(channel, start, end, hash);
+        }
+    }
+
+    private static void hash(FileChannel channel, long start, long end, QuickXorHash hash) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long position = start;
+        while (position<end){
+            buffer.clear();
+            if (end-position<buffer.capacity()) buffer.limit((int) (end-position));
+            int n = channel.read(buffer, position);
+            if (n<0) throw new EOFException();
+            hash.update(buffer.array(), 0, n);
+            position += n;
+        }
+    }
+
+
+  //**************************************************************************
+  //** saveRanges
+  //**************************************************************************
+  /** Used to save the progress of a segmented download
+   */
+    private static void saveRanges(ArrayList<long[]> list, Path ranges) throws IOException {
+        StringBuilder str = new StringBuilder();
+        synchronized(list){
+            for (long[] segment : list){
+                str.append(segment[0]).append(" ").append(segment[1]);
+                str.append(" ").append(segment[2]).append("\n");
+            }
+            Files.write(ranges, str.toString().getBytes());
+        }
+    }
+
+
+  //**************************************************************************
+  //** getExecutor
+  //**************************************************************************
+    private synchronized ExecutorService getExecutor(){
+        if (executor==null){
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "graph-download");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return executor;
+    }
+
+
+  //**************************************************************************
+  //** send
+  //**************************************************************************
+  /** Used to send a request and record the response time and status
+   */
+    private <T> HttpResponse<T> send(HttpRequest request,
+        HttpResponse.BodyHandler<T> handler) throws Exception {
+        long startTime = System.nanoTime();
+        int status = 0;
+        try{
+            HttpResponse<T> response = conn.getClient().send(request, handler);
+            status = response.statusCode();
+            return response;
+        }
+        finally{
+            conn.getMetrics().recordRequest(Metrics.Endpoint.DOWNLOAD,
+            status, System.nanoTime()-startTime);
+        }
+    }
+
+
+  //**************************************************************************
+  //** pause
+  //**************************************************************************
+  /** Used to pause requests after the server throttled a request
+   */
+    private void pause(Throttle throttle, String resource, String retryAfter, int attempt){
+        long delay = Throttle.getRetryDelay(retryAfter, attempt);
+        conn.getMetrics().recordThrottle(Metrics.Endpoint.DOWNLOAD, delay);
+        throttle.pause(resource, delay);
+    }
+
+
+  //**************************************************************************
+  //** getLength
+  //**************************************************************************
+  /** Returns the size of the file on the server using the Content-Range
+   *  header in a 206 response or the Content-Length header in a 200
+   *  response. Returns -1 if the size is unknown.
+   */
+    private static long getLength(HttpResponse<?> response){
+        if (response.statusCode()==206){
+            String range = response.headers().firstValue("Content-Range").orElse("");
+            int idx = range.lastIndexOf("/");
+            try{
+                if (idx>-1) return Long.parseLong(range.substring(idx+1).trim());
+            }
+            catch(NumberFormatException e){}
+            return -1;
+        }
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+
+  //**************************************************************************
+  //** getError
+  //**************************************************************************
+  /** Returns an exception for an http error. Client errors, other than
+   *  timeouts (408) and throttling (429), are returned as a
+   *  ResponseException so that the request isn't retried. Other errors are
+   *  returned as an IOException.
+   */
+    private static Exception getError(int status){
+        if (status>=400 && status<500 && status!=408 && status!=429){
+            return new Connection.ResponseException(status, null);
+        }
+        return new IOException("Server returned HTTP response code: " + status);
+    }
+
+
+  //**************************************************************************
+  //** move
+  //**************************************************************************
+  /** Used to move a temp file into place
+   */
+    private static void move(Path temp, Path target) throws IOException {
+        try{
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(AtomicMoveNotSupportedException e){
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+  //**************************************************************************
+  //** transfer
+  //**************************************************************************
+  /** Used to download bytes into the temp file, starting at a given offset.
+   *  @param total Used to count the number of bytes written
+   *  @param hash Used to hash the bytes written
+   */
+    private HttpResponse<InputStream> transfer(String url, Path temp, long offset,
+        long[] total, QuickXorHash[] hash) throws Exception {
+
+        HttpRequest.Builder request = getRequest(url);
+        if (offset>0) request.header("Range", "bytes=" + offset + "-");
+
+        HttpResponse<InputStream> response = send(
+            request.build(), HttpResponse.BodyHandlers.ofInputStream()
+        );
+
+        int status = response.statusCode();
+        try (InputStream is = response.body();
+             Watchdog watchdog = new Watchdog(is, conn.getRequestTimeout())){
+            if (status!=200 && status!=206) return response;
+
+
+          //Write to temp file. If the server ignored the range request,
+          //start over from the beginning of the file.
+            boolean append = (status==206);
+            try (FileChannel channel = FileChannel.open(temp, CREATE, WRITE);
+                 ReadableByteChannel input = Channels.newChannel(is)){
+
+                if (append){
+                    channel.position(offset);
+                }
+                else{
+                    channel.truncate(0);
+                    hash[0] = new QuickXorHash();
+                }
+
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (input.read(buffer)!=-1){
+                    watchdog.update();
+                    buffer.flip();
+                    while (buffer.hasRemaining()){
+                        int p = buffer.position();
+                        int n = channel.write(buffer);
+                        hash[0].update(buffer.array(), p, n);
+                        bytesTransferred.add(n);
+                        conn.getMetrics().recordTransfer(Metrics.Endpoint.DOWNLOAD, n);
+                        total[0] += n;
+                    }
+                    buffer.clear();
+                }
+                channel.force(false);
+            }
+        }
+        return response;
+    }
+
+
+  //**************************************************************************
+  //** getRequest
+  //**************************************************************************
+  /** Returns a GET request for a download url. Download urls are
+   *  pre-authenticated so the request doesn't include an authorization
+   *  header. Uses the request timeout of the connection.
+   */
+    private HttpRequest.Builder getRequest(String url){
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+        .uri(java.net.URI.create(url))
+        .GET();
+        Duration timeout = conn.getRequestTimeout();
+        if (timeout!=null) request.timeout(timeout);
+        return request;
+    }
+
+
+  //**************************************************************************
+  //** getTempFile
+  //**************************************************************************
+  /** Returns the path to the temp file used to download a given file
+   */
+    public static Path getTempFile(Path file, String version){
+        String name = file.getFileName().toString();
+        if (version!=null) name += "." + Integer.toHexString(version.hashCode());
+        return file.resolveSibling(name + TEMP_EXT);
+    }
+
+
+  //**************************************************************************
+  //** isTempFile
+  //**************************************************************************
+  /** Returns true if the given file is a partial download of the target or
+   *  a file used to track the progress of a partial download
+   */
+    public static boolean isTempFile(String name, String target){
+        if (name.endsWith(RANGES_EXT)) name = name.substring(0, name.length()-RANGES_EXT.length());
+        if (!name.endsWith(TEMP_EXT) || !name.startsWith(target)) return false;
+        String suffix = name.substring(target.length(), name.length()-TEMP_EXT.length());
+        return suffix.isEmpty() || suffix.matches("\\.[0-9a-f]{1,8}");
+    }
+
+
+  //**************************************************************************
+  //** Watchdog Class
+  //**************************************************************************
+  /** Used to close a response stream if no bytes are received for a given
+   *  amount of time. Request timeouts only apply to the response headers so
+   *  a stalled connection would otherwise block a read indefinitely. Closing
+   *  the stream causes the blocked read to throw an IOException and the
+   *  download is retried from the last byte written.
+   */
+    private static class Watchdog implements AutoCloseable {
+        private static ScheduledExecutorService scheduler;
+        private final InputStream is;
+        private final long timeout;
+        private final ScheduledFuture<?> future;
+        private volatile long lastRead = System.nanoTime();
+
+        private Watchdog(InputStream is, Duration timeout){
+            this.is = is;
+            this.timeout = timeout==null ? 0 : timeout.toNanos();
+            if (this.timeout>0){
+                long period = Math.max(timeout.toMillis()/4, 100);
+                future = getScheduler().scheduleWithFixedDelay(
+                    this::check, period, period, TimeUnit.MILLISECONDS
+                );
+            }
+            else{
+                future = null;
+            }
+        }
+
+      /** Called after bytes are read from the stream */
+        private void update(){
+            lastRead = System.nanoTime();
+        }
+
+        private void check(){
+            if (System.nanoTime()-lastRead>timeout){
+                try{ is.close(); }
+                catch(Exception e){}
+                future.cancel(false);
+            }
+        }
+
+        public void close(){
+            if (future!=null) future.cancel(false);
+        }
+
+        private static synchronized ScheduledExecutorService getScheduler(){
+            if (scheduler==null){
+                ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+                    Thread t = new Thread(r, "graph-download-watchdog");
+                    t.setDaemon(true);
+                    return t;
+                });
+                executor.setRemoveOnCancelPolicy(true);
+                scheduler = executor;
+            }
+            return scheduler;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Result Class
+  //**************************************************************************
+  /** Used to represent the result of a download
+   */
+    public static class Result {
+        private final long bytesTransferred;
+        private final String hash;
+
+        private Result(long bytesTransferred, String hash){
+            this.bytesTransferred = bytesTransferred;
+            this.hash = hash;
+        }
+
+      /** Returns the number of bytes transferred. Does not include bytes
+       *  downloaded in a previous attempt that were resumed.
+       */
+        public long getBytesTransferred(){
+            return bytesTransferred;
+        }
+
+      /** Returns the base64 encoded quickXorHash of the file
+       */
+        public String getQuickXorHash(){
+            return hash;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,207 @@
+package javaxt.azure.graph;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import static java.nio.charset.StandardCharsets.*;
+
+
+//******************************************************************************
+//**  HashIndex
+//******************************************************************************
+/**
+ *   Used to remember the quickXorHash of local files so that files don't
+ *   have to be re-hashed every time they are compared to SharePoint. The
+ *   hash reported by SharePoint when a file was downloaded is stored with the
+ *   local hash. SharePoint may modify Office documents on download so the
+ *   two hashes (and sizes) don't always match. An entry is only valid while
+ *   the size and timestamp of the local file are unchanged.
+ *
+ ******************************************************************************/
+
+public class HashIndex {
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final String VERSION = "#v2";
+
+
+  //**************************************************************************
+  //** get
+  //**************************************************************************
+  /** Returns the hash of a file or null if the file has not been hashed or
+   *  if the file has changed since it was hashed
+   */
+    public String get(java.io.File file){
+        Entry entry = getEntry(file);
+        return entry==null ? null : entry.hash;
+    }
+
+
+  //**************************************************************************
+  //** getRemoteHash
+  //**************************************************************************
+  /** Returns the hash reported by SharePoint when the file was downloaded.
+   *  Returns null if the hash was not recorded or if the file has changed
+   *  since it was downloaded.
+   */
+    public String getRemoteHash(java.io.File file){
+        Entry entry = getEntry(file);
+        return entry==null ? null : entry.remoteHash;
+    }
+
+
+  //**************************************************************************
+  //** getHash
+  //**************************************************************************
+  /** Returns the hash of a file. Computes the hash if the file is not in the
+   *  index or if the file has changed.
+   */
+    public String getHash(java.io.File file) throws IOException {
+        String hash = get(file);
+        if (hash==null){
+            long size = file.length();
+            long lastModified = file.lastModified();
+            hash = QuickXorHash.getHash(file);
+            entries.put(getKey(file), new Entry(size, lastModified, hash, null));
+        }
+        return hash;
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Used to record the hash of a file using the current size and timestamp
+   *  of the file
+   */
+    public void put(java.io.File file, String hash){
+        put(file, hash, null);
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Used to record the hash of a file that was downloaded from SharePoint
+   *  @param hash Hash of the local file
+   *  @param remoteHash Hash reported by SharePoint. Optional.
+   */
+    public void put(java.io.File file, String hash, String remoteHash){
+        if (hash==null) remove(file);
+        else entries.put(getKey(file), new Entry(file.length(), file.lastModified(), hash, remoteHash));
+    }
+
+
+  //**************************************************************************
+  //** remove
+  //**************************************************************************
+    public void remove(java.io.File file){
+        entries.remove(getKey(file));
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+    public int size(){
+        return entries.size();
+    }
+
+
+  //**************************************************************************
+  //** load
+  //**************************************************************************
+  /** Returns an index stored in a file. Returns an empty index if the file
+   *  does not exist. Files saved before the remote hash was recorded are
+   *  supported.
+   */
+    public static HashIndex load(Path file) throws IOException {
+        HashIndex index = new HashIndex();
+        if (!Files.exists(file)) return index;
+        try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)){
+            String line = reader.readLine();
+            int n = VERSION.equals(line) ? 5 : 4;
+            if (n==5) line = reader.readLine();
+            while (line!=null){
+                String[] arr = line.split("\t", n);
+                if (arr.length==n){
+                    try{
+                        String remoteHash = n==5 && !arr[3].isEmpty() ? arr[3] : null;
+                        index.entries.put(arr[n-1], new Entry(
+                        Long.parseLong(arr[0]), Long.parseLong(arr[1]), arr[2], remoteHash));
+                    }
+                    catch(NumberFormatException e){}
+                }
+                line = reader.readLine();
+            }
+        }
+        return index;
+    }
+
+
+  //**************************************************************************
+  //** save
+  //**************************************************************************
+  /** Used to save the index to a file. The index is written to a temp file
+   *  first and then moved into place.
+   */
+    public void save(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try{
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, UTF_8)){
+                writer.write(VERSION);
+                writer.newLine();
+                for (Map.Entry<String, Entry> e : entries.entrySet()){
+                    Entry entry = e.getValue();
+                    writer.write(entry.size + "\t" + entry.lastModified + "\t" + entry.hash + "\t");
+                    writer.write((entry.remoteHash==null ? "" : entry.remoteHash) + "\t");
+                    writer.write(e.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally{
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getEntry
+  //**************************************************************************
+  /** Returns the entry for a file or null if the file has changed
+   */
+    private Entry getEntry(java.io.File file){
+        Entry entry = entries.get(getKey(file));
+        if (entry==null) return null;
+        if (entry.size!=file.length() || entry.lastModified!=file.lastModified()) return null;
+        return entry;
+    }
+
+
+    private static String getKey(java.io.File file){
+        return file.getAbsolutePath();
+    }
+
+
+  //**************************************************************************
+  //** Entry Class
+  //**************************************************************************
+    private static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final String hash;
+        private final String remoteHash;
+
+        private Entry(long size, long lastModified, String hash, String remoteHash){
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+            this.remoteHash = remoteHash;
+        }
+    }
+}
@@ -0,0 +1,564 @@
+package javaxt.azure.graph;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+import javaxt.json.*;
+
+
+//******************************************************************************
+//**  Metrics
+//******************************************************************************
+/**
+ *   Used to collect request metrics for a Connection, including request
+ *   counts, latency histograms, status codes, throttling, bytes
+ *   transferred, response compression, and cache hits, grouped by endpoint. Recording a metric only updates
+ *   counters (LongAdder and AtomicLongArray) so it never allocates or locks.
+ *   Metrics can be read directly, via a Listener, or via JMX (see register).
+ *
+ ******************************************************************************/
+
+public class Metrics {
+
+  /** Upper bounds of the latency histogram buckets, in milliseconds. The
+   *  last bucket has no upper bound.
+   */
+    private static final long[] BUCKETS = {
+        1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000
+    };
+    private static final int MAX_STATUS = 600;
+
+    private final Stats[] stats;
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private volatile Listener[] listeners = new Listener[0];
+    private ObjectName objectName;
+
+
+  //**************************************************************************
+  //** Endpoint
+  //**************************************************************************
+  /** Used to group requests by service
+   */
+    public enum Endpoint {
+        USERS, OUTLOOK, SHAREPOINT, BATCH, DOWNLOAD, UPLOAD, TOKEN, OTHER;
+
+      /** Returns the endpoint for a resource name returned by
+       *  Throttle.getResource()
+       */
+        public static Endpoint get(String resource){
+            if (resource==null) return OTHER;
+            switch (resource){
+                case "users": return USERS;
+                case "outlook": return OUTLOOK;
+                case "sharepoint": return SHAREPOINT;
+                case "$batch": return BATCH;
+                case "download": return DOWNLOAD;
+                case "upload": return UPLOAD;
+                default: return OTHER;
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** Listener
+  //**************************************************************************
+  /** Used to receive metrics as they are recorded. Listeners are called on
+   *  the thread that recorded the metric so implementations should return
+   *  quickly.
+   */
+    public static interface Listener {
+
+      /** Called when a response is received or a request fails
+       *  @param status Http status code or 0 if the request failed
+       *  @param nanos Time to receive the response headers
+       */
+        public default void onRequest(Endpoint endpoint, int status, long nanos){}
+
+      /** Called when the server throttles a request (429 or 503)
+       *  @param delay Number of milliseconds to wait before the retry
+       */
+        public default void onThrottle(Endpoint endpoint, long delay){}
+
+      /** Called when the client-side rate limiter delays a request
+       */
+        public default void onDelay(Endpoint endpoint, long delay){}
+
+      /** Called when bytes are downloaded or uploaded
+       */
+        public default void onTransfer(Endpoint endpoint, long bytes){}
+
+      /** Called when a json response is received
+       *  @param bytes Number of bytes received from the server
+       *  @param decodedBytes Number of bytes after decompression
+       */
+        public default void onResponse(Endpoint endpoint, long bytes, long decodedBytes){}
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public Metrics(){
+        stats = new Stats[Endpoint.values().length];
+        for (int i=0; i<stats.length; i++) stats[i] = new Stats();
+    }
+
+
+  //**************************************************************************
+  //** recordRequest
+  //**************************************************************************
+  /** Used to record a response or a failed request
+   *  @param status Http status code or 0 if the request failed
+   *  @param nanos Time to receive the response headers
+   */
+    public void recordRequest(Endpoint endpoint, int status, long nanos){
+        Stats s = stats[endpoint.ordinal()];
+        s.requests.increment();
+        if (status<200 || status>=400) s.errors.increment();
+        s.statusCodes.incrementAndGet(status>0 && status<MAX_STATUS ? status : 0);
+        s.nanos.add(nanos);
+        s.histogram.incrementAndGet(getBucket(nanos/1000000));
+
+        Listener[] arr = listeners;
+        for (int i=0; i<arr.length; i++) arr[i].onRequest(endpoint, status, nanos);
+    }
+
+
+  //**************************************************************************
+  //** recordThrottle
+  //**************************************************************************
+  /** Used to record a throttled request (429 or 503)
+   *  @param delay Number of milliseconds to wait before the retry
+   */
+    public void recordThrottle(Endpoint endpoint, long delay){
+        Stats s = stats[endpoint.ordinal()];
+        s.throttled.increment();
+        s.backoff.add(delay);
+
+        Listener[] arr = listeners;
+        for (int i=0; i<arr.length; i++) arr[i].onThrottle(endpoint, delay);
+    }
+
+
+  //**************************************************************************
+  //** recordDelay
+  //**************************************************************************
+  /** Used to record time spent waiting for the client-side rate limiter
+   */
+    public void recordDelay(Endpoint endpoint, long delay){
+        if (delay<=0) return;
+        stats[endpoint.ordinal()].delay.add(delay);
+
+        Listener[] arr = listeners;
+        for (int i=0; i<arr.length; i++) arr[i].onDelay(endpoint, delay);
+    }
+
+
+  //**************************************************************************
+  //** recordTransfer
+  //**************************************************************************
+  /** Used to record bytes downloaded or uploaded
+   */
+    public void recordTransfer(Endpoint endpoint, long bytes){
+        stats[endpoint.ordinal()].bytes.add(bytes);
+
+        Listener[] arr = listeners;
+        for (int i=0; i<arr.length; i++) arr[i].onTransfer(endpoint, bytes);
+    }
+
+
+  //**************************************************************************
+  //** recordResponse
+  //**************************************************************************
+  /** Used to record the size of a json response
+   *  @param bytes Number of bytes received from the server
+   *  @param decodedBytes Number of bytes after decompression. Same as bytes
+   *  if the response was not compressed.
+   */
+    public void recordResponse(Endpoint endpoint, long bytes, long decodedBytes){
+        Stats s = stats[endpoint.ordinal()];
+        s.responseBytes.add(bytes);
+        s.decodedBytes.add(decodedBytes);
+
+        Listener[] arr = listeners;
+        for (int i=0; i<arr.length; i++) arr[i].onResponse(endpoint, bytes, decodedBytes);
+    }
+
+
+  //**************************************************************************
+  //** recordCacheHit
+  //**************************************************************************
+  /** Used to record a response that was returned from the ResponseCache
+   *  without a request
+   */
+    public void recordCacheHit(Endpoint endpoint){
+        stats[endpoint.ordinal()].cacheHits.increment();
+    }
+
+
+  //**************************************************************************
+  //** addListener
+  //**************************************************************************
+    public synchronized void addListener(Listener listener){
+        Listener[] arr = Arrays.copyOf(listeners, listeners.length+1);
+        arr[arr.length-1] = listener;
+        listeners = arr;
+    }
+
+
+  //**************************************************************************
+  //** removeListener
+  //**************************************************************************
+    public synchronized void removeListener(Listener listener){
+        ArrayList<Listener> list = new ArrayList<>(Arrays.asList(listeners));
+        list.remove(listener);
+        listeners = list.toArray(new Listener[0]);
+    }
+
+
+  //**************************************************************************
+  //** setGauge
+  //**************************************************************************
+  /** Used to add a value that is sampled when metrics are read (e.g. the
+   *  number of files waiting to be downloaded)
+   */
+    public void setGauge(String name, LongSupplier gauge){
+        if (gauge==null) gauges.remove(name);
+        else gauges.put(name, gauge);
+    }
+
+
+  //**************************************************************************
+  //** getRequests
+  //**************************************************************************
+    public long getRequests(Endpoint endpoint){
+        return stats[endpoint.ordinal()].requests.sum();
+    }
+
+
+  //**************************************************************************
+  //** getErrors
+  //**************************************************************************
+  /** Returns the number of requests that failed or returned a status code
+   *  outside of the 2xx and 3xx range
+   */
+    public long getErrors(Endpoint endpoint){
+        return stats[endpoint.ordinal()].errors.sum();
+    }
+
+
+  //**************************************************************************
+  //** getStatusCount
+  //**************************************************************************
+  /** Returns the number of responses with a given status code. Use 0 for
+   *  failed requests.
+   */
+    public long getStatusCount(Endpoint endpoint, int status){
+        if (status<0 || status>=MAX_STATUS) return 0;
+        return stats[endpoint.ordinal()].statusCodes.get(status);
+    }
+
+
+  //**************************************************************************
+  //** getThrottled
+  //**************************************************************************
+    public long getThrottled(Endpoint endpoint){
+        return stats[endpoint.ordinal()].throttled.sum();
+    }
+
+
+  //**************************************************************************
+  //** getBackoff
+  //**************************************************************************
+  /** Returns the total number of milliseconds spent waiting to retry
+   *  throttled requests
+   */
+    public long getBackoff(Endpoint endpoint){
+        return stats[endpoint.ordinal()].backoff.sum();
+    }
+
+
+  //**************************************************************************
+  //** getDelay
+  //**************************************************************************
+  /** Returns the total number of milliseconds spent waiting for the
+   *  client-side rate limiter
+   */
+    public long getDelay(Endpoint endpoint){
+        return stats[endpoint.ordinal()].delay.sum();
+    }
+
+
+  //**************************************************************************
+  //** getBytes
+  //**************************************************************************
+    public long getBytes(Endpoint endpoint){
+        return stats[endpoint.ordinal()].bytes.sum();
+    }
+
+
+  //**************************************************************************
+  //** getResponseBytes
+  //**************************************************************************
+  /** Returns the number of bytes received in json responses. Compressed
+   *  responses are counted before decompression.
+   */
+    public long getResponseBytes(Endpoint endpoint){
+        return stats[endpoint.ordinal()].responseBytes.sum();
+    }
+
+
+  //**************************************************************************
+  //** getDecodedBytes
+  //**************************************************************************
+  /** Returns the number of bytes in json responses after decompression
+   */
+    public long getDecodedBytes(Endpoint endpoint){
+        return stats[endpoint.ordinal()].decodedBytes.sum();
+    }
+
+
+  //**************************************************************************
+  //** getCacheHits
+  //**************************************************************************
+  /** Returns the number of responses returned from the ResponseCache
+   *  without a request. Responses revalidated by the server are counted as
+   *  requests with a 304 status.
+   */
+    public long getCacheHits(Endpoint endpoint){
+        return stats[endpoint.ordinal()].cacheHits.sum();
+    }
+
+
+  //**************************************************************************
+  //** getLatency
+  //**************************************************************************
+  /** Returns the approximate latency, in milliseconds, for a given
+   *  percentile. The value is the upper bound of the histogram bucket the
+   *  percentile falls in.
+   *  @param percentile Value between 0 and 1 (e.g. 0.99)
+   */
+    public long getLatency(Endpoint endpoint, double percentile){
+        AtomicLongArray histogram = stats[endpoint.ordinal()].histogram;
+        long total = 0;
+        for (int i=0; i<histogram.length(); i++) total += histogram.get(i);
+        if (total==0) return 0;
+
+        long target = (long) Math.ceil(total*percentile);
+        long count = 0;
+        for (int i=0; i<histogram.length(); i++){
+            count += histogram.get(i);
+            if (count>=target && count>0) return BUCKETS[Math.min(i, BUCKETS.length-1)];
+        }
+        return BUCKETS[BUCKETS.length-1];
+    }
+
+
+  //**************************************************************************
+  //** getHistogram
+  //**************************************************************************
+  /** Returns the latency histogram for an endpoint. Keys are the upper
+   *  bounds of each bucket in milliseconds (e.g. "<=250") and values are
+   *  the number of requests in the bucket.
+   */
+    public LinkedHashMap<String, Long> getHistogram(Endpoint endpoint){
+        AtomicLongArray histogram = stats[endpoint.ordinal()].histogram;
+        LinkedHashMap<String, Long> map = new LinkedHashMap<>();
+        for (int i=0; i<histogram.length(); i++){
+            String key = i<BUCKETS.length ? "<=" + BUCKETS[i] : ">" + BUCKETS[BUCKETS.length-1];
+            map.put(key, histogram.get(i));
+        }
+        return map;
+    }
+
+
+  //**************************************************************************
+  //** getGauges
+  //**************************************************************************
+    public TreeMap<String, Long> getGauges(){
+        TreeMap<String, Long> map = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()){
+            try{
+                map.put(entry.getKey(), entry.getValue().getAsLong());
+            }
+            catch(Exception e){}
+        }
+        return map;
+    }
+
+
+  //**************************************************************************
+  //** toJson
+  //**************************************************************************
+  /** Returns a snapshot of the metrics. Endpoints without any activity are
+   *  omitted.
+   */
+    public JSONObject toJson(){
+        JSONObject json = new JSONObject();
+        JSONObject endpoints = new JSONObject();
+        for (Endpoint endpoint : Endpoint.values()){
+            Stats s = stats[endpoint.ordinal()];
+            long requests = s.requests.sum();
+            long bytes = s.bytes.sum();
+            long cacheHits = s.cacheHits.sum();
+            if (requests==0 && bytes==0 && cacheHits==0) continue;
+
+            JSONObject e = new JSONObject();
+            e.set("requests", requests);
+            e.set("errors", s.errors.sum());
+            e.set("throttled", s.throttled.sum());
+            e.set("backoff", s.backoff.sum());
+            e.set("delay", s.delay.sum());
+            e.set("bytes", bytes);
+            e.set("responseBytes", s.responseBytes.sum());
+            e.set("decodedBytes", s.decodedBytes.sum());
+            e.set("cacheHits", cacheHits);
+            e.set("latency", requests==0 ? 0 : s.nanos.sum()/requests/1000000);
+            e.set("p50", getLatency(endpoint, 0.5));
+            e.set("p99", getLatency(endpoint, 0.99));
+
+            JSONObject statusCodes = new JSONObject();
+            for (int i=0; i<MAX_STATUS; i++){
+                long n = s.statusCodes.get(i);
+                if (n>0) statusCodes.set(i+"", n);
+            }
+            e.set("status", statusCodes);
+            endpoints.set(endpoint.name().toLowerCase(), e);
+        }
+        json.set("endpoints", endpoints);
+
+        JSONObject gauges = new JSONObject();
+        for (Map.Entry<String, Long> entry : getGauges().entrySet()){
+            gauges.set(entry.getKey(), entry.getValue());
+        }
+        json.set("gauges", gauges);
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** register
+  //**************************************************************************
+  /** Used to expose the metrics as an MXBean via the platform MBean server
+   *  (e.g. "javaxt.azure.graph:type=Metrics,name=sync")
+   */
+    public synchronized void register(String name) throws Exception {
+        unregister();
+        ObjectName objectName = new ObjectName("javaxt.azure.graph:type=Metrics,name=" +
+        ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+            new StandardMBean(new MXBeanImpl(), MetricsMXBean.class, true), objectName
+        );
+        this.objectName = objectName;
+    }
+
+
+  //**************************************************************************
+  //** unregister
+  //**************************************************************************
+  /** Used to remove the MXBean created by the register method
+   */
+    public synchronized void unregister(){
+        if (objectName==null) return;
+        try{
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch(Exception e){}
+        objectName = null;
+    }
+
+
+  //**************************************************************************
+  //** getBucket
+  //**************************************************************************
+    private static int getBucket(long ms){
+        for (int i=0; i<BUCKETS.length; i++){
+            if (ms<=BUCKETS[i]) return i;
+        }
+        return BUCKETS.length;
+    }
+
+
+  //**************************************************************************
+  //** Stats Class
+  //**************************************************************************
+  /** Used to store counters for an endpoint
+   */
+    private static class Stats {
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder throttled = new LongAdder();
+        private final LongAdder backoff = new LongAdder();
+        private final LongAdder delay = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+        private final LongAdder decodedBytes = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+        private final AtomicLongArray statusCodes = new AtomicLongArray(MAX_STATUS);
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS.length+1);
+    }
+
+
+  //**************************************************************************
+  //** MetricsMXBean
+  //**************************************************************************
+  /** Attributes exposed via JMX. Maps are keyed by endpoint name.
+   */
+    public static interface MetricsMXBean {
+        public Map<String, Long> getRequests();
+        public Map<String, Long> getErrors();
+        public Map<String, Long> getThrottled();
+        public Map<String, Long> getBackoffMillis();
+        public Map<String, Long> getDelayMillis();
+        public Map<String, Long> getBytes();
+        public Map<String, Long> getResponseBytes();
+        public Map<String, Long> getDecodedBytes();
+        public Map<String, Long> getCacheHits();
+        public Map<String, Long> getLatencyP50();
+        public Map<String, Long> getLatencyP99();
+        public Map<String, Long> getStatusCodes();
+        public Map<String, Long> getGauges();
+    }
+
+    private class MXBeanImpl implements MetricsMXBean {
+
+        private Map<String, Long> get(java.util.function.ToLongFunction<Endpoint> f){
+            TreeMap<String, Long> map = new TreeMap<>();
+            for (Endpoint endpoint : Endpoint.values()){
+                map.put(endpoint.name().toLowerCase(), f.applyAsLong(endpoint));
+            }
+            return map;
+        }
+
+        public Map<String, Long> getRequests(){ return get(e -> Metrics.this.getRequests(e)); }
+        public Map<String, Long> getErrors(){ return get(e -> Metrics.this.getErrors(e)); }
+        public Map<String, Long> getThrottled(){ return get(e -> Metrics.this.getThrottled(e)); }
+        public Map<String, Long> getBackoffMillis(){ return get(e -> Metrics.this.getBackoff(e)); }
+        public Map<String, Long> getDelayMillis(){ return get(e -> Metrics.this.getDelay(e)); }
+        public Map<String, Long> getBytes(){ return get(e -> Metrics.this.getBytes(e)); }
+        public Map<String, Long> getResponseBytes(){ return get(e -> Metrics.this.getResponseBytes(e)); }
+        public Map<String, Long> getDecodedBytes(){ return get(e -> Metrics.this.getDecodedBytes(e)); }
+        public Map<String, Long> getCacheHits(){ return get(e -> Metrics.this.getCacheHits(e)); }
+        public Map<String, Long> getLatencyP50(){ return get(e -> getLatency(e, 0.5)); }
+        public Map<String, Long> getLatencyP99(){ return get(e -> getLatency(e, 0.99)); }
+        public Map<String, Long> getGauges(){ return Metrics.this.getGauges(); }
+
+        public Map<String, Long> getStatusCodes(){
+            TreeMap<String, Long> map = new TreeMap<>();
+            for (Endpoint endpoint : Endpoint.values()){
+                AtomicLongArray statusCodes = stats[endpoint.ordinal()].statusCodes;
+                for (int i=0; i<MAX_STATUS; i++){
+                    long n = statusCodes.get(i);
+                    if (n>0) map.merge(i+"", n, Long::sum);
+                }
+            }
+            return map;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package javaxt.azure.graph;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import javaxt.json.*;
 
 public class Node {
@@ -8,13 +10,17 @@ public class Node {
     protected Connection conn;
     private JSONObject json;
 
+  //Values parsed from the json, by key. Nulls are stored as NULL.
+    private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>(4);
+    private static final Object NULL = new Object();
+
     protected Node(JSONObject json, Connection conn){
         this.json = json;
         this.conn = conn;
     }
 
     public String getID(){
-        return json.get("id").toString();
+        return getValue("id", JSONValue::toString);
     }
 
     public JSONValue get(String key){
@@ -25,19 +31,51 @@ public class Node {
         return json.keySet();
     }
 
+  /** Returns a copy of the lastModifiedDateTime. The date is only parsed
+   *  once.
+   */
     public javaxt.utils.Date getLastModifiedDate(){
-        return get("lastModifiedDateTime").toDate();
+        javaxt.utils.Date date = getValue("lastModifiedDateTime", JSONValue::toDate);
+        return date==null ? null : date.clone();
     }
 
     public void set(String key, Object val){
         json.set(key, val);
+        invalidate(key);
     }
 
+  /** Returns the json backing this node. Use set() to update fields.
+   *  Otherwise, call invalidate() after modifying the json so that getters
+   *  don't return stale values.
+   */
     public JSONObject toJson(){
         return json;
     }
 
+  /** Returns a value parsed from a field in the json. The parser is called
+   *  once and the result is returned on subsequent calls until the field is
+   *  updated via set() or invalidate(). Use a method reference or a lambda
+   *  that doesn't capture any variables so that no objects are created on
+   *  repeated calls.
+   */
+    @SuppressWarnings("unchecked")
+    protected <T> T getValue(String key, Function<JSONValue, T> parser){
+        Object val = values.get(key);
+        if (val==null){
+            val = parser.apply(json.get(key));
+            if (val==null) val = NULL;
+            values.put(key, val);
+        }
+        return val==NULL ? null : (T) val;
+    }
+
+  /** Used to clear a cached value after a field is modified
+   */
+    public void invalidate(String key){
+        values.remove(key);
+    }
+
     public String toString(){
         return json.toString(4);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,159 @@
+package javaxt.azure.graph;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javaxt.json.*;
+
+
+//******************************************************************************
+//**  Pager
+//******************************************************************************
+/**
+ *   Used to iterate through a paged collection returned by the graph API.
+ *   Pages are requested lazily by following the "@odata.nextLink". The next
+ *   page is requested as soon as the caller starts on the current page so
+ *   that at most two pages are held in memory at any given time. Example:
+ <pre>
+    for (User user : User.getUsers(conn, 999)){
+        ...
+    }
+ </pre>
+ *
+ ******************************************************************************/
+
+public class Pager<T> implements Iterator<T>, Iterable<T> {
+
+    private final Connection conn;
+    private final Map<String, String> headers;
+    private final Function<JSONObject, T> factory;
+
+    private Iterator<JSONValue> current;
+    private CompletableFuture<JSONObject> next;
+    private String nextLink;
+    private String deltaLink;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param url Url of the first page
+   *  @param headers Optional request headers sent with every page request
+   *  @param factory Used to create objects from records in a page
+   */
+    public Pager(String url, Map<String, String> headers,
+        Function<JSONObject, T> factory, Connection conn){
+        this.conn = conn;
+        this.headers = headers;
+        this.factory = factory;
+        this.next = conn.getResponseAsync(url, null, null, headers);
+    }
+
+
+  //**************************************************************************
+  //** hasNext
+  //**************************************************************************
+  /** Returns true if there are more records. Blocks if the next page has not
+   *  been downloaded yet.
+   *  @throws java.util.concurrent.CompletionException if a page request
+   *  failed
+   */
+    public boolean hasNext(){
+        while (current==null || !current.hasNext()){
+            if (next==null){
+                current = null;
+                return false;
+            }
+
+
+          //Get next page
+            JSONObject json = next.join();
+            current = json.get("value").toJSONArray().iterator();
+            nextLink = json.get("@odata.nextLink").toString();
+            deltaLink = json.get("@odata.deltaLink").toString();
+
+
+          //Prefetch the following page
+            next = nextLink==null ? null : conn.getResponseAsync(nextLink, null, null, headers);
+        }
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** next
+  //**************************************************************************
+    public T next(){
+        if (!hasNext()) throw new NoSuchElementException();
+        return factory.apply(current.next().toJSONObject());
+    }
+
+
+  //**************************************************************************
+  //** iterator
+  //**************************************************************************
+    public Iterator<T> iterator(){
+        return this;
+    }
+
+
+  //**************************************************************************
+  //** stream
+  //**************************************************************************
+  /** Returns a sequential stream backed by this pager
+   */
+    public Stream<T> stream(){
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+        this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+        .onClose(this::close);
+    }
+
+
+  //**************************************************************************
+  //** getDeltaLink
+  //**************************************************************************
+  /** Returns the "@odata.deltaLink" from the last page, if any. Only
+   *  available once all the records have been read from a delta query.
+   */
+    public String getDeltaLink(){
+        return deltaLink;
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Used to stop paging. Cancels any pending page request.
+   */
+    public void close(){
+        if (next!=null) next.cancel(false);
+        next = null;
+        current = null;
+    }
+
+
+  //**************************************************************************
+  //** getAll
+  //**************************************************************************
+  /** Used to fetch every page of a collection without blocking the caller
+   */
+    public static <T> CompletableFuture<ArrayList<T>> getAll(String url,
+        Map<String, String> headers, Function<JSONObject, T> factory, Connection conn){
+        return getAll(url, headers, factory, conn, new ArrayList<>());
+    }
+
+    private static <T> CompletableFuture<ArrayList<T>> getAll(String url,
+        Map<String, String> headers, Function<JSONObject, T> factory,
+        Connection conn, ArrayList<T> list){
+        return conn.getResponseAsync(url, null, null, headers).thenCompose(json -> {
+            for (JSONValue v : json.get("value").toJSONArray()){
+                list.add(factory.apply(v.toJSONObject()));
+            }
+            String nextLink = json.get("@odata.nextLink").toString();
+            if (nextLink==null) return CompletableFuture.completedFuture(list);
+            return getAll(nextLink, headers, factory, conn, list);
+        });
+    }
+}
\ No newline at end of file
@@ -0,0 +1,181 @@
+package javaxt.azure.graph;
+
+import java.nio.ByteBuffer;
+
+
+//******************************************************************************
+//**  QuickXorHash
+//******************************************************************************
+/**
+ *   Used to compute the quickXorHash of a file. This is the hash SharePoint
+ *   and OneDrive for Business report in the "file.hashes.quickXorHash" field
+ *   of a driveItem. Each byte is XORed into a 160-bit register at a bit
+ *   position that depends only on the position of the byte in the file so
+ *   different parts of a file can be hashed separately and combined (see
+ *   the offset constructor and the add() method).
+ *
+ ******************************************************************************/
+
+public class QuickXorHash {
+
+    private static final int BITS_IN_LAST_CELL = 32;
+    private static final int SHIFT = 11;
+    private static final int WIDTH_IN_BITS = 160;
+
+    private final long[] data = new long[(WIDTH_IN_BITS-1)/64+1];
+    private long length;
+    private int shiftSoFar;
+    private byte[] buffer;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public QuickXorHash(){
+        this(0);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to hash part of a file
+   *  @param offset Position of the first byte in the file
+   */
+    public QuickXorHash(long offset){
+        shiftSoFar = (int) (((offset % WIDTH_IN_BITS) * SHIFT) % WIDTH_IN_BITS);
+    }
+
+
+  //**************************************************************************
+  //** update
+  //**************************************************************************
+    public void update(byte[] array, int start, int size){
+        int currentShift = shiftSoFar;
+
+        int vectorArrayIndex = currentShift / 64;
+        int vectorOffset = currentShift % 64;
+        int iterations = Math.min(size, WIDTH_IN_BITS);
+
+        for (int i=0; i<iterations; i++){
+            boolean isLastCell = vectorArrayIndex==data.length-1;
+            int bitsInVectorCell = isLastCell ? BITS_IN_LAST_CELL : 64;
+
+            if (vectorOffset<=bitsInVectorCell-8){
+                for (int j=start+i; j<size+start; j+=WIDTH_IN_BITS){
+                    data[vectorArrayIndex] ^= (long) (array[j] & 0xff) << vectorOffset;
+                }
+            }
+            else{
+                int index1 = vectorArrayIndex;
+                int index2 = isLastCell ? 0 : (vectorArrayIndex+1);
+                int low = bitsInVectorCell-vectorOffset;
+
+                int xoredByte = 0;
+                for (int j=start+i; j<size+start; j+=WIDTH_IN_BITS){
+                    xoredByte ^= (array[j] & 0xff);
+                }
+                data[index1] ^= (long) xoredByte << vectorOffset;
+                data[index2] ^= (long) xoredByte >>> low;
+            }
+
+            vectorOffset += SHIFT;
+            while (vectorOffset>=bitsInVectorCell){
+                vectorArrayIndex = isLastCell ? 0 : vectorArrayIndex+1;
+                vectorOffset -= bitsInVectorCell;
+            }
+        }
+
+        shiftSoFar = (int) ((shiftSoFar + (long) SHIFT * (size % WIDTH_IN_BITS)) % WIDTH_IN_BITS);
+        length += size;
+    }
+
+
+  //**************************************************************************
+  //** update
+  //**************************************************************************
+  /** Used to hash the remaining bytes in a buffer. The position of the
+   *  buffer is not changed.
+   */
+    public void update(ByteBuffer buf){
+        if (buf.hasArray()){
+            update(buf.array(), buf.arrayOffset()+buf.position(), buf.remaining());
+            return;
+        }
+        ByteBuffer b = buf.duplicate();
+        if (buffer==null) buffer = new byte[64*1024];
+        while (b.hasRemaining()){
+            int n = Math.min(b.remaining(), buffer.length);
+            b.get(buffer, 0, n);
+            update(buffer, 0, n);
+        }
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to combine the hash of another part of the file with this hash
+   */
+    public void add(QuickXorHash hash){
+        for (int i=0; i<data.length; i++) data[i] ^= hash.data[i];
+        length += hash.length;
+    }
+
+
+  //**************************************************************************
+  //** getLength
+  //**************************************************************************
+  /** Returns the number of bytes hashed
+   */
+    public long getLength(){
+        return length;
+    }
+
+
+  //**************************************************************************
+  //** digest
+  //**************************************************************************
+    public byte[] digest(){
+        byte[] rgb = new byte[(WIDTH_IN_BITS-1)/8+1];
+        for (int i=0; i<data.length; i++){
+            int n = Math.min(8, rgb.length-i*8);
+            for (int j=0; j<n; j++){
+                rgb[i*8+j] = (byte) (data[i] >>> (8*j));
+            }
+        }
+
+        for (int i=0; i<8; i++){
+            rgb[WIDTH_IN_BITS/8-8+i] ^= (byte) (length >>> (8*i));
+        }
+        return rgb;
+    }
+
+
+  //**************************************************************************
+  //** toString
+  //**************************************************************************
+  /** Returns the hash as a base64 encoded string
+   */
+    public String toString(){
+        return java.util.Base64.getEncoder().encodeToString(digest());
+    }
+
+
+  //**************************************************************************
+  //** getHash
+  //**************************************************************************
+  /** Returns the base64 encoded quickXorHash of a file
+   */
+    public static String getHash(java.io.File file) throws java.io.IOException {
+        QuickXorHash hash = new QuickXorHash();
+        byte[] b = new byte[64*1024];
+        try (java.io.InputStream is = new java.io.FileInputStream(file)){
+            int n;
+            while ((n=is.read(b))!=-1){
+                hash.update(b, 0, n);
+            }
+        }
+        return hash.toString();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,587 @@
+package javaxt.azure.graph;
+
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import javaxt.json.*;
+import static java.nio.charset.StandardCharsets.*;
+import static javaxt.utils.Console.console;
+
+
+//******************************************************************************
+//**  ResponseCache
+//******************************************************************************
+/**
+ *   Used to cache json responses for GET requests made by a Connection.
+ *   Cached responses are returned without a request while they are fresh
+ *   (see "ttl"). Once an entry is stale, the request is sent with an
+ *   If-None-Match header if the server returned an ETag, and the cached
+ *   response is reused if the server returns a 304. Entries are kept in
+ *   memory and, optionally, in a directory on disk. Both tiers are bounded by
+ *   size and evict the least recently used entries first. Example config:
+ <pre>
+    {
+        "maxSize" : 64,                  //MB of responses kept in memory
+        "directory" : "/temp/graph",     //optional disk cache
+        "maxDiskSize" : 1024,            //MB of responses kept on disk
+        "maxAge" : 1800,                 //max seconds an entry can be reused
+        "ttl" : {                        //seconds an entry is used without
+            "sharepoint" : 300,          //revalidation, by endpoint
+            "users" : 300,
+            "outlook" : 0,
+            "default" : 60
+        }
+    }
+ </pre>
+ *   Delta queries and download urls are never cached. Successful POST,
+ *   PATCH, PUT, and DELETE requests sent via the Connection remove cached
+ *   responses for the container that owns the resource. For drive items,
+ *   that is every response under the drive (e.g. "/drives/{id}" or
+ *   "/users/{id}/drive") regardless of whether an item was addressed by id
+ *   or by path. For calendars, that is every calendar, calendarView, and
+ *   events response for the user or group. Other resources only clear the
+ *   same url, its children, and its parent collection. Changes made by
+ *   other clients, or writes to a drive via a different address (e.g. a
+ *   site drive vs "/drives/{id}"), are picked up once an entry becomes
+ *   stale. The maxAge
+ *   limits how long an entry can be reused via 304 responses, which matters
+ *   for responses that include short-lived download urls. Keys include the
+ *   graph url, tenant, and client ID of the connection (see getKey) so a
+ *   cache, or a cache directory, can be shared by connections to different
+ *   tenants.
+ *
+ ******************************************************************************/
+
+public class ResponseCache {
+
+    private final long maxSize;
+    private final long maxAge;
+    private final long[] ttl;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+
+  //Disk tier
+    private final Path dir;
+    private final long maxDiskSize;
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskSize;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param config Cache settings (see example above). All fields are
+   *  optional.
+   */
+    public ResponseCache(JSONObject config) throws Exception {
+        if (config==null) config = new JSONObject();
+        maxSize = getLong(config, "maxSize", 64)*1024*1024;
+        maxAge = getLong(config, "maxAge", 1800)*1000;
+
+
+      //Set ttl for each endpoint
+        JSONObject ttl = config.get("ttl").toJSONObject();
+        if (ttl==null) ttl = new JSONObject();
+        long defaultTTL = getLong(ttl, "default", 60);
+        this.ttl = new long[Metrics.Endpoint.values().length];
+        for (Metrics.Endpoint endpoint : Metrics.Endpoint.values()){
+            this.ttl[endpoint.ordinal()] = getLong(ttl, endpoint.name().toLowerCase(), defaultTTL)*1000;
+        }
+
+
+      //Load disk cache
+        String directory = config.get("directory").toString();
+        if (directory==null){
+            dir = null;
+            maxDiskSize = 0;
+        }
+        else{
+            dir = Paths.get(directory);
+            maxDiskSize = getLong(config, "maxDiskSize", 1024)*1024*1024;
+            Files.createDirectories(dir);
+            load();
+        }
+    }
+
+
+  //**************************************************************************
+  //** isCacheable
+  //**************************************************************************
+  /** Returns true if responses for a given url can be cached
+   *  @param url Url relative to the graph end-point (e.g. "/users")
+   */
+    public boolean isCacheable(String url){
+        if (url.startsWith("http")) return false;
+        String path = getPath(url);
+        if (path.endsWith("/delta") || path.contains("/delta(")) return false;
+        if (url.contains("$deltatoken") || url.contains("downloadUrl")) return false;
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** getKey
+  //**************************************************************************
+  /** Returns a key for a request. Request headers are included in the key
+   *  since they can change the response (e.g. "Prefer").
+   *  @param scope Used to separate responses for different graph end-points,
+   *  tenants, or apps (e.g. "https://graph.microsoft.com/v1.0|tenant|client").
+   *  Optional.
+   *  @param url Url relative to the graph end-point (e.g. "/users")
+   */
+    public static String getKey(String scope, String url, Map<String, String> headers){
+        if (scope!=null) url = scope + url;
+        if (headers==null || headers.isEmpty()) return url;
+        StringBuilder key = new StringBuilder(url);
+        TreeMap<String, String> sorted = new TreeMap<>();
+        for (Map.Entry<String, String> header : headers.entrySet()){
+            sorted.put(header.getKey().toLowerCase(), header.getValue());
+        }
+        for (Map.Entry<String, String> header : sorted.entrySet()){
+            key.append("\n").append(header.getKey()).append(":").append(header.getValue());
+        }
+        return key.toString();
+    }
+
+
+  //**************************************************************************
+  //** get
+  //**************************************************************************
+  /** Returns a cached response or null. The caller should check whether
+   *  the entry is fresh before using it.
+   */
+    public Entry get(String key){
+        Entry entry;
+        synchronized(this){
+            entry = entries.get(key);
+        }
+        if (entry==null && dir!=null){
+            entry = read(key);
+            if (entry!=null) add(entry);
+        }
+        if (entry!=null && System.currentTimeMillis()-entry.created>maxAge){
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Used to add or replace a response in the cache
+   *  @param eTag Value of the ETag response header, if any
+   */
+    public void put(String key, Metrics.Endpoint endpoint, String eTag, String body){
+        if (eTag==null && getTTL(endpoint)<=0) return; //entry would never be used
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(key, eTag, now, now, body.getBytes(UTF_8));
+        add(entry);
+        write(entry);
+    }
+
+
+  //**************************************************************************
+  //** revalidate
+  //**************************************************************************
+  /** Called when the server confirms that a cached response is unchanged
+   *  (304)
+   */
+    public void revalidate(Entry entry){
+        entry.validated = System.currentTimeMillis();
+        write(entry);
+    }
+
+
+  //**************************************************************************
+  //** isFresh
+  //**************************************************************************
+  /** Returns true if an entry can be used without revalidation
+   */
+    public boolean isFresh(Entry entry, Metrics.Endpoint endpoint){
+        return System.currentTimeMillis()-entry.validated<getTTL(endpoint);
+    }
+
+
+  //**************************************************************************
+  //** invalidate
+  //**************************************************************************
+  /** Used to remove cached responses for a resource, its children, its
+   *  parent collection, and the container that owns it (see getContainer).
+   *  Called after a resource is created, updated, or deleted.
+   *  @param scope Scope used to create the keys (see getKey). Optional.
+   *  @param url Url relative to the graph end-point (e.g.
+   *  "/users/{id}/events/{id}")
+   */
+    public void invalidate(String scope, String url){
+        if (scope==null) scope = "";
+        String path = scope + getPath(url);
+        String parent = path.substring(0, Math.max(path.lastIndexOf("/"), 0));
+        String[] container = getContainer(getPath(url));
+        if (container!=null){
+            for (int i=0; i<container.length; i++) container[i] = scope + container[i];
+        }
+        ArrayList<String> keys = new ArrayList<>();
+        synchronized(this){
+            for (String key : entries.keySet()){
+                if (matches(key, path, parent, container)) keys.add(key);
+            }
+        }
+        if (dir!=null){
+            synchronized(files){
+                for (String key : files.keySet()){
+                    if (matches(key, path, parent, container)) keys.add(key);
+                }
+            }
+        }
+        for (String key : keys) remove(key);
+    }
+
+    private static boolean matches(String key, String path, String parent, String[] container){
+        String p = getPath(key);
+        if (container!=null){
+            for (String prefix : container){
+                if (p.startsWith(prefix)) return true;
+            }
+        }
+        if (p.equals(path) || p.equals(parent)) return true;
+        if (!p.startsWith(path)) return false;
+        char c = p.charAt(path.length());
+        return c=='/' || c==':' || c=='(';
+    }
+
+
+  //**************************************************************************
+  //** getContainer
+  //**************************************************************************
+  /** Returns url prefixes for the container that owns a resource. The same
+   *  drive item can be addressed by id or by path, and the same event can
+   *  appear in an events, calendarView, or calendar listing, so a write
+   *  clears every response in the container. Returns null if the resource
+   *  isn't in a drive or calendar.
+   *  @param path Url relative to the graph end-point, without a query
+   */
+    private static String[] getContainer(String path){
+        String[] arr = path.split("/");
+        if (arr.length<3) return null;
+
+        if (arr[1].equals("drives")){
+            String drive = "/drives/" + arr[2];
+            return new String[]{drive + "/", drive + ":"};
+        }
+
+        String owner;
+        String name;
+        if (arr[1].equals("me")){
+            owner = "/me";
+            name = arr[2];
+        }
+        else if (arr[1].equals("users") || arr[1].equals("groups") || arr[1].equals("sites")){
+            if (arr.length<4) return null;
+            owner = "/" + arr[1] + "/" + arr[2];
+            name = arr[3];
+        }
+        else{
+            return null;
+        }
+
+        if (name.startsWith("drive")){
+            return new String[]{owner + "/drive"};
+        }
+        if (name.startsWith("calendar") || name.startsWith("events")){
+            return new String[]{owner + "/calendar", owner + "/events"};
+        }
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** remove
+  //**************************************************************************
+    public void remove(String key){
+        synchronized(this){
+            Entry entry = entries.remove(key);
+            if (entry!=null) size -= entry.getSize();
+        }
+        if (dir!=null){
+            synchronized(files){
+                Long n = files.remove(key);
+                if (n!=null) diskSize -= n;
+            }
+            delete(getFile(key));
+        }
+    }
+
+
+  //**************************************************************************
+  //** clear
+  //**************************************************************************
+  /** Used to remove all cached responses, including responses on disk
+   */
+    public void clear(){
+        synchronized(this){
+            entries.clear();
+            size = 0;
+        }
+        if (dir!=null){
+            ArrayList<String> keys;
+            synchronized(files){
+                keys = new ArrayList<>(files.keySet());
+                files.clear();
+                diskSize = 0;
+            }
+            for (String key : keys) delete(getFile(key));
+        }
+    }
+
+
+  //**************************************************************************
+  //** getSize
+  //**************************************************************************
+  /** Returns the number of bytes in the memory cache
+   */
+    public synchronized long getSize(){
+        return size;
+    }
+
+
+  //**************************************************************************
+  //** getTTL
+  //**************************************************************************
+    private long getTTL(Metrics.Endpoint endpoint){
+        return ttl[endpoint.ordinal()];
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to add an entry to the memory cache and evict the least recently
+   *  used entries as needed
+   */
+    private synchronized void add(Entry entry){
+        if (entry.getSize()>maxSize) return;
+        Entry prev = entries.put(entry.key, entry);
+        if (prev!=null) size -= prev.getSize();
+        size += entry.getSize();
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (size>maxSize && it.hasNext()){
+            Entry e = it.next();
+            it.remove();
+            size -= e.getSize();
+        }
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used to save an entry to disk and evict the least recently used files
+   *  as needed. The file is written to a temp file first so a partial file
+   *  is never read.
+   */
+    private void write(Entry entry){
+        if (dir==null) return;
+        long n = entry.getSize();
+        if (n>maxDiskSize) return;
+
+        Path file = getFile(entry.key);
+        Path temp = file.resolveSibling(file.getFileName() + "." + Thread.currentThread().getId() + ".tmp");
+        try{
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temp)))){
+                out.writeUTF(entry.key);
+                out.writeUTF(entry.eTag==null ? "" : entry.eTag);
+                out.writeLong(entry.created);
+                out.writeLong(entry.validated);
+                out.writeInt(entry.body.length);
+                out.write(entry.body);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch(Exception e){
+            delete(temp);
+            console.log("Failed to write cache entry: " + e.getMessage());
+            return;
+        }
+
+
+        ArrayList<String> evicted = new ArrayList<>();
+        synchronized(files){
+            Long prev = files.put(entry.key, n);
+            if (prev!=null) diskSize -= prev;
+            diskSize += n;
+
+            Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+            while (diskSize>maxDiskSize && it.hasNext()){
+                Map.Entry<String, Long> e = it.next();
+                if (e.getKey().equals(entry.key)) continue;
+                it.remove();
+                diskSize -= e.getValue();
+                evicted.add(e.getKey());
+            }
+        }
+        for (String key : evicted) delete(getFile(key));
+    }
+
+
+  //**************************************************************************
+  //** read
+  //**************************************************************************
+  /** Returns an entry from the disk cache or null
+   */
+    private Entry read(String key){
+        synchronized(files){
+            if (files.get(key)==null) return null; //also updates access order
+        }
+        try{
+            Entry entry = read(getFile(key));
+            if (entry!=null && entry.key.equals(key)) return entry;
+        }
+        catch(Exception e){}
+        remove(key);
+        return null;
+    }
+
+    private static Entry read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Files.newInputStream(file)))){
+            String key = in.readUTF();
+            String eTag = in.readUTF();
+            long created = in.readLong();
+            long validated = in.readLong();
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(key, eTag.isEmpty() ? null : eTag, created, validated, body);
+        }
+    }
+
+
+  //**************************************************************************
+  //** load
+  //**************************************************************************
+  /** Used to index the files in the disk cache. Files are ordered by last
+   *  modified date so the oldest files are evicted first. Stale files are
+   *  removed.
+   */
+    private void load() throws IOException {
+        ArrayList<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)){
+            for (Path path : stream){
+                String name = path.getFileName().toString();
+                if (name.endsWith(".tmp")) delete(path);
+                else if (name.endsWith(".entry")) paths.add(path);
+            }
+        }
+        paths.sort(Comparator.comparingLong(p -> p.toFile().lastModified()));
+
+        long now = System.currentTimeMillis();
+        for (Path path : paths){
+            try{
+                Entry entry = read(path);
+                if (now-entry.created>maxAge || !path.equals(getFile(entry.key))){
+                    delete(path);
+                    continue;
+                }
+                files.put(entry.key, entry.getSize());
+                diskSize += entry.getSize();
+            }
+            catch(Exception e){
+                delete(path);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** getFile
+  //**************************************************************************
+  /** Returns the path to a file in the disk cache. File names are derived
+   *  from a hash of the key.
+   */
+    private Path getFile(String key){
+        try{
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(UTF_8));
+            StringBuilder str = new StringBuilder(hash.length*2+6);
+            for (byte b : hash) str.append(String.format("%02x", b));
+            return dir.resolve(str.append(".entry").toString());
+        }
+        catch(java.security.NoSuchAlgorithmException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+
+  //**************************************************************************
+  //** delete
+  //**************************************************************************
+    private static void delete(Path path){
+        try{
+            Files.deleteIfExists(path);
+        }
+        catch(Exception e){}
+    }
+
+
+  //**************************************************************************
+  //** getPath
+  //**************************************************************************
+  /** Returns the path portion of a url or key (e.g. "/users/{id}")
+   */
+    private static String getPath(String url){
+        int idx = url.indexOf("?");
+        int n = url.indexOf("\n");
+        if (n>-1 && (idx<0 || n<idx)) idx = n;
+        return idx<0 ? url : url.substring(0, idx);
+    }
+
+
+  //**************************************************************************
+  //** getLong
+  //**************************************************************************
+    private static long getLong(JSONObject config, String key, long defaultValue){
+        Long l = config.get(key).toLong();
+        return l==null ? defaultValue : l;
+    }
+
+
+  //**************************************************************************
+  //** Entry Class
+  //**************************************************************************
+  /** Used to represent a cached response
+   */
+    public static class Entry {
+        private final String key;
+        private final String eTag;
+        private final long created;
+        private volatile long validated;
+        private final byte[] body;
+
+        private Entry(String key, String eTag, long created, long validated, byte[] body){
+            this.key = key;
+            this.eTag = eTag;
+            this.created = created;
+            this.validated = validated;
+            this.body = body;
+        }
+
+      /** Returns the ETag returned by the server, if any
+       */
+        public String getETag(){
+            return eTag;
+        }
+
+      /** Returns a new copy of the cached json response
+       */
+        public JSONObject getResponse(){
+            return new JSONObject(new String(body, UTF_8));
+        }
+
+        private long getSize(){
+            return body.length + key.length()*2 + 64;
+        }
+    }
+}
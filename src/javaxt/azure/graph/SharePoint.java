@@ -1,8 +1,8 @@
 package javaxt.azure.graph;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import javaxt.json.*;
-import javax.net.ssl.*;
 
 public class SharePoint {
 
@@ -32,17 +32,28 @@ public class SharePoint {
   //**************************************************************************
     public class Site {
         private final String siteID;
+        private final JSONArray drives;
 
+      /** Used to find a site by name. The drives in the site are returned
+       *  with the site (via $expand) so getDrives() doesn't require another
+       *  request.
+       */
         public Site(String name) throws Exception {
-            String url = "/sites/" + host + ":/sites/" + name + "?select=id";
+            String url = "/sites/" + host + ":/sites/" + name +
+            "?$select=id&$expand=drives($select=id,name)";
             JSONObject siteInfo = conn.getResponse(url);
             siteID = siteInfo.get("id").toString();
+            drives = siteInfo.get("drives").toJSONArray();
         }
 
         public ArrayList<Drive> getDrives() throws Exception {
+            JSONArray arr = drives;
+            if (arr==null){
+                String url = "/sites/" + siteID + "/drives";
+                arr = conn.getResponse(url).get("value").toJSONArray();
+            }
             ArrayList<Drive> drives = new ArrayList<>();
-            String url = "/sites/" + siteID + "/drives";
-            for (JSONValue v : conn.getResponse(url).get("value").toJSONArray()){
+            for (JSONValue v : arr){
                 drives.add(new Drive(v.toJSONObject()));
             }
             return drives;
@@ -65,6 +76,8 @@ public class SharePoint {
   //**************************************************************************
     public class Drive {
         private final JSONObject json;
+        private final FolderCache folders = new FolderCache();
+        private volatile String select;
 
         private Drive(JSONObject json){
             this.json = json;
@@ -78,45 +91,128 @@ public class SharePoint {
             return json.get("id").toString();
         }
 
+      /** Used to limit the fields returned for items in the drive (e.g.
+       *  "id", "name", "size"). Applies to items returned by getItem(),
+       *  getFolder(), getChildren(), and getChanges(). Fields that are not
+       *  selected are not downloaded, parsed, or kept in memory. Item methods
+       *  return null for fields that were not selected. By default, all the
+       *  fields are returned.
+       */
+        public void setSelect(String... fields){
+            select = fields==null || fields.length==0 ? null : String.join(",", fields);
+        }
+
+      /** Returns the url with a $select parameter, if any
+       */
+        private String select(String url){
+            if (select==null) return url;
+            return url + (url.contains("?") ? "&" : "?") + "$select=" + select;
+        }
+
         public ArrayList<Item> getChildren() throws Exception {
             ArrayList<Item> items = new ArrayList<>();
-            String url = "/drives/" + getID() + "/root/children";
+            String url = select("/drives/" + getID() + "/root/children");
             for (JSONValue v : conn.getResponse(url).get("value").toJSONArray()){
-                items.add(new Item(v.toJSONObject(), this));
+                Item item = new Item(v.toJSONObject(), this, "");
+                items.add(item);
             }
             return items;
         }
 
+      /** Returns a folder for a given path. Folders are resolved using path
+       *  addressing (e.g. "/root:/a/b/c") so the lookup requires at most one
+       *  request. Resolved folders are cached. Cached folders are evicted if
+       *  a different eTag is returned for the folder in a subsequent request.
+       *  @param names Folder names (e.g. "a", "b", "c") or a path ("a/b/c")
+       */
         public Item getFolder(String... names) throws Exception {
-            for (Item item : getChildren()){
-                if (item.getName().equalsIgnoreCase(names[0])){
-                    if (item.isFolder()){
-                        if (names.length==1) return item;
-                        else{
-
-                            Item currFolder = item;
-                            for (int i=1; i<names.length; i++){
-                                String folderName = names[i];
-                                currFolder = findFolder(folderName, currFolder);
-                                if (currFolder==null) return null;
-                                if (i==names.length-1) return currFolder;
-                            }
-                        }
-                    }
+
+          //Create path
+            StringBuilder str = new StringBuilder();
+            for (String name : names){
+                for (String s : name.split("/")){
+                    if (s.isEmpty()) continue;
+                    if (str.length()>0) str.append("/");
+                    str.append(s);
                 }
             }
-            return null;
+            String path = str.toString();
+            if (path.isEmpty()) return null;
+
+
+          //Check cache
+            Item item = folders.get(path);
+            if (item!=null) return item;
+
+
+          //Get folder
+            String url = select("/drives/" + getID() + "/root:/" + encodePath(path));
+            try{
+                item = new Item(conn.getResponse(url), this, path.substring(0, Math.max(path.lastIndexOf("/"), 0)));
+            }
+            catch(Connection.ResponseException e){
+                if (e.getStatus()==404) return null;
+                throw e;
+            }
+            if (!item.isFolder()) return null;
+            folders.put(path, item);
+            return item;
         }
 
-        private Item findFolder(String name, Item folder) throws Exception {
-            for (Item item : folder.getChildren()){
-                if (item.getName().equalsIgnoreCase(name)){
-                    if (item.isFolder()){
-                        return item;
-                    }
-                }
+      /** Used to set the max number of folders to cache. The default is
+       *  10,000.
+       */
+        public void setCacheSize(int size){
+            folders.setMaxSize(size);
+        }
+
+      /** Returns an item with the given ID
+       */
+        public Item getItem(String id) throws Exception {
+            return new Item(conn.getResponse(select("/drives/" + getID() + "/items/" + id)), this);
+        }
+
+      /** Returns a Pager used to iterate through items in the drive that have
+       *  been created, updated, moved, or deleted since the delta link was
+       *  issued. Note that items are identified by ID only. The
+       *  parentReference does not include a path in delta responses.
+       *  @param deltaLink Delta link returned by a previous delta query (see
+       *  Pager.getDeltaLink). If null, returns every item in the drive.
+       */
+        public Pager<Item> getChanges(String deltaLink){
+            String url = deltaLink==null ? select("/drives/" + getID() + "/root/delta") : deltaLink;
+            return new Pager<>(url, null, json -> new Item(json, this), conn);
+        }
+
+      /** Returns a delta link for the current state of the drive without
+       *  enumerating any items. Used to start tracking changes after a full
+       *  sync.
+       */
+        public String getDeltaLink() throws Exception {
+            String url = "/drives/" + getID() + "/root/delta?token=latest";
+            return conn.getResponse(url).get("@odata.deltaLink").toString();
+        }
+
+      /** Used to upload a file to the drive. Existing files are replaced.
+       *  @param path Path of the file relative to the drive root (e.g.
+       *  "Reports/2024/report.pdf"). Missing folders are created.
+       *  @return The uploaded file
+       */
+        public Item upload(java.io.File file, String path) throws Exception {
+            return upload(file, path, new Uploader(conn));
+        }
+
+      /** Used to upload a file to the drive using a given Uploader. A single
+       *  uploader can be shared by multiple threads. Small files are sent in
+       *  a single request. Larger files are uploaded in chunks.
+       */
+        public Item upload(java.io.File file, String path, Uploader uploader) throws Exception {
+            if (path.startsWith("/")) path = path.substring(1);
+            String url = "/drives/" + getID() + "/root:/" + encodePath(path) + ":";
+            if (file.length()<=Uploader.MAX_PUT_SIZE){
+                return new Item(uploader.put(url + "/content", file, "replace"), this);
             }
-            return null;
+            return new Item(uploader.upload(url + "/createUploadSession", file, "replace"), this);
         }
 
         public String toString(){
@@ -133,10 +229,22 @@ public class SharePoint {
     public class Item {
         private final JSONObject json;
         private final Drive drive;
+        private final String path;
 
         private Item(JSONObject json, Drive drive){
+            this(json, drive, null);
+        }
+
+      /** @param parentPath Path of the parent folder relative to the drive
+       *  root ("" for the root folder). Optional.
+       */
+        private Item(JSONObject json, Drive drive, String parentPath){
             this.json = json;
             this.drive = drive;
+            if (parentPath==null) this.path = null;
+            else this.path = parentPath.isEmpty() ? getName() : parentPath + "/" + getName();
+            drive.folders.validate(this);
+            if (path!=null && isFolder()) drive.folders.put(path, this);
         }
 
         public String getName(){
@@ -151,6 +259,58 @@ public class SharePoint {
             return json.has("folder");
         }
 
+        public String getETag(){
+            return json.get("eTag").toString();
+        }
+
+      /** Returns the version of the content of the item. Unlike the eTag,
+       *  the cTag doesn't change when the item is renamed or moved.
+       */
+        public String getCTag(){
+            return json.get("cTag").toString();
+        }
+
+      /** Returns the size of the item in bytes or -1 if unknown
+       */
+        public long getSize(){
+            Long size = json.get("size").toLong();
+            return size==null ? -1 : size;
+        }
+
+      /** Returns the path of the item relative to the drive root (e.g.
+       *  "a/b/c") or null if the path is unknown (e.g. delta results)
+       */
+        public String getPath(){
+            return path;
+        }
+
+      /** Returns true if the item has been deleted. Only applies to items
+       *  returned by a delta query.
+       */
+        public boolean isDeleted(){
+            return json.has("deleted");
+        }
+
+      /** Returns the date the file was last modified on the client that
+       *  uploaded it. Falls back to the date the item was last modified in
+       *  SharePoint. Returns null if neither date is available (e.g. the item
+       *  was requested with a $select that excludes them).
+       */
+        public javaxt.utils.Date getLastModified() throws java.text.ParseException {
+            String date = json.get("fileSystemInfo").get("lastModifiedDateTime").toString();
+            if (date==null) date = json.get("lastModifiedDateTime").toString();
+            return date==null ? null : new javaxt.utils.Date(date);
+        }
+
+        public String getParentID(){
+            JSONObject parent = json.get("parentReference").toJSONObject();
+            return parent==null ? null : parent.get("id").toString();
+        }
+
+        public Drive getDrive(){
+            return drive;
+        }
+
         public JSONValue get(String key){
             return json.get(key);
         }
@@ -159,75 +319,236 @@ public class SharePoint {
             ArrayList<Item> items = new ArrayList<>();
             if (!isFolder()) return items; //throw Error?
 
-            String url = "/drives/" + drive.getID() + "/items/" + getID() + "/children";
+            String url = drive.select("/drives/" + drive.getID() + "/items/" + getID() + "/children");
             for (JSONValue v : conn.getResponse(url).get("value").toJSONArray()){
-                items.add(new Item(v.toJSONObject(), drive));
+                items.add(new Item(v.toJSONObject(), drive, path));
             }
             return items;
         }
 
+        public CompletableFuture<ArrayList<Item>> getChildrenAsync(){
+            if (!isFolder()) return CompletableFuture.completedFuture(new ArrayList<>());
+
+            String url = drive.select("/drives/" + drive.getID() + "/items/" + getID() + "/children");
+            return conn.getResponseAsync(url).thenApply(json -> {
+                ArrayList<Item> items = new ArrayList<>();
+                for (JSONValue v : json.get("value").toJSONArray()){
+                    items.add(new Item(v.toJSONObject(), drive, path));
+                }
+                return items;
+            });
+        }
+
         public boolean download(String path) throws Exception {
             return download(new javaxt.io.File(path));
         }
 
 
         public boolean download(javaxt.io.File file) throws Exception {
+            return download(file, new Downloader(conn));
+        }
+
+      /** Used to download a file if the local file is missing or older than
+       *  the file in SharePoint.
+       *  @param downloader Used to stream the file to disk. A single
+       *  downloader can be shared by multiple threads.
+       *  @return True if the file was downloaded
+       */
+        public boolean download(javaxt.io.File file, Downloader downloader) throws Exception {
+            return download(file, downloader, null);
+        }
+
+      /** Used to download a file if the local file is missing or different
+       *  from the file in SharePoint. If SharePoint reports a quickXorHash for
+       *  the file, the local file is compared by content instead of by date so
+       *  files aren't downloaded again when only the timestamp has changed.
+       *  The downloaded file is checked against the quickXorHash.
+       *  @param index Used to cache the hashes of local files so that files
+       *  are only re-hashed when they change. The index also remembers the
+       *  remote hash of downloaded files so that Office documents, which
+       *  SharePoint modifies on download, aren't downloaded again. Optional.
+       *  @return True if the file was downloaded
+       */
+        public boolean download(javaxt.io.File file, Downloader downloader,
+            HashIndex index) throws Exception {
             if (isFolder()) return false;
 
-          //Get date
-            javaxt.utils.Date lastModified = new javaxt.utils.Date(
-            this.get("fileSystemInfo").get("lastModifiedDateTime").toString());
+            Long size = get("size").toLong();
 
 
           //Skip download if the file exists and if it hasn't been modified
+            String remoteHash = getQuickXorHash();
             if (file.exists()){
-                if (lastModified.getTime()>file.getDate().getTime()){
-
+                if (remoteHash!=null){
+                    java.io.File f = file.toFile();
+                    if (index!=null && remoteHash.equals(index.getRemoteHash(f))) return false;
+                    if (size==null || size==f.length()){
+                        String localHash = index==null ?
+                        QuickXorHash.getHash(f) : index.getHash(f);
+                        if (remoteHash.equals(localHash)) return false;
+                    }
                 }
                 else{
-                    return false;
+                    javaxt.utils.Date lastModified = getLastModified();
+                    if (lastModified!=null && lastModified.getTime()<=file.getDate().getTime()) return false;
                 }
             }
 
 
-          //Get download link
+          //Get download link. Note that the download URL does not require an
+          //authorization header.
             String downloadUrl = this.get("@microsoft.graph.downloadUrl").toString();
+            if (downloadUrl==null){
+                String url = "/drives/" + drive.getID() + "/items/" + getID() +
+                "?$select=id,@microsoft.graph.downloadUrl";
+                downloadUrl = conn.getResponse(url).get("@microsoft.graph.downloadUrl").toString();
+            }
 
 
-          //The download URL does not require an authorization header. However,
-          //Azure is returning a 401 when we try to download via the javaxt
-          //request/response classes. I suspect it has something to do with TLS
-          //(the Azure endpoint requires TLS 1.2). The following is a workaround
-            java.net.URL url = new java.net.URL(downloadUrl);
-            SSLContext sslContext = SSLContext.getInstance("TLSv1.2");
-            sslContext.init(null, null, new java.security.SecureRandom());
-            HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
-            connection.setSSLSocketFactory(sslContext.getSocketFactory());
-            connection.setRequestMethod("GET");
-
           //Save file
-            try (java.io.InputStream is = connection.getInputStream()) {
-                file.write(is);
-            }
-            catch(java.io.IOException e){
-                if (e.getMessage().contains("Server returned HTTP response code: 429")){
-                    Thread.sleep(1500);
-                    return download(file);
-                }
-                else{
-                    throw e;
-                }
+            Downloader.Result result = downloader.download(downloadUrl,
+            file.toFile(), size==null ? -1 : size, get("cTag").toString());
+
+
+          //Validate the file. Note that SharePoint may modify Office documents
+          //on download (e.g. to add metadata) in which case the size and the
+          //hash of the file won't match the item. Those files can't be
+          //validated.
+            String localHash = result.getQuickXorHash();
+            if (remoteHash!=null && size!=null && size==file.getSize() &&
+                !remoteHash.equals(localHash)){
+                file.delete();
+                throw new java.io.IOException("Hash mismatch for " + file +
+                ". Expected " + remoteHash + " but got " + localHash);
             }
 
+
           //Update timestamp
-            file.setDate(lastModified.getDate());
+            javaxt.utils.Date lastModified = getLastModified();
+            if (lastModified!=null) file.setDate(lastModified.getDate());
+
+
+          //Update index. The remote hash is recorded with the local hash so
+          //that modified Office documents aren't downloaded again on the next
+          //run (see above).
+            if (index!=null){
+                index.put(file.toFile(), localHash, remoteHash);
+            }
 
             return true;
         }
 
+      /** Returns the base64 encoded quickXorHash reported by SharePoint or
+       *  null if the hash is not available (e.g. folders and personal
+       *  OneDrive accounts)
+       */
+        public String getQuickXorHash(){
+            return get("file").get("hashes").get("quickXorHash").toString();
+        }
+
+        public Item upload(java.io.File file) throws Exception {
+            return upload(file, new Uploader(conn));
+        }
+
+      /** Used to upload a file. If this item is a folder, the file is added
+       *  to the folder using the name of the local file. Otherwise, the
+       *  content of this item is replaced with the file.
+       *  @param uploader Used to send the file. Small files are sent in a
+       *  single request. Larger files are sent in chunks. A single uploader
+       *  can be shared by multiple threads.
+       *  @return The uploaded file
+       */
+        public Item upload(java.io.File file, Uploader uploader) throws Exception {
+            String url = "/drives/" + drive.getID() + "/items/" + getID();
+            if (isFolder()) url += ":/" + encodePath(file.getName()) + ":";
+            JSONObject json = file.length()<=Uploader.MAX_PUT_SIZE ?
+            uploader.put(url + "/content", file, "replace") :
+            uploader.upload(url + "/createUploadSession", file, "replace");
+            String parentPath = path;
+            if (!isFolder() && path!=null) parentPath = path.substring(0, Math.max(path.lastIndexOf("/"), 0));
+            return new Item(json, drive, parentPath);
+        }
+
         public String toString(){
             return json.toString(4);
         }
     }
 
+
+  //**************************************************************************
+  //** encodePath
+  //**************************************************************************
+  /** Used to encode a path for path-based addressing (e.g. "/root:/a/b")
+   */
+    private static String encodePath(String path){
+        StringBuilder str = new StringBuilder();
+        for (String name : path.split("/")){
+            if (str.length()>0) str.append("/");
+            str.append(java.net.URLEncoder.encode(name, java.nio.charset.StandardCharsets.UTF_8).replace("+", "%20"));
+        }
+        return str.toString();
+    }
+
+
+  //**************************************************************************
+  //** FolderCache Class
+  //**************************************************************************
+  /** LRU cache used to map folder paths to items. Paths are case-insensitive.
+   */
+    private static class FolderCache {
+        private int maxSize = 10000;
+        private final HashMap<String, String> ids = new HashMap<>(); //id -> key
+        private final LinkedHashMap<String, Item> items = new LinkedHashMap<>(16, 0.75f, true){
+            protected boolean removeEldestEntry(Map.Entry<String, Item> eldest){
+                if (size()>maxSize){
+                    ids.remove(eldest.getValue().getID());
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        private synchronized Item get(String path){
+            return items.get(path.toLowerCase());
+        }
+
+        private synchronized void put(String path, Item item){
+            if (maxSize<1) return;
+            String key = path.toLowerCase();
+            Item prev = items.put(key, item);
+            if (prev!=null) ids.remove(prev.getID());
+            ids.put(item.getID(), key);
+        }
+
+        private synchronized void setMaxSize(int maxSize){
+            this.maxSize = maxSize;
+            while (items.size()>maxSize){
+                Iterator<Map.Entry<String, Item>> it = items.entrySet().iterator();
+                ids.remove(it.next().getValue().getID());
+                it.remove();
+            }
+        }
+
+      /** Used to evict a cached folder if the given item has a different
+       *  eTag than the cached item (e.g. the folder was renamed or moved)
+       */
+        private synchronized void validate(Item item){
+            if (ids.isEmpty()) return;
+            String key = ids.get(item.getID());
+            if (key==null) return;
+            Item cached = items.get(key);
+            if (cached==null) return;
+            if (item.isDeleted() || !Objects.equals(cached.getETag(), item.getETag())){
+                String prefix = key + "/";
+                Iterator<Map.Entry<String, Item>> it = items.entrySet().iterator();
+                while (it.hasNext()){
+                    Map.Entry<String, Item> entry = it.next();
+                    if (entry.getKey().equals(key) || entry.getKey().startsWith(prefix)){
+                        ids.remove(entry.getValue().getID());
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
 }
\ No newline at end of file
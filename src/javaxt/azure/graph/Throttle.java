@@ -0,0 +1,242 @@
+package javaxt.azure.graph;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javaxt.json.*;
+import static javaxt.utils.Console.console;
+
+
+//******************************************************************************
+//**  Throttle
+//******************************************************************************
+/**
+ *   Client-side rate limiter used to space out requests to the graph API.
+ *   Each request reserves a slot in two token buckets: one for the tenant
+ *   and one for the resource (e.g. "sharepoint", "outlook", "users"). When
+ *   the server responds with a 429 or 503, the Retry-After delay is applied
+ *   to the resource bucket so that every thread backs off together instead
+ *   of retrying in lockstep. Buckets are static and shared JVM-wide by all
+ *   the connections to a given tenant, since graph limits are enforced per
+ *   tenant rather than per connection. As a result, the rate and burst of a
+ *   bucket are set by the first Throttle that uses it. Throttles created
+ *   later with different settings for the same tenant or resource use the
+ *   existing bucket and log a warning.
+ *
+ ******************************************************************************/
+
+public class Throttle {
+
+    private final String tenantID;
+    private final double requestsPerSecond;
+    private final int burst;
+    private final JSONObject resources;
+    private final int maxRetries;
+
+    private final ConcurrentHashMap<String, Bucket> cache = new ConcurrentHashMap<>();
+
+    private static final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param tenantID Azure tenant ID
+   *  @param options Optional settings. Example:
+   <pre>
+    {
+        "requestsPerSecond" : 100, //max requests per second for the tenant
+        "burst" : 100,             //max number of requests sent at once
+        "resources" : {            //optional limits for individual resources
+            "sharepoint" : 50,
+            "outlook" : 20
+        },
+        "maxRetries" : 5           //max retries for a throttled request
+    }
+   </pre>
+   */
+    public Throttle(String tenantID, JSONObject options){
+        if (options==null) options = new JSONObject();
+        this.tenantID = tenantID;
+
+        Double requestsPerSecond = options.get("requestsPerSecond").toDouble();
+        this.requestsPerSecond = requestsPerSecond==null ? 100 : requestsPerSecond;
+
+        Integer burst = options.get("burst").toInteger();
+        this.burst = burst==null ? 100 : Math.max(burst, 1);
+
+        JSONObject resources = options.get("resources").toJSONObject();
+        this.resources = resources==null ? new JSONObject() : resources;
+
+        Integer maxRetries = options.get("maxRetries").toInteger();
+        this.maxRetries = maxRetries==null ? 5 : maxRetries;
+    }
+
+
+  //**************************************************************************
+  //** getMaxRetries
+  //**************************************************************************
+    public int getMaxRetries(){
+        return maxRetries;
+    }
+
+
+  //**************************************************************************
+  //** reserve
+  //**************************************************************************
+  /** Used to reserve a slot for a request. Returns the number of
+   *  milliseconds the caller should wait before sending the request.
+   *  @param resource Resource name returned by getResource()
+   */
+    public long reserve(String resource){
+        long now = System.nanoTime();
+        long d1 = getBucket(null).reserve(now);
+        long d2 = getBucket(resource).reserve(now);
+        return (Math.max(d1, d2)+999999)/1000000;
+    }
+
+
+  //**************************************************************************
+  //** pause
+  //**************************************************************************
+  /** Used to pause requests for a given resource, typically in response to
+   *  a 429 or 503 with a Retry-After header.
+   *  @param resource Resource name returned by getResource()
+   *  @param delay Number of milliseconds to wait
+   */
+    public void pause(String resource, long delay){
+        getBucket(resource).pause(System.nanoTime()+delay*1000000);
+    }
+
+
+  //**************************************************************************
+  //** getRetryDelay
+  //**************************************************************************
+  /** Returns the number of milliseconds to wait before retrying a throttled
+   *  request. Uses the Retry-After header if present. Otherwise, uses an
+   *  exponential backoff with jitter.
+   *  @param retryAfter Value of the Retry-After header (seconds or an http
+   *  date). Optional.
+   *  @param attempt Number of times the request has been retried
+   */
+    public static long getRetryDelay(String retryAfter, int attempt){
+        if (retryAfter!=null){
+            retryAfter = retryAfter.trim();
+            try{
+                return Math.max(Long.parseLong(retryAfter)*1000, 0);
+            }
+            catch(NumberFormatException e){
+                try{
+                    long t = java.time.ZonedDateTime.parse(retryAfter,
+                    java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+                    return Math.max(t-System.currentTimeMillis(), 0);
+                }
+                catch(Exception ex){}
+            }
+        }
+        long delay = Math.min(1000L << Math.min(attempt, 6), 60*1000);
+        return delay/2 + (long) (Math.random()*delay/2);
+    }
+
+
+  //**************************************************************************
+  //** getResource
+  //**************************************************************************
+  /** Returns the name of the resource associated with a url. Graph limits
+   *  are applied per service so SharePoint and Outlook requests are grouped
+   *  together. Other urls are grouped by the first path segment.
+   *  @param url Url relative to the graph end-point (e.g. "/users"). Absolute
+   *  urls are assumed to be download links.
+   */
+    public static String getResource(String url){
+        if (url.contains("://")) return "download";
+        if (url.startsWith("/")) url = url.substring(1);
+
+
+        if (url.startsWith("sites") || url.startsWith("drives")) return "sharepoint";
+        if (url.contains("/calendar") || url.contains("/events") ||
+            url.contains("/messages") || url.contains("/mailFolders")) return "outlook";
+
+        int idx = url.indexOf("/");
+        if (idx>-1) url = url.substring(0, idx);
+        idx = url.indexOf("?");
+        if (idx>-1) url = url.substring(0, idx);
+        return url;
+    }
+
+
+  //**************************************************************************
+  //** getBucket
+  //**************************************************************************
+    private Bucket getBucket(String resource){
+        String key = resource==null ? tenantID : tenantID + "/" + resource;
+        Bucket bucket = cache.get(key);
+        if (bucket==null){
+            double rate = requestsPerSecond;
+            if (resource!=null){
+                Double d = resources.get(resource).toDouble();
+                rate = d==null ? 0 : d;
+            }
+            double r = rate;
+            bucket = buckets.computeIfAbsent(key, k -> new Bucket(r, burst));
+
+
+          //Warn if the shared bucket was created with different settings
+            if (bucket.rate!=rate || bucket.burst!=burst){
+                console.log("Throttle settings for " + key + " ignored. " +
+                "Using " + bucket.rate + " requests per second with a burst of " +
+                bucket.burst + " set by another connection to the same tenant.");
+            }
+            cache.put(key, bucket);
+        }
+        return bucket;
+    }
+
+
+  //**************************************************************************
+  //** Bucket Class
+  //**************************************************************************
+  /** Lock-free token bucket implemented as a generic cell rate algorithm.
+   *  The "tat" is the theoretical arrival time of the next request.
+   */
+    private static class Bucket {
+        private final double rate;
+        private final int burst;
+        private final long interval; //nanoseconds between requests
+        private final long tolerance;
+        private final AtomicLong tat;
+        private final AtomicLong pausedUntil;
+
+        private Bucket(double rate, int burst){
+            long now = System.nanoTime();
+            this.rate = rate;
+            this.burst = burst;
+            this.interval = rate>0 ? (long) (1000000000/rate) : 0;
+            this.tolerance = interval*(burst-1);
+            this.tat = new AtomicLong(now);
+            this.pausedUntil = new AtomicLong(now);
+        }
+
+        private long reserve(long now){
+            long delay = 0;
+            if (interval>0){
+                while (true){
+                    long t = tat.get();
+                    long start = Math.max(t, now);
+                    if (tat.compareAndSet(t, start+interval)){
+                        delay = Math.max(start-now-tolerance, 0);
+                        break;
+                    }
+                }
+            }
+            return Math.max(delay, pausedUntil.get()-now);
+        }
+
+        private void pause(long until){
+            while (true){
+                long t = pausedUntil.get();
+                if (until<=t || pausedUntil.compareAndSet(t, until)) return;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,245 @@
+package javaxt.azure.graph;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javaxt.json.*;
+import static javaxt.utils.Console.console;
+
+
+//******************************************************************************
+//**  TokenManager
+//******************************************************************************
+/**
+ *   Used to obtain and refresh access tokens. The current token is stored in
+ *   a volatile field so callers can get it without locking. Tokens are
+ *   refreshed in the background before they expire. If a token is needed
+ *   while a refresh is in progress, callers wait on the same refresh instead
+ *   of logging in again.
+ *
+ ******************************************************************************/
+
+public class TokenManager {
+
+    private final String loginURL;
+    private final String clientID;
+    private final String clientSecret;
+    private final Metrics metrics;
+
+    private volatile Token token;
+    private final AtomicReference<CompletableFuture<Token>> refresh = new AtomicReference<>();
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> nextRefresh;
+
+
+  //Min number of seconds remaining before a token is considered expired
+    private static final long MIN_TIME_REMAINING = 60*1000;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    protected TokenManager(String loginURL, String clientID, String clientSecret, Metrics metrics){
+        this.loginURL = loginURL;
+        this.clientID = clientID;
+        this.clientSecret = clientSecret;
+        this.metrics = metrics;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "graph-token");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+
+  //**************************************************************************
+  //** connect
+  //**************************************************************************
+  /** Used to get a new token and start the background refresh. Blocks until
+   *  the login request is complete.
+   */
+    protected Token connect() throws Exception {
+        Token token = login();
+        update(token);
+        return token;
+    }
+
+
+  //**************************************************************************
+  //** getToken
+  //**************************************************************************
+  /** Returns the current token. The future is completed immediately unless
+   *  the token is about to expire, in which case the future is completed
+   *  once the token has been refreshed.
+   */
+    public CompletableFuture<Token> getToken(){
+        Token token = this.token;
+        if (token!=null && token.expires-System.currentTimeMillis()>MIN_TIME_REMAINING){
+            return CompletableFuture.completedFuture(token);
+        }
+        return refresh(token);
+    }
+
+
+  //**************************************************************************
+  //** refresh
+  //**************************************************************************
+  /** Used to refresh a token. Returns immediately if the given token has
+   *  already been replaced. Otherwise, returns the refresh in progress or
+   *  starts a new one.
+   *  @param stale The token to replace (e.g. a token rejected with a 401)
+   */
+    public CompletableFuture<Token> refresh(Token stale){
+        while (true){
+            Token token = this.token;
+            if (token!=null && token!=stale){
+                if (token.expires-System.currentTimeMillis()>MIN_TIME_REMAINING){
+                    return CompletableFuture.completedFuture(token);
+                }
+            }
+
+            CompletableFuture<Token> f = refresh.get();
+            if (f!=null) return f;
+
+            f = new CompletableFuture<>();
+            if (refresh.compareAndSet(null, f)){
+                CompletableFuture<Token> future = f;
+                try{
+                    scheduler.execute(() -> {
+                        try{
+                            Token t = login();
+                            update(t);
+                            refresh.set(null);
+                            future.complete(t);
+                        }
+                        catch(Throwable e){
+                            refresh.set(null);
+                            future.completeExceptionally(e);
+                            schedule(30*1000);
+                        }
+                    });
+                }
+                catch(RejectedExecutionException e){
+                    refresh.set(null);
+                    future.completeExceptionally(new IllegalStateException("Connection is closed"));
+                }
+                return future;
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** getExpirationDate
+  //**************************************************************************
+    public javaxt.utils.Date getExpirationDate(){
+        Token token = this.token;
+        return token==null ? null : new javaxt.utils.Date(token.expires);
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+    protected void close(){
+        scheduler.shutdownNow();
+    }
+
+
+  //**************************************************************************
+  //** update
+  //**************************************************************************
+  /** Used to set the current token and schedule the next refresh. The next
+   *  refresh is scheduled 5 minutes before the token expires or halfway
+   *  through the lifetime of a short-lived token.
+   */
+    private void update(Token token){
+        this.token = token;
+        long lifetime = token.expires-System.currentTimeMillis();
+        schedule(lifetime-Math.min(5*60*1000, lifetime/2));
+    }
+
+
+  //**************************************************************************
+  //** schedule
+  //**************************************************************************
+    private synchronized void schedule(long delay){
+        if (nextRefresh!=null) nextRefresh.cancel(false);
+        try{
+            Token token = this.token;
+            nextRefresh = scheduler.schedule(() -> {
+                refresh(token);
+            }, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+        }
+        catch(RejectedExecutionException e){
+            //Connection is closed
+        }
+    }
+
+
+  //**************************************************************************
+  //** login
+  //**************************************************************************
+    private Token login() throws Exception {
+        console.log("connecting...");
+
+        javaxt.http.Request request = new javaxt.http.Request(loginURL);
+        request.setNumRedirects(0);
+
+        String payload = "client_id=" +clientID +
+        "&scope=https%3A%2F%2Fgraph.microsoft.com%2F.default" +
+        "&client_secret=" + clientSecret +
+        "&grant_type=client_credentials";
+
+        //request.setHeader(); application/x-www-form-urlencoded
+        request.write(payload);
+
+        long startTime = System.nanoTime();
+        javaxt.http.Response response = request.getResponse();
+        JSONObject json = response.getJSONObject();
+        metrics.recordRequest(Metrics.Endpoint.TOKEN, response.getStatus(), System.nanoTime()-startTime);
+
+
+        if (response.getStatus()==200){
+            String tokenType = json.get("token_type").toString();
+            String accessToken = json.get("access_token").toString();
+            Integer expiresIn = json.get("expires_in").toInteger();
+            Token token = new Token(tokenType, accessToken,
+            System.currentTimeMillis()+expiresIn*1000L);
+
+            console.log("Connected! token expires " + new javaxt.utils.Date(token.expires));
+            return token;
+        }
+        else{
+            Connection.ResponseException e = new Connection.ResponseException(response.getStatus(), json);
+            console.log("Failed to connect: " + e.getMessage());
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Token Class
+  //**************************************************************************
+  /** Used to represent an access token
+   */
+    public static class Token {
+        private final String header;
+        private final long expires;
+
+        private Token(String tokenType, String accessToken, long expires){
+            this.header = tokenType + " " + accessToken;
+            this.expires = expires;
+        }
+
+      /** Returns the value for the "Authorization" request header
+       */
+        public String getHeader(){
+            return header;
+        }
+
+        public long getExpiration(){
+            return expires;
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,481 @@
+package javaxt.azure.graph;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import javaxt.json.*;
+import static java.nio.file.StandardOpenOption.*;
+import static java.nio.charset.StandardCharsets.*;
+
+
+//******************************************************************************
+//**  Uploader
+//******************************************************************************
+/**
+ *   Used to upload files to SharePoint. Small files can be uploaded in a
+ *   single request (see put). Larger files are uploaded using upload
+ *   sessions. Files are read
+ *   with an AsynchronousFileChannel and sent in chunks so large files are
+ *   never loaded into memory. Graph requires the chunks of an upload session
+ *   to be sent in order so only one chunk is in flight at a time. Instead,
+ *   the next chunk is read from disk while the current chunk is uploaded.
+ *   Failed uploads are resumed from the "nextExpectedRanges" reported by the
+ *   server.
+ *
+ ******************************************************************************/
+
+public class Uploader {
+
+    private final Connection conn;
+    private final LongAdder bytesTransferred = new LongAdder();
+    private int chunkSize = 32*CHUNK_MULTIPLE; //10 MB
+    private int maxAttempts = 5;
+
+  /** Chunk sizes must be a multiple of 320 KiB */
+    public static final int CHUNK_MULTIPLE = 320*1024;
+
+  /** Max size of a file uploaded in a single request (see put) */
+    public static final int MAX_PUT_SIZE = 4*1024*1024;
+    private static final int MAX_CHUNK_SIZE = 192*CHUNK_MULTIPLE; //60 MB
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public Uploader(Connection conn){
+        this.conn = conn;
+    }
+
+
+  //**************************************************************************
+  //** setChunkSize
+  //**************************************************************************
+  /** Used to set the number of bytes sent in each request. The size is
+   *  rounded down to a multiple of 320 KiB, between 320 KiB and 60 MiB. The
+   *  default is 10 MiB.
+   */
+    public void setChunkSize(int chunkSize){
+        chunkSize = (chunkSize/CHUNK_MULTIPLE)*CHUNK_MULTIPLE;
+        this.chunkSize = Math.max(CHUNK_MULTIPLE, Math.min(chunkSize, MAX_CHUNK_SIZE));
+    }
+
+
+  //**************************************************************************
+  //** setMaxAttempts
+  //**************************************************************************
+  /** Used to set the max number of attempts to upload a chunk before giving
+   *  up. The default is 5.
+   */
+    public void setMaxAttempts(int maxAttempts){
+        this.maxAttempts = Math.max(maxAttempts, 1);
+    }
+
+
+  //**************************************************************************
+  //** getBytesTransferred
+  //**************************************************************************
+  /** Returns the total number of bytes uploaded by this class
+   */
+    public long getBytesTransferred(){
+        return bytesTransferred.sum();
+    }
+
+
+  //**************************************************************************
+  //** upload
+  //**************************************************************************
+  /** Used to create an upload session and upload a file.
+   *  @param url Url used to create the upload session (e.g.
+   *  "/drives/{id}/root:/a/b.txt:/createUploadSession")
+   *  @param conflictBehavior What to do if the file already exists ("fail",
+   *  "replace", or "rename"). Optional.
+   *  @return The driveItem created or updated by the upload
+   */
+    public JSONObject upload(String url, java.io.File file, String conflictBehavior) throws Exception {
+        if (file.length()==0) throw new IllegalArgumentException(
+        "Upload sessions do not support empty files. Use put() instead.");
+        String uploadUrl = createSession(url, conflictBehavior);
+        JSONObject item;
+        try{
+            item = upload(uploadUrl, file, 0);
+        }
+        catch(Exception e){
+            throw new UploadException(uploadUrl, e);
+        }
+        conn.invalidate(url);
+        return item;
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Used to upload a file in a single request. Only supports files up to
+   *  4 MB (see MAX_PUT_SIZE). Unlike upload sessions, empty files are
+   *  supported.
+   *  @param url Url of the file content (e.g. "/drives/{id}/root:/a/b.txt:/content")
+   *  @param conflictBehavior What to do if the file already exists ("fail",
+   *  "replace", or "rename"). Optional.
+   *  @return The driveItem created or updated by the upload
+   */
+    public JSONObject put(String url, java.io.File file, String conflictBehavior) throws Exception {
+        if (file.length()>MAX_PUT_SIZE) throw new IllegalArgumentException(
+        "File is too large. Use upload() instead.");
+        if (conflictBehavior!=null){
+            url += (url.contains("?") ? "&" : "?") +
+            "@microsoft.graph.conflictBehavior=" + conflictBehavior;
+        }
+
+        byte[] bytes = java.nio.file.Files.readAllBytes(file.toPath());
+        Throttle throttle = conn.getThrottle();
+        String resource = Throttle.getResource(conn.getRelativeURL(url));
+        int throttled = 0;
+        for (int attempt=1; ; attempt++){
+
+            long delay = throttle.reserve(resource);
+            conn.getMetrics().recordDelay(Metrics.Endpoint.UPLOAD, delay);
+            if (delay>0) Thread.sleep(delay);
+
+
+          //Send file
+            HttpResponse<String> response;
+            try{
+                HttpRequest request = conn.getRequest(url)
+                .header("Content-Type", "application/octet-stream")
+                .PUT(HttpRequest.BodyPublishers.ofByteArray(bytes))
+                .build();
+                response = send(request, HttpResponse.BodyHandlers.ofString(UTF_8));
+            }
+            catch(IOException e){
+                if (attempt>=maxAttempts) throw e;
+                continue;
+            }
+            int status = response.statusCode();
+            String body = response.body();
+
+
+          //Upload complete
+            if (status==200 || status==201){
+                bytesTransferred.add(bytes.length);
+                conn.getMetrics().recordTransfer(Metrics.Endpoint.UPLOAD, bytes.length);
+                conn.invalidate(url);
+                return new JSONObject(body);
+            }
+
+
+          //Retry if throttled or if there was a server error
+            if ((status==429 || status==503) && throttled<throttle.getMaxRetries()){
+                String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+                pause(throttle, resource, retryAfter, throttled++);
+                attempt--;
+                continue;
+            }
+            if (status>=500 && attempt<maxAttempts) continue;
+            throw new Connection.ResponseException(status,
+            body==null || body.isBlank() ? new JSONObject() : new JSONObject(body));
+        }
+    }
+
+
+  //**************************************************************************
+  //** createSession
+  //**************************************************************************
+  /** Used to create an upload session. Returns the upload url.
+   */
+    public String createSession(String url, String conflictBehavior) throws Exception {
+        JSONObject item = new JSONObject();
+        if (conflictBehavior!=null) item.set("@microsoft.graph.conflictBehavior", conflictBehavior);
+        JSONObject payload = new JSONObject();
+        payload.set("item", item);
+        return conn.getResponse(url, payload, "POST").get("uploadUrl").toString();
+    }
+
+
+  //**************************************************************************
+  //** resume
+  //**************************************************************************
+  /** Used to resume an upload that failed (see UploadException). Upload
+   *  sessions expire if they are not used for a while so the upload url
+   *  may no longer be valid.
+   *  @return The driveItem created or updated by the upload
+   */
+    public JSONObject resume(String uploadUrl, java.io.File file) throws Exception {
+        long offset = getNextOffset(uploadUrl);
+        if (offset<0) throw new IOException("Failed to get upload status");
+        JSONObject item = upload(uploadUrl, file, offset);
+
+
+      //Remove cached responses for the drive. The upload url is not a graph
+      //url so use the parent of the driveItem instead.
+        String driveID = item.get("parentReference").get("driveId").toString();
+        if (driveID!=null) conn.invalidate("/drives/" + driveID + "/items/" + item.get("id"));
+        return item;
+    }
+
+
+  //**************************************************************************
+  //** cancel
+  //**************************************************************************
+  /** Used to cancel an upload session and delete any bytes uploaded
+   */
+    public void cancel(String uploadUrl) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+        .uri(java.net.URI.create(uploadUrl))
+        .DELETE()
+        .build();
+        send(request, HttpResponse.BodyHandlers.discarding());
+    }
+
+
+  //**************************************************************************
+  //** upload
+  //**************************************************************************
+  /** Used to upload a file to an upload session, starting at a given offset.
+   *  Note that the upload url does not require an authorization header.
+   */
+    private JSONObject upload(String uploadUrl, java.io.File file, long offset) throws Exception {
+
+        long size = file.length();
+        Throttle throttle = conn.getThrottle();
+        String resource = "upload";
+        int throttled = 0;
+        int attempt = 1;
+
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(file.toPath(), READ)){
+
+            Chunk chunk = new Chunk(channel, chunkSize, offset, size);
+            Chunk next = null;
+            while (true){
+
+              //Read chunk and start reading the next chunk
+                ByteBuffer buffer = chunk.get();
+                long end = chunk.position + buffer.remaining();
+                if (end<size){
+                    if (next==null) next = new Chunk(channel, chunkSize, end, size);
+                    else if (next.position!=end) next.read(end);
+                }
+
+                long delay = throttle.reserve(resource);
+                conn.getMetrics().recordDelay(Metrics.Endpoint.UPLOAD, delay);
+                if (delay>0) Thread.sleep(delay);
+
+
+              //Send chunk
+                int status;
+                String body;
+                HttpResponse<String> response = null;
+                try{
+                    HttpRequest request = HttpRequest.newBuilder()
+                    .uri(java.net.URI.create(uploadUrl))
+                    .header("Content-Range", "bytes " + chunk.position + "-" + (end-1) + "/" + size)
+                    .PUT(HttpRequest.BodyPublishers.ofByteArray(
+                        buffer.array(), buffer.position(), buffer.remaining()))
+                    .build();
+
+                    response = send(request, HttpResponse.BodyHandlers.ofString(UTF_8));
+                    status = response.statusCode();
+                    body = response.body();
+                }
+                catch(IOException e){
+                    if (attempt++>=maxAttempts) throw e;
+                    status = -1;
+                    body = null;
+                }
+
+
+              //Upload complete
+                if (status==200 || status==201){
+                    bytesTransferred.add(end-chunk.position);
+                    conn.getMetrics().recordTransfer(Metrics.Endpoint.UPLOAD, end-chunk.position);
+                    return new JSONObject(body);
+                }
+
+
+              //Chunk accepted. Continue from the next expected range.
+                if (status==202){
+                    bytesTransferred.add(end-chunk.position);
+                    conn.getMetrics().recordTransfer(Metrics.Endpoint.UPLOAD, end-chunk.position);
+                    long nextOffset = getNextOffset(new JSONObject(body));
+                    if (nextOffset<0) nextOffset = end;
+                    if (next!=null && next.position==nextOffset){
+                        Chunk c = chunk;
+                        chunk = next;
+                        next = c;
+                    }
+                    else{
+                        chunk.read(nextOffset);
+                    }
+                    attempt = 1;
+                    throttled = 0;
+                    continue;
+                }
+
+
+              //Retry chunk if throttled
+                if ((status==429 || status==503) && throttled<throttle.getMaxRetries()){
+                    String retryAfter = response.headers().firstValue("Retry-After").orElse(null);
+                    pause(throttle, resource, retryAfter, throttled++);
+                    continue;
+                }
+
+
+              //Session expired or doesn't exist
+                if (status==404){
+                    throw new Connection.ResponseException(status,
+                    body==null || body.isEmpty() ? new JSONObject() : new JSONObject(body));
+                }
+
+
+              //Ask the server which bytes it is missing and try again
+                if (status!=-1 && attempt++>=maxAttempts){
+                    throw new IOException("Server returned HTTP response code: " + status);
+                }
+                long nextOffset = getNextOffset(uploadUrl);
+                if (nextOffset<0) throw new IOException("Failed to get upload status");
+                if (nextOffset!=chunk.position) chunk.read(nextOffset);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** send
+  //**************************************************************************
+  /** Used to send a request and record the response time and status
+   */
+    private <T> HttpResponse<T> send(HttpRequest request,
+        HttpResponse.BodyHandler<T> handler) throws Exception {
+        long startTime = System.nanoTime();
+        int status = 0;
+        try{
+            HttpResponse<T> response = conn.getClient().send(request, handler);
+            status = response.statusCode();
+            return response;
+        }
+        finally{
+            conn.getMetrics().recordRequest(Metrics.Endpoint.UPLOAD,
+            status, System.nanoTime()-startTime);
+        }
+    }
+
+
+  //**************************************************************************
+  //** pause
+  //**************************************************************************
+  /** Used to pause requests after the server throttled a request
+   */
+    private void pause(Throttle throttle, String resource, String retryAfter, int attempt){
+        long delay = Throttle.getRetryDelay(retryAfter, attempt);
+        conn.getMetrics().recordThrottle(Metrics.Endpoint.UPLOAD, delay);
+        throttle.pause(resource, delay);
+    }
+
+
+  //**************************************************************************
+  //** getNextOffset
+  //**************************************************************************
+  /** Returns the next byte expected by an upload session or -1 if unknown
+   */
+    private long getNextOffset(String uploadUrl) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder()
+        .uri(java.net.URI.create(uploadUrl))
+        .GET()
+        .build();
+        HttpResponse<String> response = send(request,
+        HttpResponse.BodyHandlers.ofString(UTF_8));
+        int status = response.statusCode();
+        if (status==404){
+            String body = response.body();
+            throw new Connection.ResponseException(status,
+            body==null || body.isEmpty() ? new JSONObject() : new JSONObject(body));
+        }
+        if (status!=200) return -1;
+        return getNextOffset(new JSONObject(response.body()));
+    }
+
+    private static long getNextOffset(JSONObject json){
+        JSONArray ranges = json.get("nextExpectedRanges").toJSONArray();
+        if (ranges==null || ranges.length()==0) return -1;
+        String range = ranges.get(0).toString();
+        int idx = range.indexOf("-");
+        return Long.parseLong(idx<0 ? range : range.substring(0, idx));
+    }
+
+
+  //**************************************************************************
+  //** Chunk Class
+  //**************************************************************************
+  /** Used to read part of a file into a buffer in the background
+   */
+    private static class Chunk {
+        private final AsynchronousFileChannel channel;
+        private final ByteBuffer buffer;
+        private final long size;
+        private long position;
+        private Future<Integer> pending;
+
+        private Chunk(AsynchronousFileChannel channel, int chunkSize, long position, long size){
+            this.channel = channel;
+            this.size = size;
+            this.buffer = ByteBuffer.allocate((int) Math.min(chunkSize, Math.max(size, 1)));
+            read(position);
+        }
+
+      /** Used to start reading the file at a given position
+       */
+        private void read(long position){
+            cancel();
+            this.position = position;
+            buffer.clear();
+            if (size-position<buffer.capacity()) buffer.limit((int) (size-position));
+            pending = channel.read(buffer, position);
+        }
+
+      /** Returns the bytes in the chunk. Blocks until the bytes are read.
+       */
+        private ByteBuffer get() throws Exception {
+            while (pending!=null){
+                int n = pending.get();
+                if (n<0) throw new EOFException();
+                pending = buffer.hasRemaining() ?
+                channel.read(buffer, position+buffer.position()) : null;
+            }
+            ByteBuffer b = buffer.duplicate();
+            b.flip();
+            return b;
+        }
+
+        private void cancel(){
+            if (pending==null) return;
+            try{
+                pending.get();
+            }
+            catch(Exception e){}
+            pending = null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** UploadException Class
+  //**************************************************************************
+  /** Thrown when an upload fails. Contains the url of the upload session
+   *  which can be used to resume the upload.
+   */
+    public static class UploadException extends Exception {
+        private final String uploadUrl;
+
+        private UploadException(String uploadUrl, Exception e){
+            super(e.getMessage(), e);
+            this.uploadUrl = uploadUrl;
+        }
+
+        public String getUploadUrl(){
+            return uploadUrl;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package javaxt.azure.graph;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import javaxt.json.*;
 
 public class User extends Node {
@@ -17,7 +18,7 @@ public class User extends Node {
   //** getEmail
   //**************************************************************************
     public String getEmail(){
-        return get("mail").toString();
+        return getValue("mail", JSONValue::toString);
     }
 
 
@@ -44,14 +45,69 @@ public class User extends Node {
   //**************************************************************************
   //** getUsers
   //**************************************************************************
+  /** Returns all the users in the directory. Note that for large directories
+   *  it is more efficient to iterate through the users using a Pager.
+   */
     public static ArrayList<User> getUsers(Connection conn) throws Exception {
         ArrayList<User> users = new ArrayList<>();
-        JSONObject json = conn.getResponse("/users");
-        for (JSONValue v : json.get("value").toJSONArray()){
-            JSONObject user = v.toJSONObject();
-            users.add(new User(user, conn));
+        String url = "/users";
+        while (url!=null){
+            JSONObject json = conn.getResponse(url);
+            for (JSONValue v : json.get("value").toJSONArray()){
+                JSONObject user = v.toJSONObject();
+                users.add(new User(user, conn));
+            }
+            url = json.get("@odata.nextLink").toString();
         }
         return users;
     }
 
+
+  //**************************************************************************
+  //** getUsers
+  //**************************************************************************
+  /** Returns a Pager used to iterate through all the users in the directory,
+   *  one page at a time. Example:
+   <pre>
+    for (User user : User.getUsers(conn, 999)){
+        ...
+    }
+   </pre>
+   *  @param pageSize Number of users per page (1-999). Optional.
+   *  @param select Fields to return for each user (e.g. "id", "mail").
+   *  Optional. By default, the graph API returns a default set of fields.
+   */
+    public static Pager<User> getUsers(Connection conn, Integer pageSize, String... select){
+        return new Pager<>(getURL(pageSize, select), null, json -> new User(json, conn), conn);
+    }
+
+
+  //**************************************************************************
+  //** getUsersAsync
+  //**************************************************************************
+  /** Non-blocking version of getUsers()
+   */
+    public static CompletableFuture<ArrayList<User>> getUsersAsync(Connection conn, String... select){
+        return Pager.getAll(getURL(null, select), null, json -> new User(json, conn), conn);
+    }
+
+
+  //**************************************************************************
+  //** getURL
+  //**************************************************************************
+  /** Returns a url used to list users
+   */
+    private static String getURL(Integer pageSize, String[] select){
+        StringBuilder url = new StringBuilder("/users");
+        char separator = '?';
+        if (pageSize!=null){
+            url.append(separator).append("$top=").append(pageSize);
+            separator = '&';
+        }
+        if (select!=null && select.length>0){
+            url.append(separator).append("$select=").append(String.join(",", select));
+        }
+        return url.toString();
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,256 @@
+package javaxt.azure.graph.sync;
+
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.ConcurrentHashMap;
+import static java.nio.charset.StandardCharsets.*;
+
+
+//******************************************************************************
+//**  Manifest
+//******************************************************************************
+/**
+ *   Used to keep track of files and folders that have been synced to a local
+ *   cache. Maps SharePoint item IDs to paths relative to the local cache,
+ *   along with the eTag, cTag and size of the item and the timestamp of the
+ *   local file. Delta queries identify items by ID only so the manifest is
+ *   needed to resolve where an item lives locally when it is moved or
+ *   deleted. The manifest is also used to skip items that haven't changed
+ *   and to find deleted items without scanning the local cache.
+ *
+ ******************************************************************************/
+
+public class Manifest {
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+
+  //**************************************************************************
+  //** get
+  //**************************************************************************
+    public Entry get(String id){
+        return id==null ? null : entries.get(id);
+    }
+
+
+  //**************************************************************************
+  //** getFolderPath
+  //**************************************************************************
+  /** Returns the relative path of a folder or null if the folder is not in
+   *  the manifest
+   */
+    public String getFolderPath(String id){
+        Entry entry = get(id);
+        return (entry==null || !entry.folder) ? null : entry.path;
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Used to add or update an item without any version info (e.g. a file
+   *  that hasn't been downloaded yet)
+   */
+    public void put(String id, String path, boolean folder){
+        put(id, path, folder, null, null, -1, -1);
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Used to add or update an item
+   *  @param eTag Version of the item's metadata
+   *  @param cTag Version of the item's content
+   *  @param size Size of the item in bytes
+   *  @param lastModified Timestamp of the local file after it was downloaded
+   */
+    public void put(String id, String path, boolean folder, String eTag,
+        String cTag, long size, long lastModified){
+        entries.put(id, new Entry(path, folder, eTag, cTag, size, lastModified));
+    }
+
+
+  //**************************************************************************
+  //** move
+  //**************************************************************************
+  /** Used to update the path of an item. If the item is a folder, the paths
+   *  of all the items in the folder are updated as well.
+   */
+    public void move(String id, String path){
+        Entry entry = entries.get(id);
+        if (entry==null) return;
+        String oldPath = entry.path;
+        entries.put(id, entry.move(path));
+        if (entry.folder){
+            String prefix = oldPath + "/";
+            for (Map.Entry<String, Entry> e : entries.entrySet()){
+                Entry child = e.getValue();
+                if (child.path.startsWith(prefix)){
+                    e.setValue(child.move(path + child.path.substring(oldPath.length())));
+                }
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** remove
+  //**************************************************************************
+  /** Used to remove an item from the manifest. If the item is a folder, all
+   *  the items in the folder are removed as well.
+   */
+    public void remove(String id){
+        Entry entry = entries.remove(id);
+        if (entry==null || !entry.folder) return;
+        String prefix = entry.path + "/";
+        entries.values().removeIf(child -> child.path.startsWith(prefix));
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+    public int size(){
+        return entries.size();
+    }
+
+
+  //**************************************************************************
+  //** getIDs
+  //**************************************************************************
+  /** Returns a snapshot of the item IDs in the manifest
+   */
+    public ArrayList<String> getIDs(){
+        return new ArrayList<>(entries.keySet());
+    }
+
+
+  //**************************************************************************
+  //** load
+  //**************************************************************************
+  /** Returns a manifest stored in a file or null if the file does not exist.
+   *  Each line in the file contains the item ID, type (d or f), eTag, cTag,
+   *  size, timestamp and path, separated by tabs. Older manifests with only
+   *  the ID, type and path are also supported.
+   */
+    public static Manifest load(Path file) throws IOException {
+        if (!Files.exists(file)) return null;
+        Manifest manifest = new Manifest();
+        try (BufferedReader reader = Files.newBufferedReader(file, UTF_8)){
+            String line;
+            while ((line=reader.readLine())!=null){
+                String[] arr = line.split("\t", 7);
+                boolean folder = arr.length>1 && arr[1].equals("d");
+                if (arr.length==7){
+                    try{
+                        manifest.put(arr[0], arr[6], folder,
+                        arr[2].isEmpty() ? null : arr[2],
+                        arr[3].isEmpty() ? null : arr[3],
+                        Long.parseLong(arr[4]), Long.parseLong(arr[5]));
+                    }
+                    catch(NumberFormatException e){}
+                }
+                else if (arr.length==3){
+                    manifest.put(arr[0], arr[2], folder);
+                }
+            }
+        }
+        return manifest;
+    }
+
+
+  //**************************************************************************
+  //** save
+  //**************************************************************************
+  /** Used to save the manifest to a file. The manifest is written to a temp
+   *  file first and then moved into place.
+   */
+    public void save(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try{
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, UTF_8)){
+                for (Map.Entry<String, Entry> e : entries.entrySet()){
+                    Entry entry = e.getValue();
+                    writer.write(e.getKey());
+                    writer.write(entry.folder ? "\td\t" : "\tf\t");
+                    writer.write(entry.eTag==null ? "" : entry.eTag);
+                    writer.write('\t');
+                    writer.write(entry.cTag==null ? "" : entry.cTag);
+                    writer.write("\t" + entry.size + "\t" + entry.lastModified + "\t");
+                    writer.write(entry.path);
+                    writer.newLine();
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally{
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+
+  //**************************************************************************
+  //** Entry Class
+  //**************************************************************************
+  /** Used to represent an individual file or folder
+   */
+    public static class Entry {
+        private final String path;
+        private final boolean folder;
+        private final String eTag;
+        private final String cTag;
+        private final long size;
+        private final long lastModified;
+
+        private Entry(String path, boolean folder, String eTag, String cTag,
+            long size, long lastModified){
+            this.path = path;
+            this.folder = folder;
+            this.eTag = eTag;
+            this.cTag = cTag;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        private Entry move(String path){
+            return new Entry(path, folder, eTag, cTag, size, lastModified);
+        }
+
+      /** Returns the path relative to the local cache, using "/" as the
+       *  separator. The root folder has an empty path.
+       */
+        public String getPath(){
+            return path;
+        }
+
+        public boolean isFolder(){
+            return folder;
+        }
+
+        public String getETag(){
+            return eTag;
+        }
+
+      /** Returns the cTag of the file that was downloaded or null if the
+       *  file hasn't been downloaded yet
+       */
+        public String getCTag(){
+            return cTag;
+        }
+
+        public long getSize(){
+            return size;
+        }
+
+      /** Returns the timestamp of the local file after it was downloaded or
+       *  -1 if unknown
+       */
+        public long getLastModified(){
+            return lastModified;
+        }
+    }
+}
\ No newline at end of file
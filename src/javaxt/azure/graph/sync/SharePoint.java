@@ -1,11 +1,23 @@
 package javaxt.azure.graph.sync;
 
 import java.util.*;
+import java.nio.file.Path;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javaxt.json.*;
 import javaxt.utils.ThreadPool;
+import javaxt.azure.graph.DeltaStore;
+import javaxt.azure.graph.Downloader;
+import javaxt.azure.graph.HashIndex;
+import javaxt.azure.graph.Metrics;
+import javaxt.azure.graph.Pager;
+import javaxt.azure.graph.ResponseCache;
+import javaxt.azure.graph.Connection.ResponseException;
 import static javaxt.utils.Console.console;
 
 
@@ -20,11 +32,23 @@ import static javaxt.utils.Console.console;
 public class SharePoint {
 
     private JSONObject source;
-    private ThreadPool pool;
-    private int numThreads = 4;
-    private AtomicLong lastEvent;
+    private ThreadPool crawler;
+    private ThreadPool downloads;
+    private Semaphore queueSize;
+    private AtomicInteger pending;
+    private Progress folderProgress;
+    private Progress fileProgress;
     private AtomicBoolean isRunning;
     private javaxt.utils.Timer timer;
+    private Downloader downloader;
+    private ResponseCache cache;
+
+  //Fields requested when listing folders and changes. Everything else in a
+  //driveItem (e.g. createdBy, lastModifiedBy) is ignored by the sync.
+    private static final String[] FIELDS = {
+        "id", "name", "eTag", "cTag", "size", "folder", "file", "deleted",
+        "fileSystemInfo", "parentReference", "@microsoft.graph.downloadUrl"
+    };
 
 
   //**************************************************************************
@@ -52,28 +76,83 @@ public class SharePoint {
         ],
         "sync" : {
             "startTime" : "22:00",
-            "interval" : "8h"
+            "interval" : "8h",
+            "segments" : 4,                //optional, for large files
+            "segmentThreshold" : 64,       //MB
+            "maxConcurrentSegments" : 16,
+            "crawlThreads" : 4,            //threads used to list folders
+            "downloadThreads" : 4,         //threads used to download files
+            "queueSize" : 1000,            //max files waiting for download
+            "jmx" : false                  //expose metrics via JMX
+        },
+        "connection" : {
+            "connectTimeout" : 30,
+            "requestTimeout" : 300,
+            "threads" : 8
         }
     }
    </pre>
    */
     public SharePoint(JSONObject source){
         this.source = source;
-        this.pool = new ThreadPool(numThreads){
+
+
+      //Get thread counts
+        JSONObject sync = source.get("sync").toJSONObject();
+        if (sync==null) sync = new JSONObject();
+        Integer crawlThreads = sync.get("crawlThreads").toInteger();
+        Integer downloadThreads = sync.get("downloadThreads").toInteger();
+        Integer maxQueueSize = sync.get("queueSize").toInteger();
+
+
+      //Create thread pool used to list folders. Files found in a folder are
+      //added to the download queue.
+        crawler = new ThreadPool(crawlThreads==null ? 4 : crawlThreads){
+            public void process(Object obj){
+                Object[] arr = (Object[]) obj;
+                Folder folder = (Folder) arr[2];
+                try{
+                    String relPath = (String) arr[0];
+                    javaxt.io.Directory localCache = (javaxt.io.Directory) arr[1];
+                    downloadFolder(relPath, localCache, folder);
+                }
+                catch(Exception e){
+                    folder.failed = true;
+                }
+                finally{
+                    folderProgress.completed.incrementAndGet();
+                    complete();
+                }
+            }
+        };
+
+
+      //Create thread pool used to download files. The number of files waiting
+      //to be downloaded is limited so that the crawler doesn't get too far
+      //ahead of the downloads (see queue).
+        queueSize = new Semaphore(maxQueueSize==null ? 1000 : maxQueueSize);
+        downloads = new ThreadPool(downloadThreads==null ? 4 : downloadThreads){
             public void process(Object obj){
                 Object[] arr = (Object[]) obj;
-                String relPath = (String) arr[0];
-                javaxt.azure.graph.SharePoint.Drive drive = (javaxt.azure.graph.SharePoint.Drive) arr[1];
-                javaxt.io.Directory localCache = (javaxt.io.Directory) arr[2];
+                Folder folder = (Folder) arr[2];
                 try{
-                    downloadFolder(relPath, drive, localCache);
+                    javaxt.azure.graph.SharePoint.Item item = (javaxt.azure.graph.SharePoint.Item) arr[0];
+                    javaxt.io.Directory localCache = (javaxt.io.Directory) arr[1];
+                    downloadFile(item, localCache, folder);
                 }
                 catch(Exception e){
+                    folder.failed = true;
+                }
+                finally{
+                    queueSize.release();
+                    fileProgress.completed.incrementAndGet();
+                    complete();
                 }
-                lastEvent.set(System.currentTimeMillis());
             }
         };
-        lastEvent = new AtomicLong(0);
+        pending = new AtomicInteger(0);
+        folderProgress = new Progress();
+        fileProgress = new Progress();
         isRunning = new AtomicBoolean(false);
     }
 
@@ -210,169 +289,463 @@ public class SharePoint {
 
 
       //Start threads
-        pool.start();
+        crawler.start();
+        downloads.start();
 
 
-      //Start timer task to watch for lastEvent. If the lastEvent was more than
-      //5 minutes ago, we can assume that the threads are done.
-        lastEvent.set(0);
+      //Register the current thread as a pending task so the pools aren't
+      //stopped while folders are still being queued (see complete)
+        pending.set(1);
+        folderProgress.reset();
+        fileProgress.reset();
+
+
+      //Start timer task to report progress
         javaxt.utils.Timer timer = new javaxt.utils.Timer();
         timer.scheduleAtFixedRate(
             new TimerTask(){
                 public void run(){
-                    long maxIdle = 5*60*1000; //5 minutes
+                    console.log("Folders: " + folderProgress + ", Files: " + fileProgress);
+                }
+            },
+            60*1000, //1 minute delay
+            60*1000 //run every minute
+        );
 
 
-                    long t = lastEvent.get();
-                    long d = System.currentTimeMillis()-t;
-                    //console.log("Last Event: ", new javaxt.utils.Date(t));
+
+      //Queue folders. Once all the folders have been queued, the current
+      //thread is deregistered so that the pools can stop after the last task.
+        javaxt.azure.graph.Connection conn = null;
+        ArrayList<Folder> folders = new ArrayList<>();
+        try{
+            try{
+
+              //Get connection info
+                conn = new javaxt.azure.graph.Connection(
+                    source.get("tenantID").toString(),
+                    source.get("clientID").toString(),
+                    source.get("secret").toString(),
+                    source.get("connection").toJSONObject()
+                );
+
+
+              //Reuse the response cache from previous runs so that site, drive,
+              //and folder lookups can be skipped or revalidated (see the
+              //"cache" connection option)
+                if (cache==null) cache = conn.getCache();
+                else conn.setCache(cache);
+
+
+              //Add queue depths to the connection metrics. Optionally expose the
+              //metrics via JMX if the "jmx" option is set in the sync config.
+                Metrics metrics = conn.getMetrics();
+                metrics.setGauge("sync.folders.pending", () -> folderProgress.getPending());
+                metrics.setGauge("sync.folders.completed", () -> folderProgress.completed.get());
+                metrics.setGauge("sync.files.pending", () -> fileProgress.getPending());
+                metrics.setGauge("sync.files.completed", () -> fileProgress.completed.get());
+                Boolean jmx = source.get("sync").get("jmx").toBoolean();
+                if (Boolean.TRUE.equals(jmx)){
+                    metrics.register("sharepoint-sync");
+                }
 
 
-                    if (d>maxIdle){
-                        //console.log("Stopping threads. Last event was " + StringUtils.getElapsedTime(t) + " ago");
-                        pool.done();
-                        timer.cancel();
+              //Create downloader. Large files are downloaded in segments if the
+              //"segments" option is set in the sync config.
+                downloader = new Downloader(conn);
+                JSONObject sync = source.get("sync").toJSONObject();
+                if (sync!=null){
+                    Integer segments = sync.get("segments").toInteger();
+                    if (segments!=null && segments>1){
+                        Integer threshold = sync.get("segmentThreshold").toInteger(); //MB
+                        Integer maxSegments = sync.get("maxConcurrentSegments").toInteger();
+                        downloader.setSegments(segments,
+                            (threshold==null ? 64 : threshold)*1024L*1024L,
+                            maxSegments==null ? 16 : maxSegments
+                        );
                     }
                 }
-            },
-            2*60*1000, //2 minute delay
-            5*60*1000 //run every 5 minutes
-        );
-
 
 
-      //Get connection info
-        javaxt.azure.graph.Connection conn = new javaxt.azure.graph.Connection(
-            source.get("tenantID").toString(),
-            source.get("clientID").toString(),
-            source.get("secret").toString()
-        );
+              //Get SharePoint host
+                javaxt.azure.graph.SharePoint sharepoint = new javaxt.azure.graph.SharePoint(
+                source.get("host").toString(), conn);
 
 
-      //Get SharePoint host
-        javaxt.azure.graph.SharePoint sharepoint = new javaxt.azure.graph.SharePoint(
-        source.get("host").toString(), conn);
+              //Get sites
+                for (JSONValue s : source.get("sites").toJSONArray()){
+                    JSONObject site = s.toJSONObject();
 
+                  //Get SharePoint site
+                    String siteName = site.get("site").toString();
+                    javaxt.azure.graph.SharePoint.Site st = sharepoint.getSite(siteName);
 
-      //Get sites
-        for (JSONValue s : source.get("sites").toJSONArray()){
-            JSONObject site = s.toJSONObject();
 
-          //Get SharePoint site
-            String siteName = site.get("site").toString();
-            javaxt.azure.graph.SharePoint.Site st = sharepoint.getSite(siteName);
+                  //Get cache directory
+                    javaxt.io.Directory localCache = new javaxt.io.Directory(
+                    site.get("localCache").toString());
 
 
-          //Get cache directory
-            javaxt.io.Directory localCache = new javaxt.io.Directory(
-            site.get("localCache").toString());
+                  //Get store used to persist delta links
+                    DeltaStore store = new DeltaStore.FileStore(getSyncDir(localCache));
 
 
-            for (JSONValue f : site.get("folders").toJSONArray()){
-                JSONObject folder = f.toJSONObject();
-                javaxt.azure.graph.SharePoint.Drive drive = st.getDrive(folder.get("drive").toString());
-                String path = folder.get("path").toString();
-                pool.add(new Object[]{path, drive, localCache});
-                //downloadFolder(path, drive, localCache);
-            }
-        }
+                    for (JSONValue f : site.get("folders").toJSONArray()){
+                        JSONObject config = f.toJSONObject();
+                        javaxt.azure.graph.SharePoint.Drive drive = st.getDrive(config.get("drive").toString());
+                        drive.setSelect(FIELDS);
+                        String path = config.get("path").toString();
+                        if (path.startsWith("/")) path = path.substring(1);
+                        if (path.endsWith("/")) path = path.substring(0, path.length()-1);
 
+                        Folder folder = new Folder(drive, path, localCache, store);
+                        folder.hashes = HashIndex.load(folder.getSyncFile(".hashes"));
+                        folders.add(folder);
 
-      //Wait for all the threads to finish
-        pool.join();
 
+                      //Apply changes since the last run. Fallback to a full sync if
+                      //there is no delta link or if the delta link has expired. The
+                      //manifest from the last run is kept so that unchanged files
+                      //aren't downloaded again and so deleted items can be found.
+                        if (!syncChanges(folder)){
+                            folder.store.remove(folder.key);
+                            if (folder.manifest==null) folder.manifest = Manifest.load(folder.getManifestPath());
+                            if (folder.manifest==null) folder.manifest = new Manifest();
+                            folder.deltaLink = drive.getDeltaLink();
+                            folder.visited = ConcurrentHashMap.newKeySet();
+                            javaxt.azure.graph.SharePoint.Item root = drive.getFolder(path.split("/"));
+                            if (root==null) throw new Exception("Folder not found: /" + path);
+                            String rootID = root.getID();
+                            folder.manifest.put(rootID, "", true);
+                            folder.visited.add(rootID);
+                            queue(new Object[]{path, localCache, folder});
+                            //downloadFolder(path, localCache, folder);
+                        }
+                    }
+                }
+            }
+            catch(Exception e){
+                complete();
+                crawler.join();
+                downloads.join();
+                throw e;
+            }
+            complete();
 
 
-      //Delete empty folders
-        for (JSONValue site : source.get("sites").toJSONArray()){
+          //Wait for all the tasks to finish
+            crawler.join();
+            downloads.join();
 
-            javaxt.io.Directory localCache = new javaxt.io.Directory(
-            site.get("localCache").toString());
 
-            for (Object o : localCache.getChildren(true)){
-                if (o instanceof javaxt.io.Directory){
-                    javaxt.io.Directory dir = (javaxt.io.Directory) o;
-                    if (dir.isEmpty()){
-                        console.log("delete", dir);
+          //Delete items that were not found during a full sync
+            for (Folder folder : folders){
+                if (folder.visited==null || folder.failed) continue;
+                for (String id : folder.manifest.getIDs()){
+                    if (!folder.visited.contains(id) && folder.manifest.get(id)!=null){
+                        delete(id, folder);
                     }
                 }
             }
-        }
 
 
-      //Update status
-        isRunning.set(false);
+          //Save manifests and delta links. Don't update the delta link if there
+          //were errors so that the changes are applied again on the next run.
+            for (Folder folder : folders){
+                folder.manifest.save(folder.getManifestPath());
+                folder.hashes.save(folder.getSyncFile(".hashes"));
+                if (!folder.failed) folder.store.set(folder.key, folder.deltaLink);
+            }
+
+
+
+          //Delete empty folders
+            for (JSONValue site : source.get("sites").toJSONArray()){
 
+                javaxt.io.Directory localCache = new javaxt.io.Directory(
+                site.get("localCache").toString());
 
-        javaxt.utils.Date endDate = new javaxt.utils.Date();
-        console.log("Completed run at " + endDate + ". Synced in " +
-        endDate.compareTo(startDate, "minutes") + " minutes");
+                for (Object o : localCache.getChildren(true)){
+                    if (o instanceof javaxt.io.Directory){
+                        javaxt.io.Directory dir = (javaxt.io.Directory) o;
+                        if (dir.isEmpty()){
+                            console.log("delete", dir);
+                        }
+                    }
+                }
+            }
+
+
+            console.log(conn.getMetrics().toJson().toString(4));
+            javaxt.utils.Date endDate = new javaxt.utils.Date();
+            console.log("Completed run at " + endDate + ". Synced in " +
+            endDate.compareTo(startDate, "minutes") + " minutes. Downloaded " +
+            downloader.getBytesTransferred() + " bytes");
+        }
+        finally{
+
+          //Release http connections and update status. The metrics are
+          //unregistered so the JMX name can be reused on the next run.
+            timer.cancel();
+            if (downloader!=null) downloader.close();
+            if (conn!=null){
+                conn.getMetrics().unregister();
+                conn.close();
+            }
+            isRunning.set(false);
+        }
     }
 
 
   //**************************************************************************
   //** downloadFolder
   //**************************************************************************
-    private void downloadFolder(String relPath,
-        javaxt.azure.graph.SharePoint.Drive drive,
-        javaxt.io.Directory localCache) throws Exception {
+    private void downloadFolder(String relPath, javaxt.io.Directory localCache,
+        Folder folder) throws Exception {
 
+        javaxt.azure.graph.SharePoint.Drive drive = folder.drive;
         try{
             if (relPath.startsWith("/")) relPath = relPath.substring(1);
             if (relPath.endsWith("/")) relPath = relPath.substring(0, relPath.length()-1);
             String[] path = relPath.split("/");
 
 
-          //Download items
-            lastEvent.set(System.currentTimeMillis());
+          //Process items. Items that have been moved or renamed since the
+          //last run are moved locally. Files that haven't changed since the
+          //last run are skipped, provided the local copy still matches the
+          //manifest, and the rest are added to the download queue.
+          //Deleted items are removed after all the folders have been visited
+          //(see run).
             javaxt.azure.graph.SharePoint.Item parentFolder = drive.getFolder(path);
-            HashSet<String> files = new HashSet<>();
             for (javaxt.azure.graph.SharePoint.Item item : parentFolder.getChildren()){
-                lastEvent.set(System.currentTimeMillis());
+                String id = item.getID();
+                String itemPath = folder.getRelativePath(relPath + "/" + item.getName());
+                folder.visited.add(id);
+
+                Manifest.Entry entry = folder.manifest.get(id);
+                if (entry!=null && !entry.getPath().equals(itemPath)){
+                    move(id, itemPath, folder);
+                    entry = folder.manifest.get(id);
+                }
+
                 if (item.isFolder()){
+                    put(item, itemPath, -1, folder);
                     String folderName = item.getName();
                     javaxt.io.Directory dir = new javaxt.io.Directory(localCache.toString() + folderName);
-                    pool.add(new Object[]{relPath + "/" + item.getName(), drive, dir});
-                    //downloadFolder(relPath + "/" + item.getName(), drive, dir);
+                    queue(new Object[]{relPath + "/" + item.getName(), dir, folder});
+                    //downloadFolder(itemPath, dir, folder);
                 }
                 else{
-                    javaxt.io.File file = downloadFile(item, localCache);
-                    if (file!=null){
-                        files.add(file.toFile().getCanonicalPath()); //vs getAbsoluteFile()
-                    }
+                    if (isUnchanged(entry, item) &&
+                        isUnchanged(entry, folder.getLocalFile(itemPath))) continue;
+                    if (entry==null) folder.manifest.put(id, itemPath, false);
+                    queue(new Object[]{item, localCache, folder});
                 }
             }
 
+        }
+        catch(Exception e){
+            folder.failed = true;
+            console.log("failed to download folder " + relPath);
+            e.printStackTrace();
+        }
+    }
 
 
-          //Delete local files that may have been deleted, moved, or renamed in SharePoint
-            HashSet<javaxt.io.File> deletions = new HashSet<>();
-            for (javaxt.io.File file : localCache.getFiles()){
-                if (!files.contains(file.toFile().getCanonicalPath())){ //vs getAbsoluteFile()
-                    deletions.add(file);
-                }
+  //**************************************************************************
+  //** syncChanges
+  //**************************************************************************
+  /** Used to apply changes made in SharePoint since the last run. Files that
+   *  have been created or updated are queued for download. Files and folders
+   *  that have been moved or renamed are moved locally and files and folders
+   *  that have been deleted are removed from the local cache.
+   *  @return False if the folder has no delta link or manifest or if the
+   *  delta link has expired. In which case, a full sync is required.
+   */
+    private boolean syncChanges(Folder folder) throws Exception {
+
+      //Get delta link and manifest
+        String deltaLink = folder.store.get(folder.key);
+        if (deltaLink==null) return false;
+        folder.manifest = Manifest.load(folder.getManifestPath());
+        if (folder.manifest==null) return false;
+
+
+      //Apply changes
+        Pager<javaxt.azure.graph.SharePoint.Item> changes = folder.drive.getChanges(deltaLink);
+        try{
+            while (changes.hasNext()){
+                applyChange(changes.next(), folder);
             }
-            for (javaxt.io.File file : deletions){
-                console.log("DELETE: ", file);
-                file.delete();
-                notify("delete", file);
+        }
+        catch(CompletionException e){
+            Throwable t = e.getCause();
+            if (t instanceof ResponseException && ((ResponseException) t).getStatus()==410){
+                console.log("delta link expired for " + folder.path);
+                folder.store.remove(folder.key);
+                return false;
             }
+            throw e;
+        }
+
+        folder.deltaLink = changes.getDeltaLink();
+        return true;
+    }
 
+
+  //**************************************************************************
+  //** applyChange
+  //**************************************************************************
+    private void applyChange(javaxt.azure.graph.SharePoint.Item item, Folder folder) throws Exception {
+        Manifest manifest = folder.manifest;
+        String id = item.getID();
+        Manifest.Entry entry = manifest.get(id);
+
+
+      //Delete items that have been deleted in SharePoint
+        if (item.isDeleted()){
+            if (entry!=null) delete(id, folder);
+            return;
         }
-        catch(Exception e){
-            console.log("failed to download folder " + relPath);
-            e.printStackTrace();
+
+
+      //Find the parent folder. If the parent is not in the manifest, the
+      //item is outside of the synced folder. Delete any local copy in case
+      //the item was moved out of the folder.
+        String parentPath = manifest.getFolderPath(item.getParentID());
+        if (parentPath==null){
+            if (entry!=null && !entry.getPath().isEmpty()) delete(id, folder);
+            return;
         }
+        String path = parentPath.isEmpty() ? item.getName() : parentPath + "/" + item.getName();
+        java.io.File local = folder.getLocalFile(path);
 
-        lastEvent.set(System.currentTimeMillis());
+
+      //Move items that have been moved or renamed
+        if (entry!=null && !entry.getPath().equals(path)){
+            move(id, path, folder);
+            entry = manifest.get(id);
+        }
+
+
+      //Create folders and queue downloads. Skip files if the content hasn't
+      //changed (e.g. the file was only renamed).
+        if (item.isFolder()){
+            put(item, path, -1, folder);
+            local.mkdirs();
+        }
+        else{
+            if (isUnchanged(entry, item)) return;
+            if (entry==null) manifest.put(id, path, false);
+            javaxt.io.Directory dir = new javaxt.io.Directory(local.getParentFile());
+            queue(new Object[]{item, dir, folder});
+        }
+    }
+
+
+  //**************************************************************************
+  //** move
+  //**************************************************************************
+  /** Used to move or rename a file or folder in the local cache
+   *  @param path New path, relative to the local cache
+   */
+    private void move(String id, String path, Folder folder){
+        Manifest.Entry entry = folder.manifest.get(id);
+        java.io.File src = folder.getLocalFile(entry.getPath());
+        java.io.File dst = folder.getLocalFile(path);
+        if (src.exists()){
+            console.log("MOVE: ", src, dst);
+            dst.getParentFile().mkdirs();
+            if (!src.renameTo(dst)){
+                delete(src);
+                folder.manifest.remove(id);
+                folder.manifest.put(id, path, entry.isFolder());
+                return;
+            }
+        }
+        folder.manifest.move(id, path);
+    }
+
+
+  //**************************************************************************
+  //** isUnchanged
+  //**************************************************************************
+  /** Returns true if a file in the manifest has the same content as a file in
+   *  SharePoint. Note that the local file is not checked.
+   */
+    private static boolean isUnchanged(Manifest.Entry entry,
+        javaxt.azure.graph.SharePoint.Item item){
+        if (entry==null || entry.isFolder() || entry.getCTag()==null) return false;
+        return entry.getCTag().equals(item.getCTag()) && entry.getSize()==item.getSize();
+    }
+
+  /** Returns true if a local file matches the size and timestamp recorded
+   *  in the manifest when the file was downloaded. Used during a full sync
+   *  so that files that were deleted or modified locally are downloaded
+   *  again.
+   */
+    private static boolean isUnchanged(Manifest.Entry entry, java.io.File file){
+        if (!file.isFile() || file.length()!=entry.getSize()) return false;
+        return entry.getLastModified()<=0 || entry.getLastModified()==file.lastModified();
+    }
+
+
+  //**************************************************************************
+  //** put
+  //**************************************************************************
+  /** Used to add or update an item in the manifest
+   */
+    private static void put(javaxt.azure.graph.SharePoint.Item item, String path,
+        long lastModified, Folder folder){
+        folder.manifest.put(item.getID(), path, item.isFolder(), item.getETag(),
+        item.isFolder() ? null : item.getCTag(), item.getSize(), lastModified);
+    }
+
+
+  //**************************************************************************
+  //** delete
+  //**************************************************************************
+  /** Used to delete a file or folder from the local cache, along with any
+   *  partial downloads of the file
+   */
+    private void delete(String id, Folder folder){
+        Manifest.Entry entry = folder.manifest.get(id);
+        java.io.File file = folder.getLocalFile(entry.getPath());
+        delete(file);
+        if (!entry.isFolder()){
+            java.io.File[] files = file.getParentFile().listFiles((dir, name) ->
+            Downloader.isTempFile(name, file.getName()));
+            if (files!=null){
+                for (java.io.File f : files) f.delete();
+            }
+        }
+        folder.manifest.remove(id);
+    }
+
+    private void delete(java.io.File file){
+        if (file.isDirectory()){
+            java.io.File[] files = file.listFiles();
+            if (files!=null){
+                for (java.io.File f : files) delete(f);
+            }
+            file.delete();
+        }
+        else if (file.exists()){
+            console.log("DELETE: ", file);
+            file.delete();
+            notify("delete", new javaxt.io.File(file));
+        }
     }
 
 
   //**************************************************************************
   //** downloadFile
   //**************************************************************************
+  /** Used to download a file. Returns null if the file was rejected by the
+   *  filter (see accept). Throws an exception if the download failed.
+   */
     private javaxt.io.File downloadFile(javaxt.azure.graph.SharePoint.Item item,
-        javaxt.io.Directory localCache) throws Exception {
+        javaxt.io.Directory localCache, Folder folder) throws Exception {
 
       //Set local file path
         javaxt.io.File file = new javaxt.io.File(localCache, item.getName());
@@ -388,39 +761,183 @@ public class SharePoint {
         if (!accept) return null;
 
 
-      //Download file
+      //Download file. Retry if the connection was reset.
         int maxAttempts = 5;
-        for (int i=0; i<5; i++){
+        for (int i=0; ; i++){
             try {
-                boolean downloaded = item.download(file);
+                boolean downloaded = item.download(file, downloader, folder.hashes);
                 if (downloaded){
                     console.log(file);
                     notify("create", file);
                 }
-                lastEvent.set(System.currentTimeMillis());
+                Manifest.Entry entry = folder.manifest.get(item.getID());
+                if (entry!=null) put(item, entry.getPath(), file.toFile().lastModified(), folder);
                 return file;
             }
             catch (Exception e){
-                lastEvent.set(System.currentTimeMillis());
-                if (e instanceof java.net.SocketException){
-                    if (i<maxAttempts-1){
-                        Thread.sleep(1500);
-                    }
-                    else{
-                        console.log("failed to download " + file);
-                        //throw e;
-                        e.printStackTrace();
-                    }
+                if (e instanceof java.net.SocketException && i<maxAttempts-1){
+                    Thread.sleep(1500);
                 }
                 else{
                     console.log("failed to download " + file);
-                    //throw e;
                     e.printStackTrace();
+                    throw e;
                 }
             }
         }
+    }
+
 
-        return null;
+  //**************************************************************************
+  //** queue
+  //**************************************************************************
+  /** Used to add a folder to the crawler or a file to the download queue.
+   *  Every task that is queued is registered as pending until it has been
+   *  processed. Blocks if the download queue is full.
+   */
+    private void queue(Object[] task) throws InterruptedException {
+        if (task[0] instanceof String){
+            folderProgress.queued.incrementAndGet();
+            pending.incrementAndGet();
+            crawler.add(task);
+        }
+        else{
+            queueSize.acquire();
+            fileProgress.queued.incrementAndGet();
+            pending.incrementAndGet();
+            downloads.add(task);
+        }
+    }
+
+
+  //**************************************************************************
+  //** complete
+  //**************************************************************************
+  /** Called when a task is done. Stops the thread pools when there are no
+   *  more pending tasks. Tasks are queued before the task that created them
+   *  is completed so the count can only reach zero once all the work is done.
+   */
+    private void complete(){
+        if (pending.decrementAndGet()==0){
+            crawler.done();
+            downloads.done();
+        }
+    }
+
+
+  //**************************************************************************
+  //** getStatus
+  //**************************************************************************
+  /** Returns the progress of the current run. Example:
+   <pre>
+    {
+        "running" : true,
+        "folders" : { "queued" : 120, "completed" : 87 },
+        "files" : { "queued" : 5320, "completed" : 4410 }
+    }
+   </pre>
+   */
+    public JSONObject getStatus(){
+        JSONObject json = new JSONObject();
+        json.set("running", isRunning.get());
+        json.set("folders", folderProgress.toJson());
+        json.set("files", fileProgress.toJson());
+        return json;
+    }
+
+
+  //**************************************************************************
+  //** getSyncDir
+  //**************************************************************************
+  /** Returns the directory used to store delta links, manifests and hashes for a
+   *  local cache
+   */
+    private static Path getSyncDir(javaxt.io.Directory localCache){
+        return localCache.toFile().toPath().resolve(".sync");
+    }
+
+
+  //**************************************************************************
+  //** Progress Class
+  //**************************************************************************
+  /** Used to count the number of tasks queued and completed in a run
+   */
+    private static class Progress {
+        private final AtomicLong queued = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+
+        private void reset(){
+            queued.set(0);
+            completed.set(0);
+        }
+
+        private long getPending(){
+            return queued.get()-completed.get();
+        }
+
+        private JSONObject toJson(){
+            JSONObject json = new JSONObject();
+            json.set("queued", queued.get());
+            json.set("completed", completed.get());
+            return json;
+        }
+
+        public String toString(){
+            return completed.get() + "/" + queued.get();
+        }
+    }
+
+
+  //**************************************************************************
+  //** Folder Class
+  //**************************************************************************
+  /** Used to represent a folder in the "folders" config and track the state
+   *  of the folder during a sync
+   */
+    private static class Folder {
+        private final javaxt.azure.graph.SharePoint.Drive drive;
+        private final String path;
+        private final javaxt.io.Directory localCache;
+        private final DeltaStore store;
+        private final String key;
+        private Manifest manifest;
+        private Set<String> visited;
+        private HashIndex hashes;
+        private String deltaLink;
+        private volatile boolean failed;
+
+        private Folder(javaxt.azure.graph.SharePoint.Drive drive, String path,
+            javaxt.io.Directory localCache, DeltaStore store){
+            this.drive = drive;
+            this.path = path;
+            this.localCache = localCache;
+            this.store = store;
+            this.key = "sharepoint/" + drive.getID() + "/" + path;
+        }
+
+      /** Returns the path of an item relative to the local cache
+       *  @param relPath Path relative to the drive root
+       */
+        private String getRelativePath(String relPath){
+            if (relPath.equals(path)) return "";
+            return relPath.substring(path.length()+1);
+        }
+
+        private java.io.File getLocalFile(String path){
+            if (path.isEmpty()) return localCache.toFile();
+            return new java.io.File(localCache.toFile(), path);
+        }
+
+        private Path getManifestPath(){
+            return getSyncFile(".manifest");
+        }
+
+        private Path getSyncFile(String ext){
+            String name = key.replaceAll("[^A-Za-z0-9\\-\\.]", "_");
+            if (name.length()>100) name = name.substring(0, 100);
+            name += "-" + Integer.toHexString(key.hashCode()) + ext;
+            return getSyncDir(localCache).resolve(name);
+        }
     }
 
 